@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 
@@ -32,6 +33,8 @@ import org.slf4j.LoggerFactory;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.GeneratedMessage;
 
+import poke.server.queue.QueueLimit;
+import poke.server.queue.QueueLimit.Policy;
 import eye.Comm.Finger;
 import eye.Comm.Header;
 import eye.Comm.Payload;
@@ -53,6 +56,9 @@ public class ClientConnection {
 	ClientDecoderPipeline clientPipeline;
 	private LinkedBlockingDeque<com.google.protobuf.GeneratedMessage> outbound;
 	private OutboundWorker worker;
+	private QueueLimit limit;
+	private volatile String toNode;
+	private volatile String originator = "client";
 
 	public String getHost() {
 		return host;
@@ -63,12 +69,52 @@ public class ClientConnection {
 	}
 
 	protected ClientConnection(String host, int port) {
+		this(host, port, null);
+	}
+
+	protected ClientConnection(String host, int port, QueueLimit limit) {
 		this.host = host;
 		this.port = port;
+		this.limit = (limit != null) ? limit : new QueueLimit("client", QueueLimit.sCapacityDefault, Policy.Suspend);
 
 		init();
 	}
 
+	public QueueLimit getLimit() {
+		return limit;
+	}
+
+	public String getToNode() {
+		return toNode;
+	}
+
+	public String getOriginator() {
+		return originator;
+	}
+
+	/**
+	 * the originator of the documents sent and asked about, "client" unless
+	 * set (e.g., a server copying its documents to another)
+	 * 
+	 * @param originator
+	 */
+	public void setOriginator(String originator) {
+		this.originator = originator;
+	}
+
+	/**
+	 * address the documents sent and asked about (DOCADD, DOCFIND) to a server
+	 * other than the one connected to, the requests are forwarded by the
+	 * servers
+	 * 
+	 * @param toNode
+	 *            The destination server (node.id), null for the connected
+	 *            server
+	 */
+	public void setToNode(String toNode) {
+		this.toNode = toNode;
+	}
+
 	/**
 	 * release all resources
 	 */
@@ -77,6 +123,19 @@ public class ClientConnection {
 	}
 
 	public static ClientConnection initConnection(String host, int port) {
+		return initConnection(host, port, null);
+	}
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param limit
+	 *            The capacity of the outbound queue and the policy when it is
+	 *            full. Suspend blocks the caller until there is space, reject
+	 *            does not send the message.
+	 * @return
+	 */
+	public static ClientConnection initConnection(String host, int port, QueueLimit limit) {
 		try {
 			Socket client = new Socket(host, port);
 			if(!client.isConnected()) {
@@ -98,7 +157,7 @@ public class ClientConnection {
 			return null;
 		}
 		
-		ClientConnection rtn = new ClientConnection(host, port);
+		ClientConnection rtn = new ClientConnection(host, port, limit);
 		return rtn;
 	}
 
@@ -117,7 +176,26 @@ public class ClientConnection {
 		}
 	}
 
+	public void removeListener(ClientListener listener) {
+		if (clientPipeline != null)
+			clientPipeline.removeListener(listener);
+	}
+
 	public void poke(String tag, int num) {
+		poke(tag, num, null);
+	}
+
+	/**
+	 * poke a server other than the one connected to, the request is forwarded
+	 * by the servers
+	 * 
+	 * @param tag
+	 * @param num
+	 * @param toNode
+	 *            The destination server (node.id), null for the connected
+	 *            server
+	 */
+	public void poke(String tag, int num, String toNode) {
 		// data to send
 		Finger.Builder f = eye.Comm.Finger.newBuilder();
 		f.setTag(tag);
@@ -135,58 +213,147 @@ public class ClientConnection {
 		h.setTag("test finger");
 		h.setTime(System.currentTimeMillis());
 		h.setRoutingId(eye.Comm.Header.Routing.FINGER);
+		if (toNode != null)
+			h.setToNode(toNode);
 		r.setHeader(h.build());
 
 		eye.Comm.Request req = r.build();
 
-		try {
-			// enqueue message
-			outbound.put(req);
-		} catch (InterruptedException e) {
-			logger.warn("Unable to deliver message, queuing");
-		}
+		enqueue(req);
 	}
 	
-	public void sendFile(String fileName,ByteString fileContent) {
-		// data to send
-		Finger.Builder f = eye.Comm.Finger.newBuilder();
-		f.setTag(fileName);
-		f.setNumber(fileContent.size());
-
-		//document to be sent
+	/**
+	 * send a document as a single chunk. Large documents should be sent with a
+	 * DocumentSender, which streams them in chunks.
+	 * 
+	 * @param fileName
+	 * @param fileContent
+	 */
+	public void sendFile(String fileName, ByteString fileContent) {
 		eye.Comm.Document.Builder d = eye.Comm.Document.newBuilder();
 		d.setDocName(fileName);
+		d.setDocSize(fileContent.size());
+		d.setTotalChunk(1);
+		d.setChunkId(0);
 		d.setChunkContent(fileContent);
-		
+
+		sendChunk(d.build());
+	}
+
+	/**
+	 * send a document, or a chunk of one (see DocumentSender)
+	 * 
+	 * @param doc
+	 */
+	public void sendChunk(eye.Comm.Document doc) {
 		// payload containing data
 		Request.Builder r = Request.newBuilder();
 		eye.Comm.Payload.Builder p = Payload.newBuilder();
-		p.setFinger(f.build());
-		p.setDoc(d.build());
+		p.setDoc(doc);
+		r.setBody(p.build());
+		r.setHeader(header(eye.Comm.Header.Routing.DOCADD, doc.getDocName()));
+
+		enqueue(r.build());
+	}
+
+	/**
+	 * ask about the server's documents (see ManifestResource)
+	 * 
+	 * @param tag
+	 *            Identifies the reply
+	 * @param query
+	 */
+	public void findDocuments(String tag, eye.Comm.Document query) {
+		Request.Builder r = Request.newBuilder();
+		eye.Comm.Payload.Builder p = Payload.newBuilder();
+		p.setDoc(query);
+		r.setBody(p.build());
+		r.setHeader(header(eye.Comm.Header.Routing.DOCFIND, tag));
+
+		enqueue(r.build());
+	}
+
+	/**
+	 * ask the server's storage for the documents of a namespace that meet the
+	 * criteria (see DocumentQuery)
+	 *
+	 * @param tag
+	 *            Identifies the reply
+	 * @param namespace
+	 * @param criteria
+	 */
+	public void findDocuments(String tag, String namespace, eye.Comm.Document criteria) {
+		Request.Builder r = Request.newBuilder();
+		eye.Comm.Payload.Builder p = Payload.newBuilder();
+		p.setSpace(eye.Comm.NameSpace.newBuilder().setName(namespace).build());
+		if (criteria != null)
+			p.setDoc(criteria);
 		r.setBody(p.build());
+		r.setHeader(header(eye.Comm.Header.Routing.DOCFIND, tag));
+
+		enqueue(r.build());
+	}
+
+	/**
+	 * send a chunk of a document whose content is written from the file to
+	 * the socket without passing through the heap (see DocumentRegion). The
+	 * file must stay open until the returned future completes.
+	 * 
+	 * @param doc
+	 *            The chunk's fields except the content
+	 * @param file
+	 * @param position
+	 *            Where the chunk starts in the file
+	 * @param count
+	 *            The size of the chunk
+	 * @return
+	 */
+	public ChannelFuture sendChunk(eye.Comm.Document doc, FileChannel file, long position, long count) {
+		Header h = header(eye.Comm.Header.Routing.DOCADD, doc.getDocName());
+		return connect().write(new DocumentRegion(h, doc, file, position, count));
+	}
 
+	private Header header(eye.Comm.Header.Routing routing, String tag) {
 		// header with routing info
 		eye.Comm.Header.Builder h = Header.newBuilder();
-		h.setOriginator("client");
-		h.setTag("test finger");
+		h.setOriginator(originator);
+		h.setTag(tag);
 		h.setTime(System.currentTimeMillis());
-		h.setRoutingId(eye.Comm.Header.Routing.DOCADD);
-		r.setHeader(h.build());
+		h.setRoutingId(routing);
+		if (toNode != null)
+			h.setToNode(toNode);
+		return h.build();
+	}
 
-		eye.Comm.Request req = r.build();
+	private void enqueue(Request req) {
+		if (outbound.offerLast(req))
+			return;
 
-		try {
-			// enqueue message
-			outbound.put(req);
-		} catch (InterruptedException e) {
-			logger.warn("Unable to deliver message, queuing");
+		switch (limit.getPolicy()) {
+		case DropOldest:
+			while (!outbound.offerLast(req)) {
+				if (outbound.pollFirst() != null)
+					limit.drop();
+			}
+			break;
+		case Reject:
+			limit.reject();
+			logger.warn("Outbound queue is full, message not sent");
+			break;
+		default:
+			// block the caller until the worker catches up
+			limit.suspend(null);
+			try {
+				outbound.putLast(req);
+			} catch (InterruptedException e) {
+				logger.warn("Unable to deliver message, queuing");
+			}
 		}
 	}
-	
 
 	private void init() {
 		// the queue to support client-side surging
-		outbound = new LinkedBlockingDeque<com.google.protobuf.GeneratedMessage>();
+		outbound = new LinkedBlockingDeque<com.google.protobuf.GeneratedMessage>(limit.getCapacity());
 
 		// Configure the client.
 		bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
@@ -210,7 +377,7 @@ public class ClientConnection {
 	 * 
 	 * @return
 	 */
-	protected Channel connect() {
+	protected synchronized Channel connect() {
 		// Start the connection attempt.
 		if (channel == null) {
 			// System.out.println("---> connecting");
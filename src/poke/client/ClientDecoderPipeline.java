@@ -33,6 +33,10 @@ public class ClientDecoderPipeline implements ChannelPipelineFactory {
 		handler.addListener(listener);
 	}
 
+	public void removeListener(ClientListener listener) {
+		handler.removeListener(listener);
+	}
+
 	public ChannelPipeline getPipeline() throws Exception {
 		ChannelPipeline pipeline = Channels.pipeline();
 
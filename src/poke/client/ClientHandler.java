@@ -70,6 +70,13 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
 		listeners.putIfAbsent(listener.getListenerID(), listener);
 	}
 
+	public void removeListener(ClientListener listener) {
+		if (listener == null)
+			return;
+
+		listeners.remove(listener.getListenerID(), listener);
+	}
+
 	@Override
 	public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
 		channel = e.getChannel();
@@ -0,0 +1,129 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.jboss.netty.channel.FileRegion;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import eye.Comm.Document;
+import eye.Comm.Header;
+import eye.Comm.Payload;
+import eye.Comm.Request;
+
+/**
+ * A DOCADD request whose chunk content is written from a file straight to the
+ * socket (FileChannel.transferTo), so the content is never copied into the
+ * heap.
+ * <p>
+ * The request is encoded by hand: the frame length, the header and the
+ * document's other fields are encoded into a small buffer, followed by the
+ * tag and length of the chunkContent field; the file region is the field's
+ * value. Protobuf allows fields in any order, so the receiver decodes the
+ * frame as an ordinary Request (nothing changes on the server). Since the
+ * frame carries its own length, the region passes through the client's
+ * encoders unchanged.
+ * 
+ * @author gash
+ * 
+ */
+public class DocumentRegion implements FileRegion {
+	private ByteBuffer frame;
+	private FileChannel file;
+	private long position;
+	private long count;
+
+	/**
+	 * @param header
+	 * @param doc
+	 *            The document's fields except the content
+	 * @param file
+	 * @param position
+	 *            Where the content starts in the file
+	 * @param count
+	 *            The size of the content
+	 */
+	public DocumentRegion(Header header, Document doc, FileChannel file, long position, long count) {
+		this.file = file;
+		this.position = position;
+		this.count = count;
+
+		int size = (int) count;
+		int lenDelim = WireFormat.WIRETYPE_LENGTH_DELIMITED;
+		byte[] meta = doc.toByteArray();
+		int docLen = meta.length + CodedOutputStream.computeTagSize(Document.CHUNKCONTENT_FIELD_NUMBER)
+				+ CodedOutputStream.computeRawVarint32Size(size) + size;
+		int payloadLen = CodedOutputStream.computeTagSize(Payload.DOC_FIELD_NUMBER)
+				+ CodedOutputStream.computeRawVarint32Size(docLen) + docLen;
+		int prefixLen = CodedOutputStream.computeMessageSize(Request.HEADER_FIELD_NUMBER, header)
+				+ CodedOutputStream.computeTagSize(Request.BODY_FIELD_NUMBER)
+				+ CodedOutputStream.computeRawVarint32Size(payloadLen) + payloadLen - size;
+
+		byte[] raw = new byte[4 + prefixLen];
+		ByteBuffer.wrap(raw).putInt(prefixLen + size);
+		CodedOutputStream out = CodedOutputStream.newInstance(raw, 4, prefixLen);
+		try {
+			out.writeMessage(Request.HEADER_FIELD_NUMBER, header);
+			out.writeTag(Request.BODY_FIELD_NUMBER, lenDelim);
+			out.writeRawVarint32(payloadLen);
+			out.writeTag(Payload.DOC_FIELD_NUMBER, lenDelim);
+			out.writeRawVarint32(docLen);
+			out.writeRawBytes(meta);
+			out.writeTag(Document.CHUNKCONTENT_FIELD_NUMBER, lenDelim);
+			out.writeRawVarint32(size);
+			out.checkNoSpaceLeft();
+		} catch (IOException e) {
+			// the buffer is sized for the fields
+			throw new IllegalStateException("Unable to encode document " + doc.getDocName(), e);
+		}
+
+		frame = ByteBuffer.wrap(raw);
+	}
+
+	@Override
+	public long getPosition() {
+		return position;
+	}
+
+	@Override
+	public long getCount() {
+		return frame.limit() + count;
+	}
+
+	@Override
+	public long transferTo(WritableByteChannel target, long pos) throws IOException {
+		int hl = frame.limit();
+		if (pos < hl) {
+			ByteBuffer b = frame.duplicate();
+			b.position((int) pos);
+			return target.write(b);
+		}
+
+		long done = pos - hl;
+		return file.transferTo(position + done, count - done, target);
+	}
+
+	@Override
+	public void releaseExternalResources() {
+		// the file is shared by the chunks, its owner closes it
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.resources.DocumentAssembler;
+import poke.resources.Manifest;
+
+import eye.Comm.Document;
+import eye.Comm.Header;
+import eye.Comm.Header.ReplyStatus;
+import eye.Comm.Response;
+
+/**
+ * Streams a file to a server as a document of chunks (DOCADD requests), so
+ * neither side holds more than a few chunks of it in memory. The chunks'
+ * content is written from the file to the socket (DocumentRegion) without
+ * being copied into the heap.
+ * <p>
+ * At most sWindow chunks are sent ahead of the receiver, which replies to each
+ * chunk with the next chunk it needs. If the receiver reports a failure or
+ * does not reply within sTimeoutMsec, the sender asks the receiver where it is
+ * (a chunk without content) and resumes from there, up to sMaxRetries times
+ * without progress. A transfer that is started again, after the sender or the
+ * receiver restarts, also resumes where the receiver stopped.
+ * 
+ * @author gash
+ * 
+ */
+public class DocumentSender implements ClientListener {
+	protected static Logger logger = LoggerFactory.getLogger(DocumentSender.class);
+
+	public static final int sChunkSize = 1024 * 1024;
+
+	// chunks sent and not yet acknowledged
+	static final int sWindow = 8;
+
+	static final int sTimeoutMsec = 30000;
+
+	// attempts to resume without progress
+	static final int sMaxRetries = 5;
+
+	private ClientConnection conn;
+	private File file;
+	private Manifest.Entry entry;
+	private String docName;
+	private long size;
+	private long total;
+	private long chunkSize;
+
+	// the next chunk the receiver needs
+	private volatile long acked = -1;
+	private volatile boolean failed;
+	private ChannelFuture lastWrite;
+
+	public DocumentSender(ClientConnection conn, File file) {
+		this(conn, file, null);
+	}
+
+	/**
+	 * @param conn
+	 * @param file
+	 * @param entry
+	 *            The file's manifest entry, if given the receiver replaces a
+	 *            different document of the same name and checks the content
+	 *            against the entry's hash
+	 */
+	public DocumentSender(ClientConnection conn, File file, Manifest.Entry entry) {
+		this.conn = conn;
+		this.entry = entry;
+		this.file = file;
+		this.docName = file.getName();
+		this.size = file.length();
+		this.total = Math.max(1, (size + sChunkSize - 1) / sChunkSize);
+		this.chunkSize = DocumentAssembler.chunkSize(size, total);
+	}
+
+	@Override
+	public String getListenerID() {
+		return "document-" + docName + "-" + System.identityHashCode(this);
+	}
+
+	/**
+	 * send the file, blocks until the receiver has it
+	 * 
+	 * @return false if the transfer failed
+	 */
+	public boolean send() {
+		FileInputStream in = null;
+		conn.addListener(this);
+		try {
+			in = new FileInputStream(file);
+			FileChannel fc = in.getChannel();
+
+			int retries = 0;
+			long sent = resume();
+			while (sent >= 0 && acked < total) {
+				long progress = acked;
+
+				while (sent < total && sent < progress + sWindow)
+					sendChunk(fc, sent++);
+
+				if (!awaitReply(progress)) {
+					if (++retries > sMaxRetries)
+						break;
+					logger.warn("sending " + docName + " stalled at chunk " + acked + ", resuming");
+					sent = resume();
+				} else
+					retries = 0;
+			}
+
+			if (acked >= total) {
+				logger.info("sent " + docName + " (" + size + " bytes, " + total + " chunks) to " + conn.getHost()
+						+ ":" + conn.getPort());
+				return true;
+			}
+		} catch (Exception e) {
+			logger.error("Unable to send " + file, e);
+		} finally {
+			conn.removeListener(this);
+
+			// chunks still being written read the file
+			if (lastWrite != null)
+				lastWrite.awaitUninterruptibly(sTimeoutMsec);
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+			}
+		}
+
+		logger.error("failed to send " + docName + " to " + conn.getHost() + ":" + conn.getPort());
+		return false;
+	}
+
+	/**
+	 * ask the receiver for the next chunk it needs
+	 * 
+	 * @return the chunk to send next, -1 if the receiver does not answer
+	 */
+	private long resume() {
+		for (int n = 0; n <= sMaxRetries; n++) {
+			long before;
+			synchronized (this) {
+				failed = false;
+				before = acked = -1;
+			}
+
+			conn.sendChunk(describe().build());
+
+			if (awaitReply(before) && !failed)
+				return acked;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * wait for the receiver to get past a chunk
+	 * 
+	 * @param chunk
+	 * @return false if the receiver failed or did not reply in time
+	 */
+	private synchronized boolean awaitReply(long chunk) {
+		long until = System.currentTimeMillis() + sTimeoutMsec;
+		try {
+			while (acked <= chunk && !failed) {
+				long wait = until - System.currentTimeMillis();
+				if (wait <= 0)
+					return false;
+				wait(wait);
+			}
+		} catch (InterruptedException e) {
+			return false;
+		}
+
+		return !failed;
+	}
+
+	/**
+	 * send a chunk; its content goes from the file to the socket
+	 * 
+	 * @param fc
+	 * @param id
+	 */
+	private void sendChunk(FileChannel fc, long id) {
+		long pos = id * chunkSize;
+
+		Document.Builder d = describe();
+		d.setChunkId(id);
+		lastWrite = conn.sendChunk(d.build(), fc, pos, Math.min(chunkSize, size - pos));
+	}
+
+	private Document.Builder describe() {
+		Document.Builder d = Document.newBuilder();
+		d.setDocName(docName);
+		d.setDocSize(size);
+		d.setTotalChunk(total);
+		if (entry != null) {
+			d.setId(entry.hash);
+			d.setDocument(Manifest.mtime(entry.mtime));
+		}
+		return d;
+	}
+
+	@Override
+	public void onMessage(Response msg) {
+		if (msg.getHeader().getRoutingId() != Header.Routing.DOCADD || msg.getBody().getDocsCount() == 0)
+			return;
+
+		Document d = msg.getBody().getDocs(0);
+		if (!docName.equals(d.getDocName()))
+			return;
+
+		synchronized (this) {
+			if (msg.getHeader().getReplyCode() != ReplyStatus.SUCCESS) {
+				logger.warn("receiver failed " + docName + ": " + msg.getHeader().getReplyMsg());
+				failed = true;
+			} else if (d.getChunkId() > acked)
+				acked = d.getChunkId();
+			notifyAll();
+		}
+	}
+}
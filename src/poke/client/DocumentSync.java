@@ -0,0 +1,251 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.client;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.resources.Manifest;
+import eye.Comm.Document;
+import eye.Comm.Header;
+import eye.Comm.Header.ReplyStatus;
+import eye.Comm.PayloadReply;
+import eye.Comm.Response;
+
+/**
+ * Brings a server up to date with the documents of a directory by sending
+ * only the documents it is missing or has an older version of.
+ * <p>
+ * The server's manifest summary (see ManifestResource) is compared with the
+ * directory's Manifest. If the roots match nothing is sent; otherwise the
+ * entries of the buckets whose digests differ are fetched (all at once) and
+ * compared by name, hash and time. A document is sent if the server does not
+ * have it, or has different content that is older than ours. A server that
+ * cannot answer (no DOCFIND resource) is sent every document; it skips those
+ * it already has.
+ * <p>
+ * A filter limits the documents sent to those the server is to have (e.g.,
+ * the documents a partitioned server owns).
+ * 
+ * @author gash
+ * 
+ */
+public class DocumentSync implements ClientListener {
+	protected static Logger logger = LoggerFactory.getLogger(DocumentSync.class);
+
+	// time to wait for the next reply
+	static final int sTimeoutMsec = 30000;
+
+	private static AtomicLong seq = new AtomicLong();
+
+	private ClientConnection conn;
+	private Manifest manifest;
+	private Filter filter;
+
+	// queries by tag, null until answered
+	private Map<String, Response> replies = new HashMap<String, Response>();
+
+	public DocumentSync(ClientConnection conn, Manifest manifest) {
+		this.conn = conn;
+		this.manifest = manifest;
+	}
+
+	/**
+	 * send only the documents the filter accepts
+	 * 
+	 * @param filter
+	 *            null sends every document
+	 */
+	public void setFilter(Filter filter) {
+		this.filter = filter;
+	}
+
+	@Override
+	public String getListenerID() {
+		return "sync-" + System.identityHashCode(this);
+	}
+
+	/**
+	 * synchronize the server, blocks until the documents are sent
+	 * 
+	 * @return the number of documents sent
+	 */
+	public int sync() {
+		long start = System.currentTimeMillis();
+		conn.addListener(this);
+		try {
+			manifest.refresh();
+
+			List<Manifest.Entry> send = diff();
+			if (send == null) {
+				logger.info(conn.getHost() + ":" + conn.getPort() + " has no manifest, sending all documents");
+				send = manifest.bucket(0, 1);
+			}
+
+			int n = 0;
+			for (Manifest.Entry e : send) {
+				if (filter != null && !filter.accept(e))
+					continue;
+
+				// the document may have changed (been received) since
+				Manifest.Entry cur = manifest.get(e.name);
+				if (cur != null && new DocumentSender(conn, new File(manifest.getDir(), e.name), cur).send())
+					n++;
+			}
+
+			logger.info("synchronized " + conn.getHost() + ":" + conn.getPort() + ", " + n + " of "
+					+ manifest.size() + " documents sent (" + (System.currentTimeMillis() - start) + " ms)");
+			return n;
+		} finally {
+			conn.removeListener(this);
+		}
+	}
+
+	/**
+	 * the documents the server needs
+	 * 
+	 * @return null if the server cannot tell
+	 */
+	protected List<Manifest.Entry> diff() {
+		List<Document> q = new ArrayList<Document>();
+		q.add(Document.newBuilder().build());
+		List<Response> r = query(q);
+		if (r == null)
+			return null;
+
+		PayloadReply summary = r.get(0).getBody();
+		int buckets = (int) summary.getStats().getTotalChunk();
+		if (buckets < 1 || Integer.bitCount(buckets) != 1)
+			return null;
+
+		List<Manifest.Entry> rtn = new ArrayList<Manifest.Entry>();
+		long[] local = manifest.digests(buckets);
+		if (Manifest.root(local) == summary.getStats().getId())
+			return rtn;
+
+		// the buckets that differ, those the server has no entries in need
+		// not be asked about
+		q.clear();
+		for (Document d : summary.getDocsList()) {
+			int b = (int) d.getChunkId();
+			if (b < 0 || b >= buckets || local[b] == d.getId())
+				continue;
+
+			List<Manifest.Entry> mine = manifest.bucket(b, buckets);
+			if (d.getDocSize() == 0)
+				rtn.addAll(mine);
+			else if (!mine.isEmpty()) {
+				Document.Builder db = Document.newBuilder();
+				db.setChunkId(b);
+				db.setTotalChunk(buckets);
+				q.add(db.build());
+			}
+		}
+
+		r = query(q);
+		if (r == null)
+			return null;
+
+		for (int i = 0; i < q.size(); i++) {
+			Map<String, Manifest.Entry> theirs = new HashMap<String, Manifest.Entry>();
+			for (Document d : r.get(i).getBody().getDocsList())
+				theirs.put(d.getDocName(), new Manifest.Entry(d));
+
+			for (Manifest.Entry e : manifest.bucket((int) q.get(i).getChunkId(), buckets)) {
+				Manifest.Entry t = theirs.get(e.name);
+				if (t == null || (t.hash != e.hash && e.mtime > t.mtime))
+					rtn.add(e);
+			}
+		}
+
+		return rtn;
+	}
+
+	/**
+	 * send the queries and wait for their replies
+	 * 
+	 * @param queries
+	 * @return the replies in the order of the queries, null if one failed or
+	 *         did not arrive in time
+	 */
+	private List<Response> query(List<Document> queries) {
+		List<String> tags = new ArrayList<String>();
+		synchronized (this) {
+			for (int i = 0; i < queries.size(); i++) {
+				String tag = "manifest-" + seq.incrementAndGet();
+				tags.add(tag);
+				replies.put(tag, null);
+			}
+		}
+
+		for (int i = 0; i < queries.size(); i++)
+			conn.findDocuments(tags.get(i), queries.get(i));
+
+		List<Response> rtn = new ArrayList<Response>();
+		synchronized (this) {
+			try {
+				for (String tag : tags) {
+					long until = System.currentTimeMillis() + sTimeoutMsec;
+					Response r;
+					while ((r = replies.get(tag)) == null) {
+						long wait = until - System.currentTimeMillis();
+						if (wait <= 0)
+							return null;
+						wait(wait);
+					}
+
+					if (r.getHeader().getReplyCode() != ReplyStatus.SUCCESS)
+						return null;
+					rtn.add(r);
+				}
+			} catch (InterruptedException e) {
+				return null;
+			} finally {
+				replies.keySet().removeAll(tags);
+			}
+		}
+
+		return rtn;
+	}
+
+	@Override
+	public void onMessage(Response msg) {
+		if (msg.getHeader().getRoutingId() != Header.Routing.DOCFIND)
+			return;
+
+		synchronized (this) {
+			String tag = msg.getHeader().getTag();
+			if (replies.containsKey(tag)) {
+				replies.put(tag, msg);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * the documents a server is to have
+	 */
+	public interface Filter {
+		boolean accept(Manifest.Entry e);
+	}
+}
@@ -27,26 +27,37 @@ import poke.client.ClientPrintListener;
  */
 public class Route {
 	private String tag;
+	private String toNode;
+	private int port;
 	private int count;
 
-	public Route(String tag) {
+	public Route(String tag, String toNode, int port) {
 		this.tag = tag;
+		this.toNode = toNode;
+		this.port = port;
 	}
 
 	public void run() {
-		ClientConnection cc = ClientConnection.initConnection("localhost", 5570);
-		ClientListener listener = new ClientPrintListener("jab demo");
+		ClientConnection cc = ClientConnection.initConnection("localhost", port);
+		ClientListener listener = new ClientPrintListener("route demo");
 		cc.addListener(listener);
 
 		for (int i = 0; i < 3; i++) {
 			count++;
-			cc.poke(tag, count);
+			cc.poke(tag, count, toNode);
 		}
 	}
 
+	/**
+	 * @param args
+	 *            [destination node.id [port of the first server]]
+	 */
 	public static void main(String[] args) {
 		try {
-			Route jab = new Route("jab");
+			String toNode = (args.length > 0) ? args[0] : null;
+			int port = (args.length > 1) ? Integer.parseInt(args[1]) : 5570;
+
+			Route jab = new Route("jab", toNode, port);
 			jab.run();
 
 			// we are running asynchronously
@@ -135,6 +135,10 @@ public class HeartMonitor {
 	 * @return
 	 */
 	protected Channel connect() {
+		// a closed connection is replaced
+		if (channel != null && channel.isDone() && !channel.getChannel().isOpen())
+			channel = null;
+
 		// Start the connection attempt.
 		if (channel == null) {
 			logger.info("connecting to " + host + ":" + port);
@@ -153,6 +157,16 @@ public class HeartMonitor {
 		}
 	}
 
+	/**
+	 * @return the connection or null if there is none
+	 */
+	public Channel getChannel() {
+		ChannelFuture cf = channel;
+		if (cf == null || !cf.isDone() || !cf.isSuccess())
+			return null;
+		return cf.getChannel();
+	}
+
 	public boolean isConnected() {
 		if (channel == null)
 			return false;
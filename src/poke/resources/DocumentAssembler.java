@@ -0,0 +1,347 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+
+import eye.Comm.Document;
+
+/**
+ * Reassembles documents sent in chunks (see poke.client.DocumentSender).
+ * <p>
+ * A document of docSize bytes is sent as totalChunk chunks of
+ * chunkSize(docSize, totalChunk) bytes (the last may be shorter), numbered
+ * from 0. Each chunk is written in place (at its offset) in a hidden part
+ * file as it arrives, in order or not, so chunks are never held in memory.
+ * When the last missing chunk is written the part file is renamed to the
+ * document's name; a partly received document is never visible.
+ * <p>
+ * A chunk is accepted at most sMaxAhead chunks beyond the first missing one
+ * (the sender's window keeps it below that). Only the last sMaxAhead chunks
+ * of the part file can therefore be missing, which is where a transfer
+ * resumes after the receiver restarts. Every reply carries the next chunk the
+ * receiver needs; a request without content (a probe) asks for it without
+ * sending anything.
+ * <p>
+ * If the chunks carry the document's hash (id, see Manifest), the content is
+ * checked against it, and a document of the same name and different content
+ * is replaced. The sender's modification time, if given, is kept.
+ * 
+ * @author gash
+ * 
+ */
+public class DocumentAssembler {
+	protected static Logger logger = LoggerFactory.getLogger(DocumentAssembler.class);
+
+	// chunks written beyond the first missing chunk
+	static final int sMaxAhead = 16;
+
+	// a transfer without chunks for this long is closed (its part file is kept)
+	static final int sIdleMsec = 600000;
+
+	private static ConcurrentHashMap<String, Transfer> transfers = new ConcurrentHashMap<String, Transfer>();
+
+	/**
+	 * the size of the chunks a document is divided into
+	 * 
+	 * @param docSize
+	 * @param totalChunk
+	 * @return
+	 */
+	public static long chunkSize(long docSize, long totalChunk) {
+		if (totalChunk <= 1)
+			return Math.max(docSize, 1);
+		return (docSize + totalChunk - 1) / totalChunk;
+	}
+
+	/**
+	 * add a chunk to its document, or if the document has no content, report
+	 * how much of it has been received
+	 * 
+	 * @param dir
+	 *            The directory the document is written to
+	 * @param doc
+	 * @return the next chunk needed, totalChunk once the document is complete
+	 * @throws IOException
+	 *             the chunk is not valid or cannot be written, the sender
+	 *             should resume from the last reply
+	 */
+	public static long receive(File dir, Document doc) throws IOException {
+		String name = doc.getDocName();
+		if (name.length() == 0 || name.indexOf('/') != -1 || name.indexOf('\\') != -1 || name.startsWith("."))
+			throw new IOException("Invalid document name " + name);
+
+		// a document sent whole (without chunk fields) is one chunk
+		long total = doc.hasTotalChunk() ? doc.getTotalChunk() : 1;
+		long size = doc.hasDocSize() ? doc.getDocSize() : doc.getChunkContent().size();
+		if (total < 1 || size < 0)
+			throw new IOException("Invalid size of document " + name);
+
+		// the sender's hash (id) and time, a document with a hash replaces a
+		// different document of the same name
+		Long hash = doc.hasId() ? doc.getId() : null;
+		long mtime = Manifest.mtimeOf(doc);
+
+		File file = new File(dir, name);
+		while (true) {
+			Transfer t = transfer(file, size, total, hash, mtime);
+			synchronized (t) {
+				// closed as idle or replaced since we found it
+				if (t.out == null && !t.isDone())
+					continue;
+
+				if (!doc.hasChunkContent())
+					return t.next;
+
+				long next = t.add(doc.getChunkId(), doc.getChunkContent());
+				if (t.isDone())
+					transfers.remove(t.key, t);
+				return next;
+			}
+		}
+	}
+
+	private static Transfer transfer(File file, long size, long total, Long hash, long mtime) throws IOException {
+		String key = file.getAbsolutePath();
+		Transfer t = transfers.get(key);
+		if (t != null && t.isFor(size, total, hash)) {
+			t.lastUsed = System.currentTimeMillis();
+			return t;
+		}
+
+		synchronized (DocumentAssembler.class) {
+			t = transfers.get(key);
+			if (t != null && t.isFor(size, total, hash))
+				return t;
+			else if (t != null) {
+				// the document changed, its chunks are of no use
+				synchronized (t) {
+					t.close();
+					t.part.delete();
+				}
+				transfers.remove(key);
+			}
+
+			closeIdle();
+
+			t = new Transfer(key, file, size, total, hash, mtime);
+			if (!t.isDone())
+				transfers.put(key, t);
+			return t;
+		}
+	}
+
+	private static void closeIdle() {
+		long oldest = System.currentTimeMillis() - sIdleMsec;
+		for (Iterator<Transfer> it = transfers.values().iterator(); it.hasNext();) {
+			Transfer t = it.next();
+			if (t.lastUsed < oldest) {
+				logger.info("transfer of " + t.file.getName() + " is idle, closed at chunk " + t.next);
+				synchronized (t) {
+					t.close();
+				}
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * a document being received. Callers hold the lock.
+	 */
+	private static class Transfer {
+		String key;
+		File file;
+		File part;
+		long size;
+		long total;
+		Long hash;
+		long mtime;
+		long chunkSize;
+		long next;
+		long lastUsed = System.currentTimeMillis();
+		RandomAccessFile raf;
+		FileChannel out;
+		MessageDigest md = Manifest.digest();
+
+		// chunks written at or beyond next
+		BitSet ahead = new BitSet();
+
+		Transfer(String key, File file, long size, long total, Long hash, long mtime) throws IOException {
+			this.key = key;
+			this.file = file;
+			// the part file is hidden and named for the version so chunks of
+			// two versions of a document are never mixed
+			String version = size + "-" + total + ((hash != null) ? "-" + Long.toHexString(hash) : "");
+			this.part = new File(file.getParentFile(), "." + file.getName() + "." + version + ".part");
+			this.size = size;
+			this.total = total;
+			this.hash = hash;
+			this.mtime = mtime;
+			this.chunkSize = chunkSize(size, total);
+
+			if (file.exists()) {
+				Manifest.Entry e = (hash != null) ? Manifest.getInstance(file.getParentFile()).get(file.getName())
+						: null;
+				if (hash == null || (e != null && e.hash == hash.longValue())) {
+					logger.info("document " + file.getName() + " already exists");
+					next = total;
+					return;
+				}
+				logger.info("document " + file.getName() + " changed, replacing it");
+			}
+
+			File dir = file.getParentFile();
+			if (dir != null && !dir.exists())
+				dir.mkdirs();
+
+			// keep the chunks of an earlier attempt, all but the last sMaxAhead
+			// are known to have been written
+			raf = new RandomAccessFile(part, "rw");
+			out = raf.getChannel();
+			next = Math.max(0, Math.min(out.size() / chunkSize, total) - sMaxAhead);
+			out.truncate(next * chunkSize);
+			digest(0, next * chunkSize);
+			if (isDone())
+				complete();
+			else if (next > 0)
+				logger.info("resuming " + file.getName() + " at chunk " + next + " of " + total);
+		}
+
+		boolean isDone() {
+			return next >= total;
+		}
+
+		boolean isFor(long size, long total, Long hash) {
+			return this.size == size && this.total == total
+					&& (hash == null ? this.hash == null : hash.equals(this.hash));
+		}
+
+		long length(long id) {
+			return (id == total - 1) ? size - id * chunkSize : chunkSize;
+		}
+
+		/**
+		 * add written content to the digest, which is computed in order
+		 * 
+		 * @param from
+		 * @param len
+		 * @throws IOException
+		 */
+		private void digest(long from, long len) throws IOException {
+			ByteBuffer bb = ByteBuffer.allocate(65536);
+			for (long pos = from, end = from + len; pos < end;) {
+				bb.clear();
+				if (end - pos < bb.capacity())
+					bb.limit((int) (end - pos));
+				int n = out.read(bb, pos);
+				if (n <= 0)
+					throw new IOException(part + " was truncated");
+				pos += n;
+				bb.flip();
+				md.update(bb);
+			}
+		}
+
+		long add(long id, ByteString content) throws IOException {
+			lastUsed = System.currentTimeMillis();
+			if (isDone() || id < next)
+				return next;
+			else if (id >= total)
+				throw new IOException("Chunk " + id + " of " + file.getName() + " exceeds " + total);
+
+			else if (id >= next + sMaxAhead)
+				throw new IOException("Chunk " + id + " of " + file.getName() + " is too far ahead of " + next);
+
+			long expected = length(id);
+			if (content.size() != expected)
+				throw new IOException("Chunk " + id + " of " + file.getName() + " has " + content.size()
+						+ " bytes, expected " + expected);
+
+			int bit = (int) (id - next);
+			if (ahead.get(bit))
+				return next;
+
+			// the content goes from the message's buffer to the file, the
+			// channel copies it through a (cached) direct buffer
+			ByteBuffer bb = content.asReadOnlyByteBuffer();
+			long pos = id * chunkSize;
+			while (bb.hasRemaining())
+				pos += out.write(bb, pos);
+			ahead.set(bit);
+
+			// advance over the chunks now in order, those written earlier are
+			// read back (from the page cache) for the digest
+			if (bit == 0)
+				md.update(content.asReadOnlyByteBuffer());
+			int n = ahead.nextClearBit(0);
+			for (long c = next + 1; c < next + n; c++)
+				digest(c * chunkSize, length(c));
+			next += n;
+			ahead = ahead.get(n, Math.max(n, ahead.length()));
+
+			if (isDone())
+				complete();
+
+			return next;
+		}
+
+		private void complete() throws IOException {
+			out.force(false);
+			close();
+
+			long received = Manifest.toHash(md);
+			if (hash != null && hash.longValue() != received) {
+				part.delete();
+				next = 0;
+				transfers.remove(key, this);
+				throw new IOException("Content of " + file.getName() + " does not match its hash");
+			}
+
+			if (mtime > 0)
+				part.setLastModified(mtime);
+			if (!part.renameTo(file))
+				throw new IOException("Unable to rename " + part + " to " + file);
+			Manifest.getInstance(file.getParentFile()).put(file.getName(), received);
+
+			logger.info("received " + file.getName() + " (" + size + " bytes, " + total + " chunks)");
+		}
+
+		void close() {
+			ahead.clear();
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close " + part, e);
+			}
+			raf = null;
+			out = null;
+		}
+	}
+}
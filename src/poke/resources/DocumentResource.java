@@ -15,17 +15,12 @@
  */
 package poke.resources;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.protobuf.ByteString;
-
 import poke.server.Server;
 import poke.server.resources.Resource;
 import poke.server.resources.ResourceUtil;
@@ -36,76 +31,59 @@ import eye.Comm.Request;
 import eye.Comm.Response;
 import eye.Comm.Header.ReplyStatus;
 
+/**
+ * Adds documents. Documents arrive in chunks, which the DocumentAssembler
+ * writes to this server's directory; each reply reports the next chunk
+ * needed (chunkId) so the sender can keep a window of chunks in flight and
+ * resume after a failure.
+ * 
+ * @author gash
+ * 
+ */
 public class DocumentResource implements Resource {
 	protected static Logger logger = LoggerFactory.getLogger(DocumentResource.class);
 
 	@Override
 	public Response process(Request request) {
-		// TODO add code to process the message/event received
-		logger.info("poke: " + request.getBody().getFinger().getTag());
-		
+		ReplyStatus replyStatus = ReplyStatus.SUCCESS;
+		String statusMsg = null;
+
 		// reply payload
 		PayloadReply.Builder pb = PayloadReply.newBuilder();
-		Finger.Builder fb = Finger.newBuilder();
 
 		Document doc = request.getBody().getDoc();
-		eye.Comm.Document.Builder d = null;
-		ReplyStatus replyStatus = ReplyStatus.SUCCESS;
-		// Extract the document if any
-		if(doc != null)
-		{
-			String fileName = doc.getDocName();
-			ByteString fileContent = doc.getChunkContent();
-			if(fileName != null && fileContent != null && fileName.length() > 0 && !fileContent.isEmpty())
-			{
-				logger.info("coying file : "+fileName);
-				replyStatus = docAdd(fileName, fileContent);
+		if (!request.getBody().hasDoc() || doc.getDocName().length() == 0) {
+			replyStatus = ReplyStatus.MISSINGARG;
+			statusMsg = "Missing document";
+		} else {
+			Document.Builder d = Document.newBuilder();
+			d.setDocName(doc.getDocName());
+			try {
+				File dir = new File(Server.COMMON_LOCATION + Server.SERVER_NAME);
+				d.setChunkId(DocumentAssembler.receive(dir, doc));
+				if (doc.hasTotalChunk())
+					d.setTotalChunk(doc.getTotalChunk());
+			} catch (IOException e) {
+				logger.warn("Unable to add document " + doc.getDocName() + ": " + e.getMessage());
+				replyStatus = ReplyStatus.FAILURE;
+				statusMsg = e.getMessage();
 			}
-			d = eye.Comm.Document.newBuilder();
-			d.setDocName(fileName);
 			pb.addDocs(d.build());
 		}
-		
+
+		if (request.getBody().hasFinger()) {
+			Finger.Builder fb = Finger.newBuilder();
+			fb.setTag(request.getBody().getFinger().getTag());
+			fb.setNumber(request.getBody().getFinger().getNumber());
+			pb.setFinger(fb.build());
+		}
+
 		Response.Builder rb = Response.newBuilder();
 
 		// metadata
-		rb.setHeader(ResourceUtil.buildHeaderFrom(request.getHeader(), replyStatus, null));
-		
-		fb.setTag(request.getBody().getFinger().getTag());
-		fb.setNumber(request.getBody().getFinger().getNumber());
-		pb.setFinger(fb.build());
+		rb.setHeader(ResourceUtil.buildHeaderFrom(request.getHeader(), replyStatus, statusMsg));
 		rb.setBody(pb.build());
 
-		Response reply = rb.build();
-		
-		return reply;
-	}
-	
-	public ReplyStatus docAdd(String fileName, ByteString fileContent){
-		try {
-
-			String filePath = Server.COMMON_LOCATION+Server.SERVER_NAME+"/"+fileName;
-			if(new File(filePath).exists())
-			{
-				logger.info("File already exists ...so not copying. location : "+filePath);
-				return ReplyStatus.SUCCESS;
-			}
-			else
-			{
-				DataOutputStream dataOutputStream = new DataOutputStream(new FileOutputStream(new File(filePath)));
-				IOUtils.write(fileContent.toByteArray(), dataOutputStream);
-				IOUtils.closeQuietly(dataOutputStream);
-
-				logger.info("Copied transfered file ...fileName : "+fileName);
-				return ReplyStatus.SUCCESS;
-			}
-		} 
-		catch ( IOException e) 
-		{
-			System.err.println("An error occurred while copying the transferred file !!!");
-			e.printStackTrace();
-			return ReplyStatus.FAILURE;
-		}
+		return rb.build();
 	}
-
 }
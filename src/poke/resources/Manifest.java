@@ -0,0 +1,430 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.resources;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eye.Comm.Document;
+import eye.Comm.NameValueSet;
+import eye.Comm.NameValueSet.NodeType;
+
+/**
+ * The documents of a directory: name, size, modification time and a hash of
+ * the content. Servers compare manifests to find the documents a neighbor is
+ * missing (see DocumentSync).
+ * <p>
+ * Hashing is the expensive part, so hashes are kept in an index file
+ * (.manifest) in the directory and a document is only hashed again when its
+ * size or modification time changes. After a restart, refreshing the
+ * manifest of a large directory costs a directory listing.
+ * <p>
+ * To compare manifests without exchanging them, the documents are divided
+ * into buckets by name and each bucket is summarized by a digest of its
+ * entries (name, size and hash, not the time, which differs between copies).
+ * The digests form a two level Merkle tree: if the roots (all entries) match
+ * the manifests are the same, otherwise only the entries of buckets whose
+ * digests differ are compared.
+ * 
+ * @author gash
+ * 
+ */
+public class Manifest {
+	protected static Logger logger = LoggerFactory.getLogger(Manifest.class);
+
+	static final String sIndexFile = ".manifest";
+
+	// time a refresh is good for
+	static final int sRefreshMsec = 5000;
+
+	// a modified index is written at most this often
+	static final int sSaveMsec = 10000;
+
+	// entries per bucket the number of buckets aims for
+	static final int sBucketEntries = 64;
+	static final int sMaxBuckets = 4096;
+
+	private static ConcurrentHashMap<String, Manifest> manifests = new ConcurrentHashMap<String, Manifest>();
+
+	private File dir;
+	private ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private long refreshed;
+	private long saved;
+	private volatile boolean dirty;
+
+	public static Manifest getInstance(File dir) {
+		String key = dir.getAbsolutePath();
+		Manifest m = manifests.get(key);
+		if (m == null) {
+			m = new Manifest(dir);
+			Manifest prev = manifests.putIfAbsent(key, m);
+			if (prev != null)
+				m = prev;
+		}
+
+		return m;
+	}
+
+	protected Manifest(File dir) {
+		this.dir = dir;
+		load();
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * the entry of a document as it is on disk, null if it does not exist
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public Entry get(String name) {
+		File f = new File(dir, name);
+		if (!f.isFile()) {
+			if (entries.remove(name) != null)
+				dirty = true;
+			return null;
+		}
+
+		Entry e = entries.get(name);
+		if (e == null || e.size != f.length() || e.mtime != f.lastModified()) {
+			try {
+				e = new Entry(name, f.length(), f.lastModified(), hash(f));
+			} catch (IOException ex) {
+				logger.warn("Unable to hash " + f, ex);
+				return null;
+			}
+			entries.put(name, e);
+			dirty = true;
+		}
+
+		return e;
+	}
+
+	/**
+	 * add a document whose hash is known (e.g., computed as it was received)
+	 * 
+	 * @param name
+	 * @param hash
+	 */
+	public void put(String name, long hash) {
+		File f = new File(dir, name);
+		entries.put(name, new Entry(name, f.length(), f.lastModified(), hash));
+		dirty = true;
+
+		long now = System.currentTimeMillis();
+		if (now - saved > sSaveMsec)
+			save();
+	}
+
+	/**
+	 * bring the manifest up to date with the directory, unless that was done
+	 * within sRefreshMsec
+	 */
+	public synchronized void refresh() {
+		long now = System.currentTimeMillis();
+		if (now - refreshed < sRefreshMsec)
+			return;
+
+		File[] files = dir.listFiles();
+		Set<String> names = new HashSet<String>();
+		if (files != null) {
+			for (File f : files) {
+				if (isDocument(f) && get(f.getName()) != null)
+					names.add(f.getName());
+			}
+		}
+
+		if (entries.keySet().retainAll(names))
+			dirty = true;
+
+		refreshed = System.currentTimeMillis();
+		if (dirty)
+			save();
+
+		logger.info("manifest of " + dir + ": " + entries.size() + " documents (" + (refreshed - now) + " ms)");
+	}
+
+	/**
+	 * documents are the regular files of the directory, other than hidden
+	 * files and partly received documents
+	 * 
+	 * @param f
+	 * @return
+	 */
+	public static boolean isDocument(File f) {
+		String n = f.getName();
+		return !n.startsWith(".") && !n.endsWith(".part") && f.isFile();
+	}
+
+	/**
+	 * the number of buckets to summarize a manifest of n entries with
+	 * 
+	 * @param n
+	 * @return
+	 */
+	public static int buckets(int n) {
+		int b = 1;
+		while (b < sMaxBuckets && b * sBucketEntries < n)
+			b <<= 1;
+		return b;
+	}
+
+	public static int bucketOf(String name, int buckets) {
+		return (int) (mix(fnv(name)) & (buckets - 1));
+	}
+
+	/**
+	 * the digest of each bucket, the root is the XOR of them
+	 * 
+	 * @param buckets
+	 *            A power of two
+	 * @return
+	 */
+	public long[] digests(int buckets) {
+		long[] d = new long[buckets];
+		for (Entry e : entries.values())
+			d[bucketOf(e.name, buckets)] ^= e.fingerprint();
+		return d;
+	}
+
+	public int[] counts(int buckets) {
+		int[] c = new int[buckets];
+		for (Entry e : entries.values())
+			c[bucketOf(e.name, buckets)]++;
+		return c;
+	}
+
+	public List<Entry> bucket(int bucket, int buckets) {
+		List<Entry> rtn = new ArrayList<Entry>();
+		for (Entry e : entries.values()) {
+			if (bucketOf(e.name, buckets) == bucket)
+				rtn.add(e);
+		}
+		return rtn;
+	}
+
+	public static long root(long[] digests) {
+		long r = 0;
+		for (long d : digests)
+			r ^= d;
+		return r;
+	}
+
+	private void load() {
+		File idx = new File(dir, sIndexFile);
+		if (!idx.exists())
+			return;
+
+		BufferedReader rdr = null;
+		try {
+			rdr = new BufferedReader(new FileReader(idx));
+			String line;
+			while ((line = rdr.readLine()) != null) {
+				// hash size mtime name
+				String[] parts = line.split("\t", 4);
+				if (parts.length != 4)
+					continue;
+				Entry e = new Entry(parts[3], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+						Long.parseLong(parts[0]));
+				entries.put(e.name, e);
+			}
+		} catch (Exception e) {
+			logger.warn("Unable to read " + idx + ", documents will be hashed", e);
+			entries.clear();
+		} finally {
+			try {
+				if (rdr != null)
+					rdr.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private synchronized void save() {
+		if (!dir.exists())
+			return;
+
+		dirty = false;
+		saved = System.currentTimeMillis();
+
+		File idx = new File(dir, sIndexFile);
+		File tmp = new File(dir, sIndexFile + ".tmp");
+		BufferedWriter w = null;
+		try {
+			w = new BufferedWriter(new FileWriter(tmp));
+			for (Entry e : entries.values()) {
+				w.write(e.hash + "\t" + e.size + "\t" + e.mtime + "\t" + e.name);
+				w.newLine();
+			}
+			w.close();
+			w = null;
+
+			if (!tmp.renameTo(idx))
+				logger.warn("Unable to replace " + idx);
+		} catch (IOException e) {
+			logger.warn("Unable to write " + idx, e);
+			dirty = true;
+		} finally {
+			try {
+				if (w != null)
+					w.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * the digest used for document content
+	 * 
+	 * @return
+	 */
+	public static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * the hash of a document (the first 8 bytes of its digest)
+	 * 
+	 * @param md
+	 * @return
+	 */
+	public static long toHash(MessageDigest md) {
+		return ByteBuffer.wrap(md.digest()).getLong();
+	}
+
+	public static long hash(File f) throws IOException {
+		MessageDigest md = digest();
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel fc = in.getChannel();
+			ByteBuffer bb = ByteBuffer.allocate(65536);
+			while (fc.read(bb) > 0) {
+				bb.flip();
+				md.update(bb);
+				bb.clear();
+			}
+		} finally {
+			in.close();
+		}
+
+		return toHash(md);
+	}
+
+	private static long fnv(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0, I = s.length(); i < I; i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * the modification time carried by a document, 0 if it has none
+	 * 
+	 * @param doc
+	 * @return
+	 */
+	public static long mtimeOf(Document doc) {
+		if (doc.hasDocument() && "mtime".equals(doc.getDocument().getName())) {
+			try {
+				return Long.parseLong(doc.getDocument().getValue());
+			} catch (NumberFormatException e) {
+			}
+		}
+		return 0;
+	}
+
+	public static NameValueSet mtime(long mtime) {
+		NameValueSet.Builder nv = NameValueSet.newBuilder();
+		nv.setNodeType(NodeType.VALUE);
+		nv.setName("mtime");
+		nv.setValue(Long.toString(mtime));
+		return nv.build();
+	}
+
+	/**
+	 * A document of the manifest. As a Document (the manifest is exchanged as
+	 * Documents) the hash is the id and the time is the "mtime" value.
+	 */
+	public static class Entry {
+		public final String name;
+		public final long size;
+		public final long mtime;
+		public final long hash;
+
+		public Entry(String name, long size, long mtime, long hash) {
+			this.name = name;
+			this.size = size;
+			this.mtime = mtime;
+			this.hash = hash;
+		}
+
+		public Entry(Document doc) {
+			this(doc.getDocName(), doc.getDocSize(), mtimeOf(doc), doc.getId());
+		}
+
+		public Document toDocument() {
+			Document.Builder d = Document.newBuilder();
+			d.setDocName(name);
+			d.setDocSize(size);
+			d.setId(hash);
+			d.setDocument(mtime(mtime));
+			return d.build();
+		}
+
+		long fingerprint() {
+			return mix(mix(fnv(name) ^ size) ^ hash);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.resources;
+
+import java.io.File;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.server.Server;
+import poke.server.resources.Resource;
+import poke.server.resources.ResourceUtil;
+import poke.server.storage.Storage;
+import eye.Comm.Document;
+import eye.Comm.Header.ReplyStatus;
+import eye.Comm.PayloadReply;
+import eye.Comm.Request;
+import eye.Comm.Response;
+
+/**
+ * Answers questions about this server's documents (DOCFIND) from its
+ * Manifest:
+ * <ol>
+ * <li>a Document without a chunkId asks for the summary. The reply has a
+ * Document for each bucket (chunkId is the bucket, totalChunk the number of
+ * buckets, id the bucket's digest, docSize its entries) and, as the stats, the
+ * root digest (id) and the number of documents (docSize).
+ * <li>a Document with a chunkId (bucket) and totalChunk (buckets) asks for the
+ * entries of the bucket. The reply has a Document for each entry (see
+ * Manifest.Entry).
+ * <li>a Document with a docName (and no chunkId) asks for the document's
+ * entry. The reply has the entry, or no Document if the server does not have
+ * the document.
+ * </ol>
+ * A request with a NameSpace (space) is not about files but asks the
+ * server's storage (see Server.getStorage) for the documents of the
+ * namespace that meet the Document (see DocumentQuery). The reply has the
+ * documents found.
+ * 
+ * @author gash
+ * 
+ */
+public class ManifestResource implements Resource {
+	protected static Logger logger = LoggerFactory.getLogger(ManifestResource.class);
+
+	@Override
+	public Response process(Request request) {
+		if (request.getBody().hasSpace())
+			return find(request);
+
+		Manifest m = Manifest.getInstance(new File(Server.COMMON_LOCATION + Server.SERVER_NAME));
+		m.refresh();
+
+		PayloadReply.Builder pb = PayloadReply.newBuilder();
+		Document q = request.getBody().getDoc();
+		if (q.hasChunkId()) {
+			int buckets = (int) q.getTotalChunk();
+			if (buckets < 1 || Integer.bitCount(buckets) != 1 || q.getChunkId() < 0 || q.getChunkId() >= buckets)
+				return ResourceUtil.buildError(request.getHeader(), ReplyStatus.MISSINGARG, "Invalid bucket "
+						+ q.getChunkId() + " of " + q.getTotalChunk());
+
+			for (Manifest.Entry e : m.bucket((int) q.getChunkId(), buckets))
+				pb.addDocs(e.toDocument());
+		} else if (q.getDocName().length() > 0) {
+			String name = q.getDocName();
+			if (name.indexOf('/') != -1 || name.indexOf('\\') != -1 || name.startsWith("."))
+				return ResourceUtil.buildError(request.getHeader(), ReplyStatus.MISSINGARG, "Invalid document name "
+						+ name);
+
+			Manifest.Entry e = m.get(name);
+			if (e != null)
+				pb.addDocs(e.toDocument());
+		} else {
+			int buckets = Manifest.buckets(m.size());
+			long[] digests = m.digests(buckets);
+			int[] counts = m.counts(buckets);
+
+			for (int i = 0; i < buckets; i++) {
+				Document.Builder d = Document.newBuilder();
+				d.setChunkId(i);
+				d.setTotalChunk(buckets);
+				d.setId(digests[i]);
+				d.setDocSize(counts[i]);
+				pb.addDocs(d.build());
+			}
+
+			Document.Builder stats = Document.newBuilder();
+			stats.setTotalChunk(buckets);
+			stats.setId(Manifest.root(digests));
+			stats.setDocSize(m.size());
+			pb.setStats(stats.build());
+		}
+
+		Response.Builder rb = Response.newBuilder();
+		rb.setHeader(ResourceUtil.buildHeaderFrom(request.getHeader(), ReplyStatus.SUCCESS, null));
+		rb.setBody(pb.build());
+		return rb.build();
+	}
+
+	/**
+	 * the documents of a namespace of the storage that meet the criteria
+	 */
+	private Response find(Request request) {
+		Storage storage = Server.getStorage();
+		if (storage == null)
+			return ResourceUtil.buildError(request.getHeader(), ReplyStatus.FAILURE, "No storage");
+
+		String namespace = request.getBody().getSpace().getName();
+		Document criteria = request.getBody().hasDoc() ? request.getBody().getDoc() : null;
+		List<Document> docs = storage.findDocuments(namespace, criteria);
+		if (docs == null)
+			return ResourceUtil.buildError(request.getHeader(), ReplyStatus.MISSINGARG, "Unknown namespace "
+					+ namespace);
+
+		PayloadReply.Builder pb = PayloadReply.newBuilder();
+		pb.addAllDocs(docs);
+
+		Response.Builder rb = Response.newBuilder();
+		rb.setHeader(ResourceUtil.buildHeaderFrom(request.getHeader(), ReplyStatus.SUCCESS, null));
+		rb.setBody(pb.build());
+		return rb.build();
+	}
+}
@@ -16,19 +16,16 @@
 package poke.server;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.io.IOUtils;
 import org.jboss.netty.bootstrap.Bootstrap;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.AdaptiveReceiveBufferSizePredictorFactory;
@@ -41,11 +38,11 @@ import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.protobuf.ByteString;
-
 import poke.client.ClientConnection;
 import poke.client.ClientListener;
 import poke.client.ClientPrintListener;
+import poke.client.DocumentSync;
+import poke.resources.Manifest;
 import poke.server.conf.JsonUtil;
 import poke.server.conf.NodeDesc;
 import poke.server.conf.ServerConf;
@@ -54,8 +51,15 @@ import poke.server.management.HeartbeatConnector;
 import poke.server.management.HeartbeatManager;
 import poke.server.management.ManagementDecoderPipeline;
 import poke.server.management.ManagementQueue;
+import poke.server.management.TopologyManager;
+import poke.server.queue.QueueFactory;
 import poke.server.resources.ResourceFactory;
+import poke.server.routing.Partitioner;
+import poke.server.routing.Replicator;
 import poke.server.routing.ServerDecoderPipeline;
+import poke.server.storage.KeyGenerator;
+import poke.server.storage.LogStorage;
+import poke.server.storage.Storage;
 
 /**
  * Note high surges of messages can close down the channel if the handler cannot
@@ -77,6 +81,7 @@ public class Server {
 	protected ChannelFactory cf, mgmtCF;
 	protected ServerConf conf;
 	protected HeartbeatManager hbMgr;
+	protected static Storage storage;
 	
 	public static String COMMON_LOCATION = "/Users/amrita/Documents/";
 	public static String SERVER_NAME;
@@ -89,6 +94,13 @@ public class Server {
 	 */
 	public static void shutdown() {
 		try {
+			TopologyManager tm = TopologyManager.getInstance();
+			if (tm != null)
+				tm.leave();
+
+			if (storage != null)
+				storage.release();
+
 			ChannelGroupFuture grp = allChannels.close();
 			grp.awaitUninterruptibly(5, TimeUnit.SECONDS);
 			for (Bootstrap bs : bootstrap.values())
@@ -122,6 +134,7 @@ public class Server {
 			br.read(raw);
 			conf = JsonUtil.decode(new String(raw), ServerConf.class);
 			ResourceFactory.initialize(conf);
+			QueueFactory.initialize(conf);
 		} catch (Exception e) {
 		}
 
@@ -141,6 +154,48 @@ public class Server {
 	public void release() {
 		if (hbMgr != null)
 			hbMgr.release();
+		if (Partitioner.getInstance() != null)
+			Partitioner.getInstance().release();
+		if (Replicator.getInstance() != null)
+			Replicator.getInstance().release();
+		if (storage != null)
+			storage.release();
+	}
+
+	/**
+	 * the server's storage (the class named by the conf's storage property)
+	 * 
+	 * @return null if the conf names none
+	 */
+	public static Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * create the storage the conf names, initialized with the conf's (general)
+	 * properties. A storage that keeps files (storage.dir) defaults to a
+	 * directory next to the server's documents.
+	 */
+	private void createStorage() {
+		String clazz = conf.getServer().getProperty("storage");
+		if (clazz == null) {
+			logger.warn("configuration contains no storage");
+			return;
+		}
+
+		Properties props = new Properties();
+		props.putAll(conf.getServer().getGeneral());
+		if (!props.containsKey(LogStorage.sDir))
+			props.setProperty(LogStorage.sDir, COMMON_LOCATION + SERVER_NAME + ".storage");
+
+		try {
+			Storage s = (Storage) Class.forName(clazz.trim()).newInstance();
+			s.init(props);
+			storage = s;
+			logger.info("storage: " + clazz);
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to create storage " + clazz, e);
+		}
 	}
 
 	/**
@@ -175,37 +230,48 @@ public class Server {
 		logger.info("Starting server, listening on port = " + port);
 	}
 	
-	public void transferFile(ClientConnection cc, String serverName){
-		try{
-			logger.info("Bootup copy....");
-			
-			// Get all the files in current server
-			for(File file : new File(COMMON_LOCATION+serverName).listFiles())
-			{
-				// To ignore system files
-				if(file.getName().startsWith("."))
-				{
-					continue;
-				}
-				
-				logger.info("Copying file : "+file.getAbsolutePath()+" to host : "+cc.getHost()+", port : "+cc.getPort());
-				
-				DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
-				// Content of the file in byteArrayOutputStream
-				ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-				IOUtils.copy(inputStream, byteArrayOutputStream);
-				ByteString fileContent = ByteString.copyFrom(byteArrayOutputStream.toByteArray());
-				
-				cc.sendFile(file.getName(), fileContent);
-				
-				IOUtils.closeQuietly(inputStream);
-				IOUtils.closeQuietly(byteArrayOutputStream);
-			}
-		}
-		catch(IOException e){
-			System.err.println("An error occured file sending the file !!!");
-			e.printStackTrace();
+	/**
+	 * bring a neighbor up to date with this server's documents. Only the
+	 * documents the neighbor is missing or has an older version of are sent
+	 * (DocumentSync), by a thread of their own.
+	 * 
+	 * @param cc
+	 * @param serverName
+	 */
+	public void transferFile(final ClientConnection cc, String serverName) {
+		transferFile(cc, serverName, null);
+	}
+
+	/**
+	 * bring a neighbor up to date with the documents it owns, if the
+	 * documents are partitioned (see Partitioner)
+	 * 
+	 * @param cc
+	 * @param serverName
+	 * @param neighborId
+	 *            The neighbor's node id, null sends every document
+	 */
+	public void transferFile(final ClientConnection cc, String serverName, String neighborId) {
+		final File dir = new File(COMMON_LOCATION + serverName);
+		if (!dir.isDirectory()) {
+			logger.info("No documents to copy from " + dir);
+			return;
 		}
+
+		final Partitioner pt = (neighborId != null) ? Partitioner.getInstance() : null;
+
+		Thread th = new Thread("transfer-" + cc.getHost() + ":" + cc.getPort()) {
+			@Override
+			public void run() {
+				logger.info("Bootup copy....");
+				DocumentSync sync = new DocumentSync(cc, Manifest.getInstance(dir));
+				if (pt != null)
+					sync.setFilter(pt.ownedBy(neighborId));
+				sync.sync();
+			}
+		};
+		th.setDaemon(true);
+		th.start();
 	}
 
 	/**
@@ -257,16 +323,24 @@ public class Server {
 		str = conf.getServer().getProperty("port.mgmt");
 		int mport = Integer.parseInt(str);
 
-		// storage initialization
-		// TODO storage setup (e.g., connection to a database)
+		// storage initialization, keys are unique to this node
+		KeyGenerator.getInstance(conf.getServer().getProperty("node.id"));
+		createStorage();
+
+		// divide the documents among the servers (partition.nodes), before
+		// requests arrive
+		Partitioner pt = Partitioner.getInstance(conf, new File(COMMON_LOCATION + SERVER_NAME));
+
+		// keep each document on its owners (partition.replicas) with quorums
+		Replicator.getInstance(conf, pt, new File(COMMON_LOCATION + SERVER_NAME));
+
+		// start management - before the management port accepts messages
+		ManagementQueue.startup(conf.getServer());
 
 		// start communication
 		createPublicBoot(port);
 		createManagementBoot(mport);
 
-		// start management
-		ManagementQueue.startup();
-
 		// establish nearest nodes and start receiving heartbeats
 		str = conf.getServer().getProperty("node.id");
 		hbMgr = HeartbeatManager.getInstance(str);
@@ -280,13 +354,19 @@ public class Server {
 		HeartbeatConnector conn = HeartbeatConnector.getInstance();
 		conn.start();
 
+		// learn the cluster's topology (link-state) over the management
+		// connections
+		TopologyManager.getInstance(str, conf.getNearest()).start();
+		if (pt != null)
+			pt.start();
+
 		// manage neighbor doc transfer connections
 		createNeighborConn();
 		
 		logger.info(SERVER_NAME+" is ready");
 	}
 
-	private void addNeighborToMap(String neighborHostname, int neighborPort, String serverName){
+	private void addNeighborToMap(String neighborHostname, int neighborPort, String serverName, String neighborId){
 		ClientConnection cc = ClientConnection.initConnection(neighborHostname, neighborPort);
 		if(cc != null){
 			logger.info("Connecting to neighborHostname : "+neighborHostname+", neighborPort : "+neighborPort);
@@ -300,7 +380,7 @@ public class Server {
 			}
 
 			// Transfer file using protobuf
-			transferFile(cc, serverName);
+			transferFile(cc, serverName, neighborId);
 		}
 		
 		neighborToCcMap.put(neighborHostname+":"+neighborPort, cc);
@@ -314,7 +394,7 @@ public class Server {
 			// Neighbor port
 			int neighborPort = nn.getPort();
 			
-			addNeighborToMap(neighborHostname, neighborPort, SERVER_NAME);
+			addNeighborToMap(neighborHostname, neighborPort, SERVER_NAME, nn.getNodeId());
 		}
 
 		// Thread to handle Copying all my files to neighbours
@@ -333,7 +413,7 @@ public class Server {
 							
 							if(neighborToCcMap.get(neighborKey) == null)
 							{
-								addNeighborToMap(neighborHostname, neighborPort, SERVER_NAME);
+								addNeighborToMap(neighborHostname, neighborPort, SERVER_NAME, nn.getNodeId());
 							}
 						}
 					} catch (InterruptedException e) {
@@ -192,7 +192,9 @@ public class ServerConf {
 		private int id;
 		private String name;
 		private String clazz;
-		private boolean enabled;
+		private boolean enabled = true;
+		private String strategy;
+		private int poolSize;
 
 		public ResourceConf() {
 		}
@@ -227,6 +229,12 @@ public class ServerConf {
 			this.clazz = clazz;
 		}
 
+		/**
+		 * a disabled entry is not routed to (requests fail). Entries are
+		 * enabled unless the conf says otherwise.
+		 * 
+		 * @return
+		 */
 		public boolean isEnabled() {
 			return enabled;
 		}
@@ -234,5 +242,32 @@ public class ServerConf {
 		public void setEnabled(boolean enabled) {
 			this.enabled = enabled;
 		}
+
+		/**
+		 * how instances are managed: request (default), pool, fixed or
+		 * singleton. See ResourceStrategy.
+		 * 
+		 * @return
+		 */
+		public String getStrategy() {
+			return strategy;
+		}
+
+		public void setStrategy(String strategy) {
+			this.strategy = strategy;
+		}
+
+		/**
+		 * the size of a fixed pool, or the idle instances kept by a pool
+		 * 
+		 * @return
+		 */
+		public int getPoolSize() {
+			return poolSize;
+		}
+
+		public void setPoolSize(int poolSize) {
+			this.poolSize = poolSize;
+		}
 	}
 }
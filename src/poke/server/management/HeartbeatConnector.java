@@ -18,6 +18,7 @@ package poke.server.management;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.jboss.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -89,12 +90,21 @@ public class HeartbeatConnector extends Thread {
 					if (!hb.isConnected()) {
 						try {
 							logger.info("attempting to connect to node: " + hb.getNodeInfo());
-							hb.initiateHeartbeat();
+							if (hb.initiateHeartbeat()) {
+								// the connection is the node's edge (status)
+								Channel ch = hb.getChannel();
+								if (ch != null)
+									HeartbeatManager.getInstance().addNearestNodeChannel(hb.getHandler().getNodeId(),
+											ch, ch.getRemoteAddress());
+							}
 						} catch (Exception ie) {
 							// do nothing
 						}
 					}
 				}
+
+				// update the status (health) of the connections
+				validateConnection();
 			} catch (InterruptedException e) {
 				logger.error("Unexpected HB connector failure", e);
 				break;
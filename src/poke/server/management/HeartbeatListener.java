@@ -54,7 +54,10 @@ public class HeartbeatListener implements MonitorListener {
 			logger.debug(msg.getBeat().getNodeId());
 
 		if (msg.hasGraph()) {
-			logger.info("Received graph responses");
+			// link-state announcements flooded to us by the node we monitor
+			TopologyManager tm = TopologyManager.getInstance();
+			if (tm != null)
+				tm.onNetwork(msg.getGraph(), data.getChannel());
 		} else if (msg.hasBeat() && msg.getBeat().getNodeId().equals(data.getNodeId())) {
 			logger.info("Received HB response from " + msg.getBeat().getNodeId());
 			data.setLastBeat(System.currentTimeMillis());
@@ -16,6 +16,8 @@
 package poke.server.management;
 
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -84,6 +86,38 @@ public class HeartbeatManager extends Thread {
 	public void initNetwork(NearestConf edges) {
 	}
 
+	/**
+	 * the heartbeat status of a node we monitor (a nearest node)
+	 * 
+	 * @param nodeId
+	 * @return null if the node is not monitored
+	 */
+	public HeartbeatData getNearestNode(String nodeId) {
+		return incomingHB.get(nodeId);
+	}
+
+	/**
+	 * the open management connections, both those we made to monitor our
+	 * nearest nodes and those made to us
+	 * 
+	 * @return
+	 */
+	public List<Channel> getManagementChannels() {
+		List<Channel> rtn = new ArrayList<Channel>();
+		for (HeartbeatData hd : incomingHB.values()) {
+			Channel ch = hd.getChannel();
+			if (ch != null && ch.isOpen())
+				rtn.add(ch);
+		}
+
+		for (Channel ch : outgoingHB.keySet()) {
+			if (ch.isOpen())
+				rtn.add(ch);
+		}
+
+		return rtn;
+	}
+
 	/**
 	 * update information on a node we monitor
 	 * 
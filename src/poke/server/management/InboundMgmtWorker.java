@@ -67,6 +67,7 @@ public class InboundMgmtWorker extends Thread {
 			try {
 				// block until a message is enqueued
 				ManagementQueueEntry msg = ManagementQueue.inbound.take();
+				ManagementQueue.resumeSuspended();
 				logger.info("Inbound message received");
 				Management req = (Management) msg.req;
 				if (req.hasBeat()) {
@@ -101,14 +102,15 @@ public class InboundMgmtWorker extends Thread {
 							}
 						} else
 							logger.warn(n.getNodeId() + " not writable");
-					} else if (n.getAction().getNumber() == Action.NODEDEAD_VALUE) {
-						// hbMgr failure - node is considered dead
-					} else if (n.getAction().getNumber() == Action.NODELEAVE_VALUE) {
-						// not left network gracefully
-					} else if (n.getAction().getNumber() == Action.ANNOUNCE_VALUE) {
-						// nodes sending their info
-					} else if (n.getAction().getNumber() == Action.MAP_VALUE) {
-						// request to send annoucements
+					} else if (n.getAction().getNumber() == Action.NODEDEAD_VALUE
+							|| n.getAction().getNumber() == Action.NODELEAVE_VALUE
+							|| n.getAction().getNumber() == Action.ANNOUNCE_VALUE
+							|| n.getAction().getNumber() == Action.MAP_VALUE) {
+						// link-state: a node left or died, a node's adjacency
+						// or a request to send the announcements we hold
+						TopologyManager tm = TopologyManager.getInstance();
+						if (tm != null)
+							tm.onNetwork(n, msg.channel);
 					}
 
 					// may want to reply to exchange information
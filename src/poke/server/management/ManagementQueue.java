@@ -16,12 +16,18 @@
 package poke.server.management;
 
 import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import org.jboss.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import poke.server.conf.ServerConf.GeneralConf;
+import poke.server.queue.QueueLimit;
+import poke.server.queue.QueueLimit.Policy;
 import eye.Comm.Management;
 
 /**
@@ -33,6 +39,10 @@ import eye.Comm.Management;
 public class ManagementQueue {
 	protected static Logger logger = LoggerFactory.getLogger(ManagementQueue.class);
 
+	public static final String sQueue = "mgmt.queue";
+	public static final int sCapacityDefault = 1024;
+
+	protected static QueueLimit limit = new QueueLimit(sQueue, sCapacityDefault, Policy.Suspend);
 	protected static LinkedBlockingDeque<ManagementQueueEntry> inbound = new LinkedBlockingDeque<ManagementQueueEntry>();
 	protected static LinkedBlockingDeque<ManagementQueueEntry> outbound = new LinkedBlockingDeque<ManagementQueueEntry>();
 
@@ -40,14 +50,37 @@ public class ManagementQueue {
 	private static OutboundMgmtWorker oworker;
 	private static InboundMgmtWorker iworker;
 
+	// channels not read from until the inbound queue drains
+	private static Set<Channel> suspended = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+
 	// not the best method to ensure uniqueness
 	private static ThreadGroup tgroup = new ThreadGroup("ManagementQueue-"
 			+ System.nanoTime());
 
 	public static void startup() {
+		startup(null);
+	}
+
+	/**
+	 * @param conf
+	 *            The capacity and overload policy of the inbound queue
+	 *            ("mgmt.queue.capacity", "mgmt.queue.overload"). Management
+	 *            messages are not answered, so the reject policy discards the
+	 *            new message.
+	 */
+	public static void startup(GeneralConf conf) {
 		if (iworker != null)
 			return;
 
+		if (conf != null) {
+			limit = QueueLimit.fromConf(sQueue, conf, sCapacityDefault);
+
+			// when suspending, reads stop at the capacity (see QueueLimit)
+			int capacity = (limit.getPolicy() == Policy.Suspend) ? Integer.MAX_VALUE : limit.getCapacity();
+			inbound = new LinkedBlockingDeque<ManagementQueueEntry>(capacity);
+		}
+		logger.info("Management queue: " + limit);
+
 		iworker = new InboundMgmtWorker(tgroup, 1);
 		iworker.start();
 		oworker = new OutboundMgmtWorker(tgroup, 1);
@@ -60,14 +93,47 @@ public class ManagementQueue {
 
 	public static void enqueueRequest(Management req, Channel ch,
 			SocketAddress sa) {
-		try {
-			ManagementQueueEntry entry = new ManagementQueueEntry(req, ch, sa);
-			inbound.put(entry);
-		} catch (InterruptedException e) {
-			logger.error("message not enqueued for processing", e);
+		ManagementQueueEntry entry = new ManagementQueueEntry(req, ch, sa);
+		if (limit.getPolicy() == Policy.Suspend) {
+			inbound.offerLast(entry);
+			if (inbound.size() >= limit.getCapacity())
+				suspend(ch);
+		} else if (!inbound.offerLast(entry)) {
+			if (limit.getPolicy() == Policy.DropOldest) {
+				while (!inbound.offerLast(entry)) {
+					if (inbound.pollFirst() != null)
+						limit.drop();
+				}
+			} else {
+				// there is no reply to a management message
+				limit.reject();
+			}
 		}
 	}
 
+	private static void suspend(Channel ch) {
+		if (ch != null && suspended.add(ch))
+			limit.suspend(ch);
+	}
+
+	/**
+	 * resume reading from the suspended channels once the backlog has been
+	 * worked down. Called by the inbound worker.
+	 */
+	static void resumeSuspended() {
+		if (suspended.isEmpty() || inbound.size() > limit.getLowWater())
+			return;
+
+		for (Channel ch : suspended) {
+			if (suspended.remove(ch))
+				limit.resume(ch);
+		}
+	}
+
+	public static QueueLimit getLimit() {
+		return limit;
+	}
+
 	public static void enqueueResponse(Management reply, Channel ch) {
 		try {
 			ManagementQueueEntry entry = new ManagementQueueEntry(reply, ch,
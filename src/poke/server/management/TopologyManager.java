@@ -0,0 +1,466 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.management;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.server.conf.NodeDesc;
+import poke.server.conf.ServerConf.NearestConf;
+import poke.server.management.HeartbeatData.BeatStatus;
+import eye.Comm.Management;
+import eye.Comm.Network;
+import eye.Comm.Network.Action;
+
+/**
+ * Link-state view of the cluster. Each server announces its adjacencies (the
+ * nearest nodes it can reach) to the cluster; every server collects the
+ * announcements into a graph and computes, from the graph, the neighbor to
+ * pass a request to for each destination (next hop).
+ * <p>
+ * Announcements are flooded over the management connections (both the ones we
+ * make to monitor our nearest nodes and the ones made to us). A server that
+ * receives an announcement newer than the one it holds keeps it and passes it
+ * on to all its other management connections, older or repeated announcements
+ * are dropped, so each announcement crosses each connection at most twice.
+ * <p>
+ * The Network message only carries a node id and an action, so the
+ * announcement is encoded in the node id:
+ * 
+ * <pre>
+ * ANNOUNCE   origin;seq;neighbor,neighbor,...
+ * NODELEAVE  origin;seq       the origin is leaving (its announcement is withdrawn)
+ * NODEDEAD   origin;seq       same, reported by another node
+ * MAP        requester        reply with all announcements held
+ * </pre>
+ * 
+ * Node ids must not contain ';' or ','. The sequence number only increases
+ * (it starts from the clock so a restarted server's announcements are newer).
+ * Servers re-announce every sRefreshMsec; announcements not refreshed within
+ * sMaxAgeMsec are dropped, which removes servers that died silently.
+ * <p>
+ * Routes are recomputed only when an adjacency actually changes (a refresh
+ * with the same neighbors does not count), and lazily, on the first lookup
+ * after the change. The computation is a breadth first search from this server
+ * (all links cost one hop), O(nodes + links), and keeps every neighbor that
+ * starts a shortest path so the forwarding engine can balance between them.
+ * Lookups read an immutable table and do not lock.
+ * 
+ * @author gash
+ * 
+ */
+public class TopologyManager extends Thread {
+	protected static Logger logger = LoggerFactory.getLogger(TopologyManager.class);
+	protected static AtomicReference<TopologyManager> instance = new AtomicReference<TopologyManager>();
+
+	// how often our adjacency is checked
+	static final int sCheckMsec = 2000;
+
+	// how often our adjacency is announced if it has not changed
+	static final int sRefreshMsec = 30000;
+
+	// announcements older than this are dropped
+	static final int sMaxAgeMsec = 3 * sRefreshMsec + sCheckMsec;
+
+	// time a leaving server waits for its NODELEAVE to be written
+	static final int sLeaveMsec = 2000;
+
+	private String nodeId;
+	private NearestConf nearest;
+	private boolean forever = true;
+
+	// announcements by origin, guarded by this
+	private Map<String, LinkState> states = new HashMap<String, LinkState>();
+
+	// origins that left (or are dead) and the sequence they left with
+	private Map<String, Long> withdrawn = new HashMap<String, Long>();
+
+	private long seq = System.currentTimeMillis();
+	private long lastAnnounce;
+	private int lastLinks;
+
+	// destination to the neighbors that start a shortest path to it
+	private volatile Map<String, Set<String>> routes = Collections.emptyMap();
+	private volatile boolean dirty = true;
+
+	public static TopologyManager getInstance(String nodeId, NearestConf nearest) {
+		if (instance.get() == null)
+			instance.compareAndSet(null, new TopologyManager(nodeId, nearest));
+		return instance.get();
+	}
+
+	public static TopologyManager getInstance() {
+		return instance.get();
+	}
+
+	protected TopologyManager(String nodeId, NearestConf nearest) {
+		super("topology");
+		setDaemon(true);
+		this.nodeId = nodeId;
+		this.nearest = nearest;
+	}
+
+	/**
+	 * the neighbors that start a shortest path to the node
+	 * 
+	 * @param toNode
+	 * @return empty if the node is not known (no route)
+	 */
+	public Set<String> nextHops(String toNode) {
+		if (dirty)
+			computeRoutes();
+
+		Set<String> hops = routes.get(toNode);
+		if (hops == null)
+			return Collections.emptySet();
+		return hops;
+	}
+
+	/**
+	 * the nodes this server has a route to
+	 * 
+	 * @return
+	 */
+	public Set<String> getReachable() {
+		if (dirty)
+			computeRoutes();
+
+		return routes.keySet();
+	}
+
+	/**
+	 * a Network message from a neighbor (graph)
+	 * 
+	 * @param n
+	 * @param from
+	 *            The connection it arrived on, null if not known
+	 */
+	public void onNetwork(Network n, Channel from) {
+		switch (n.getAction()) {
+		case ANNOUNCE:
+			LinkState ls = LinkState.decode(n.getNodeId());
+			if (ls == null)
+				logger.warn("malformed announcement: " + n.getNodeId());
+			else if (accept(ls))
+				flood(toMessage(Action.ANNOUNCE, n.getNodeId()), from);
+			break;
+		case NODEDEAD:
+		case NODELEAVE:
+			String[] parts = n.getNodeId().split(";");
+			try {
+				if (parts.length == 2 && withdraw(parts[0], Long.parseLong(parts[1])))
+					flood(toMessage(n.getAction(), n.getNodeId()), from);
+			} catch (NumberFormatException e) {
+				logger.warn("malformed " + n.getAction() + ": " + n.getNodeId());
+			}
+			break;
+		case MAP:
+			if (from != null)
+				sendAll(from);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * tell the cluster this server is leaving, waiting (up to sLeaveMsec) for
+	 * the announcement to be written so closing the channels does not lose it
+	 */
+	public void leave() {
+		long s;
+		synchronized (this) {
+			s = ++seq;
+		}
+
+		long until = System.currentTimeMillis() + sLeaveMsec;
+		for (ChannelFuture f : flood(toMessage(Action.NODELEAVE, nodeId + ";" + s), null)) {
+			long left = until - System.currentTimeMillis();
+			if (left <= 0 || !f.awaitUninterruptibly(left)) {
+				logger.warn("NODELEAVE not written to all management connections");
+				break;
+			}
+		}
+	}
+
+	public void release() {
+		forever = false;
+	}
+
+	@Override
+	public void run() {
+		logger.info("starting topology manager");
+
+		while (forever) {
+			try {
+				Thread.sleep(sCheckMsec);
+				check();
+			} catch (InterruptedException ie) {
+				break;
+			} catch (Exception e) {
+				logger.error("Unexpected topology failure", e);
+			}
+		}
+
+		logger.info("topology manager closing");
+	}
+
+	/**
+	 * announce our adjacency if it changed or is due for a refresh, ask for
+	 * the cluster's announcements when a management connection is added and
+	 * drop announcements that are too old
+	 */
+	private void check() {
+		long now = System.currentTimeMillis();
+
+		LinkState mine = null;
+		synchronized (this) {
+			Set<String> adj = adjacency();
+			LinkState cur = states.get(nodeId);
+			if (cur == null || !cur.neighbors.equals(adj) || now - lastAnnounce >= sRefreshMsec) {
+				mine = new LinkState(nodeId, ++seq, adj);
+				accept(mine);
+				lastAnnounce = now;
+			}
+
+			for (LinkState ls : states.values().toArray(new LinkState[0])) {
+				if (!ls.origin.equals(nodeId) && now - ls.received > sMaxAgeMsec) {
+					logger.info("announcement of " + ls.origin + " expired");
+					states.remove(ls.origin);
+					dirty = true;
+				}
+			}
+		}
+
+		if (mine != null)
+			flood(toMessage(Action.ANNOUNCE, mine.encode()), null);
+
+		HeartbeatManager hbm = HeartbeatManager.getInstance();
+		int links = (hbm != null) ? hbm.getManagementChannels().size() : 0;
+		if (links > lastLinks)
+			flood(toMessage(Action.MAP, nodeId), null);
+		lastLinks = links;
+	}
+
+	/**
+	 * the nearest nodes we can reach (heartbeat has not failed)
+	 * 
+	 * @return
+	 */
+	private Set<String> adjacency() {
+		Set<String> adj = new TreeSet<String>();
+		if (nearest == null || nearest.getNearestNodes() == null)
+			return adj;
+
+		HeartbeatManager hbm = HeartbeatManager.getInstance();
+		for (NodeDesc nd : nearest.getNearestNodes().values()) {
+			HeartbeatData hd = (hbm != null) ? hbm.getNearestNode(nd.getNodeId()) : null;
+			if (hd == null || hd.getStatus() != BeatStatus.Failed)
+				adj.add(nd.getNodeId());
+		}
+
+		return adj;
+	}
+
+	/**
+	 * keep an announcement if it is newer than the one held
+	 * 
+	 * @param ls
+	 * @return true if it was kept (and should be passed on)
+	 */
+	private synchronized boolean accept(LinkState ls) {
+		Long left = withdrawn.get(ls.origin);
+		if (left != null) {
+			if (ls.seq <= left)
+				return false;
+			withdrawn.remove(ls.origin);
+		}
+
+		LinkState cur = states.get(ls.origin);
+		if (cur != null && cur.seq >= ls.seq)
+			return false;
+
+		states.put(ls.origin, ls);
+		if (cur == null || !cur.neighbors.equals(ls.neighbors)) {
+			logger.info("adjacency of " + ls.origin + " is " + ls.neighbors);
+			dirty = true;
+		}
+
+		return true;
+	}
+
+	private synchronized boolean withdraw(String origin, long s) {
+		if (origin.equals(nodeId))
+			return false;
+
+		Long left = withdrawn.get(origin);
+		if (left != null && left >= s)
+			return false;
+
+		withdrawn.put(origin, s);
+		LinkState cur = states.get(origin);
+		if (cur != null && cur.seq <= s) {
+			logger.info(origin + " left the network");
+			states.remove(origin);
+			dirty = true;
+		}
+
+		return true;
+	}
+
+	/**
+	 * breadth first search from this node. A node's next hops are the union of
+	 * the next hops of its predecessors on shortest paths.
+	 */
+	private synchronized void computeRoutes() {
+		if (!dirty)
+			return;
+		dirty = false;
+
+		Map<String, Integer> dist = new HashMap<String, Integer>();
+		Map<String, Set<String>> hops = new HashMap<String, Set<String>>();
+		ArrayDeque<String> queue = new ArrayDeque<String>();
+
+		dist.put(nodeId, 0);
+		queue.add(nodeId);
+		while (!queue.isEmpty()) {
+			String n = queue.poll();
+			LinkState ls = states.get(n);
+			if (ls == null)
+				continue;
+
+			int d = dist.get(n) + 1;
+			for (String m : ls.neighbors) {
+				Integer dm = dist.get(m);
+				if (dm == null) {
+					dist.put(m, d);
+					hops.put(m, new TreeSet<String>());
+					queue.add(m);
+				} else if (dm != d)
+					continue;
+
+				Set<String> via = hops.get(m);
+				if (n.equals(nodeId))
+					via.add(m);
+				else
+					via.addAll(hops.get(n));
+			}
+		}
+
+		Map<String, Set<String>> rtn = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, Set<String>> e : hops.entrySet())
+			rtn.put(e.getKey(), Collections.unmodifiableSet(e.getValue()));
+		routes = Collections.unmodifiableMap(rtn);
+
+		logger.info("routes recomputed, " + rtn.size() + " nodes reachable");
+	}
+
+	private void sendAll(Channel ch) {
+		LinkState[] all;
+		synchronized (this) {
+			all = states.values().toArray(new LinkState[0]);
+		}
+
+		for (LinkState ls : all) {
+			if (ch.isOpen())
+				ch.write(toMessage(Action.ANNOUNCE, ls.encode()));
+		}
+	}
+
+	/**
+	 * @return the writes
+	 */
+	private List<ChannelFuture> flood(Management msg, Channel except) {
+		List<ChannelFuture> rtn = new ArrayList<ChannelFuture>();
+		HeartbeatManager hbm = HeartbeatManager.getInstance();
+		if (hbm == null)
+			return rtn;
+
+		for (Channel ch : hbm.getManagementChannels()) {
+			if (ch != except && ch.isOpen())
+				rtn.add(ch.write(msg));
+		}
+		return rtn;
+	}
+
+	private static Management toMessage(Action action, String data) {
+		Network.Builder n = Network.newBuilder();
+		n.setNodeId(data);
+		n.setAction(action);
+
+		Management.Builder m = Management.newBuilder();
+		m.setGraph(n.build());
+		return m.build();
+	}
+
+	/**
+	 * a node's announcement of its adjacency
+	 */
+	static class LinkState {
+		String origin;
+		long seq;
+		Set<String> neighbors;
+		long received = System.currentTimeMillis();
+
+		LinkState(String origin, long seq, Set<String> neighbors) {
+			this.origin = origin;
+			this.seq = seq;
+			this.neighbors = neighbors;
+		}
+
+		String encode() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(origin).append(';').append(seq).append(';');
+			boolean first = true;
+			for (String n : neighbors) {
+				if (!first)
+					sb.append(',');
+				sb.append(n);
+				first = false;
+			}
+			return sb.toString();
+		}
+
+		static LinkState decode(String s) {
+			String[] parts = s.split(";", -1);
+			if (parts.length != 3 || parts[0].length() == 0)
+				return null;
+
+			try {
+				Set<String> adj = new TreeSet<String>();
+				for (String n : parts[2].split(",")) {
+					if (n.length() > 0)
+						adj.add(n);
+				}
+				return new LinkState(parts[0], Long.parseLong(parts[1]), adj);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+}
@@ -4,9 +4,9 @@
  * Gash licenses this file to you under the Apache License,
  * version 2.0 (the "License"); you may not use this file except in compliance
  * with the License. You may obtain a copy of the License at:
- *
+ * 
  *   http://www.apache.org/licenses/LICENSE-2.0
- *
+ * 
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
@@ -15,14 +15,26 @@
  */
 package poke.server.queue;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import poke.server.queue.PerChannelQueue.InboundWorker;
-import poke.server.queue.PerChannelQueue.OutboundWorker;
+import poke.server.queue.QueueLimit.Policy;
+import poke.server.resources.Resource;
+import poke.server.resources.ResourceFactory;
+import poke.server.resources.ResourceUtil;
+import poke.server.routing.ForwardResource;
+import poke.server.routing.Partitioner;
+import eye.Comm.Header.ReplyStatus;
 import eye.Comm.Request;
 import eye.Comm.Response;
 
@@ -31,9 +43,16 @@ import eye.Comm.Response;
  * first-come-first-fulfillment policy. This policy is not desirable as it
  * complicates enforcement of fairness and removing 'dead' tasks. Considerations
  * for a better design is a tiered (buckets) of queues and a per-client designs.
- * 
- * Note this prototype to demonstrate a single queue implementation - this class
- * is incomplete
+ * <p>
+ * This implementation keeps the single (server-wide) queue, but rather than
+ * queuing requests, the shared inbound queue holds channels that have work.
+ * A worker takes a channel, processes one request and, if the channel has
+ * more, places the channel at the end of the queue (round-robin). A chatty
+ * client therefore waits its turn behind every other client with pending
+ * requests, and a channel is never held by more than one worker (ordering).
+ * <p>
+ * Closed channels are marked dead (tombstone). Entries of a dead channel are
+ * skipped as the workers encounter them, the shared queues are never scanned.
  * 
  * @author gash
  * 
@@ -41,45 +60,328 @@ import eye.Comm.Response;
 public class OnlyOneQueue implements ChannelQueue {
 	protected static Logger logger = LoggerFactory.getLogger(OnlyOneQueue.class);
 
-	private Channel channel;
+	private volatile Channel channel;
 
 	// problematic (static), yet effective
-	private static LinkedBlockingDeque<com.google.protobuf.GeneratedMessage> inbound = new LinkedBlockingDeque<com.google.protobuf.GeneratedMessage>();
-	private static LinkedBlockingDeque<com.google.protobuf.GeneratedMessage> outbound = new LinkedBlockingDeque<com.google.protobuf.GeneratedMessage>();
+	private static LinkedBlockingDeque<OnlyOneQueue> inbound = new LinkedBlockingDeque<OnlyOneQueue>();
+	private static LinkedBlockingDeque<OutboundEntry> outbound = new LinkedBlockingDeque<OutboundEntry>();
+
+	// number of requests waiting across all channels
+	private static AtomicInteger inboundDepth = new AtomicInteger();
+
+	// channels not read from until the server-wide backlog drains
+	private static ConcurrentLinkedQueue<OnlyOneQueue> suspendedQueues = new ConcurrentLinkedQueue<OnlyOneQueue>();
 
 	// just problematic
+	private static List<InboundWorker> iworkers = new ArrayList<InboundWorker>();
 	private static OutboundWorker oworker;
-	private static InboundWorker iworker;
 
 	// not the best method to ensure uniqueness
-	private ThreadGroup tgroup = new ThreadGroup("ServerQueue-" + System.nanoTime());
+	private static ThreadGroup tgroup = new ThreadGroup("ServerQueue-" + System.nanoTime());
+
+	// this channel's requests
+	private ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<Request>();
+	private AtomicBoolean scheduled = new AtomicBoolean(false);
+	private volatile boolean dead = false;
+	private AtomicBoolean suspended = new AtomicBoolean(false);
+	private QueueLimit limit;
 
 	protected OnlyOneQueue(Channel channel) {
 		this.channel = channel;
+		this.limit = QueueFactory.getLimit();
 		init();
 	}
 
 	private void init() {
+		if (oworker == null)
+			startup(0);
+	}
+
+	/**
+	 * start the shared workers. Called by the QueueFactory; if it is not, the
+	 * first channel to use the queue starts a worker per core.
+	 * 
+	 * @param workers
+	 */
+	protected static synchronized void startup(int workers) {
+		if (oworker != null)
+			return;
+
+		if (workers < 1)
+			workers = Runtime.getRuntime().availableProcessors();
+
+		for (int n = 0; n < workers; n++) {
+			InboundWorker iw = new InboundWorker(tgroup, n + 1);
+			iw.start();
+			iworkers.add(iw);
+		}
+
+		oworker = new OutboundWorker(tgroup, 1);
+		oworker.start();
+
+		logger.info("server queue started with " + workers + " workers");
+	}
+
+	/**
+	 * the number of requests (all channels) waiting to be processed
+	 * 
+	 * @return
+	 */
+	public static int getInboundDepth() {
+		return inboundDepth.get();
+	}
+
+	/**
+	 * the number of replies (all channels) waiting to be written. Note this
+	 * includes replies to closed channels that have not been discarded yet.
+	 * 
+	 * @return
+	 */
+	public static int getOutboundDepth() {
+		return outbound.size();
+	}
+
+	/**
+	 * the number of channels waiting for a worker
+	 * 
+	 * @return
+	 */
+	public static int getChannelsWaiting() {
+		return inbound.size();
+	}
+
+	/**
+	 * the number of this channel's requests waiting to be processed
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return pending.size();
 	}
 
 	@Override
 	public void shutdown(boolean hard) {
-		// Two choices are possible:
-		// 1. go through the queues removing messages from this channel
-		// 2. mark the channel as dead, to inform the workers to ignore enqueued
-		// requests/responses - not the best approach as we are forced to hold
-		// onto the the channel instance. Use a hash?
+		// mark the channel as dead (tombstone) rather than searching the
+		// shared queues. The workers drop the channel's entries as they reach
+		// them.
+		dead = true;
+		channel = null;
+
+		Request req = pending.poll();
+		while (req != null) {
+			inboundDepth.decrementAndGet();
+			req = pending.poll();
+		}
 	}
 
+	/**
+	 * The capacity applies to the server-wide backlog. When the backlog is
+	 * full, the policy is applied to the channel that is adding to it: its reads
+	 * are suspended, its request is rejected or its own oldest request is
+	 * dropped.
+	 */
 	@Override
 	public void enqueueRequest(Request req) {
-		// TODO Auto-generated method stub
+		if (req == null || dead)
+			return;
+
+		int depth = inboundDepth.incrementAndGet();
+		if (limit.getPolicy() == Policy.Suspend) {
+			if (depth >= limit.getCapacity())
+				suspend();
+		} else if (depth > limit.getCapacity()) {
+			inboundDepth.decrementAndGet();
+			if (!overflow(req))
+				return;
+			inboundDepth.incrementAndGet();
+		}
+
+		pending.offer(req);
+		schedule();
+	}
+
+	/**
+	 * apply the drop or reject policy to a request arriving at a full queue
+	 * 
+	 * @param req
+	 * @return true if the request should be queued
+	 */
+	private boolean overflow(Request req) {
+		if (limit.getPolicy() == Policy.DropOldest) {
+			// a channel can only displace its own requests; if it has none
+			// queued, the new request is the one dropped
+			limit.drop();
+			if (pending.poll() == null)
+				return false;
+			inboundDepth.decrementAndGet();
+			return true;
+		}
+
+		enqueueResponse(limit.reject(req));
+		return false;
+	}
+
+	private void suspend() {
+		if (suspended.compareAndSet(false, true)) {
+			limit.suspend(channel);
+			suspendedQueues.offer(this);
+		}
+	}
+
+	/**
+	 * resume reading from the suspended channels once the backlog has been
+	 * worked down
+	 */
+	private static void resumeSuspended(QueueLimit limit) {
+		if (inboundDepth.get() > limit.getLowWater())
+			return;
 
+		OnlyOneQueue sq = suspendedQueues.poll();
+		while (sq != null) {
+			if (sq.suspended.compareAndSet(true, false))
+				limit.resume(sq.channel);
+			sq = suspendedQueues.poll();
+		}
 	}
 
 	@Override
 	public void enqueueResponse(Response reply) {
-		// TODO Auto-generated method stub
+		if (reply == null || dead)
+			return;
+
+		try {
+			outbound.put(new OutboundEntry(this, reply));
+		} catch (InterruptedException e) {
+			logger.error("message not enqueued for reply", e);
+		}
+	}
+
+	/**
+	 * place the channel at the end of the shared queue if it is not already
+	 * waiting for (or held by) a worker
+	 */
+	private void schedule() {
+		if (!dead && scheduled.compareAndSet(false, true))
+			inbound.offer(this);
+	}
+
+	/**
+	 * process one request of this channel (a worker's time slice)
+	 */
+	private void processNext() {
+		try {
+			if (dead)
+				return;
+
+			Request req = pending.poll();
+			if (req == null)
+				return;
+
+			inboundDepth.decrementAndGet();
+			if (!suspendedQueues.isEmpty())
+				resumeSuspended(limit);
+
+			// a request about a document goes to the document's owner
+			Partitioner pt = Partitioner.getInstance();
+			if (pt != null)
+				req = pt.address(req);
+
+			Resource rsc = ResourceFactory.getInstance().resourceInstance(req.getHeader());
+
+			Response reply = null;
+			if (rsc instanceof ForwardResource) {
+				// the reply is relayed when the neighbor answers
+				((ForwardResource) rsc).forward(req, this);
+				return;
+			} else if (rsc == null) {
+				logger.error("failed to obtain resource for " + req);
+				reply = ResourceUtil.buildError(req.getHeader(), ReplyStatus.FAILURE, "Request not processed");
+			} else
+				reply = rsc.process(req);
+
+			enqueueResponse(reply);
+		} finally {
+			scheduled.set(false);
+
+			// back of the line
+			if (!pending.isEmpty())
+				schedule();
+		}
+	}
+
+	private static class OutboundEntry {
+		OnlyOneQueue sq;
+		Response reply;
+
+		public OutboundEntry(OnlyOneQueue sq, Response reply) {
+			this.sq = sq;
+			this.reply = reply;
+		}
+	}
+
+	protected static class InboundWorker extends Thread {
+		int workerId;
+		boolean forever = true;
+
+		public InboundWorker(ThreadGroup tgrp, int workerId) {
+			super(tgrp, "inbound-" + workerId);
+			this.workerId = workerId;
+		}
+
+		@Override
+		public void run() {
+			while (forever) {
+				try {
+					// block until a channel has work
+					OnlyOneQueue sq = inbound.take();
+					sq.processNext();
+				} catch (InterruptedException ie) {
+					break;
+				} catch (Exception e) {
+					OnlyOneQueue.logger.error("Unexpected processing failure", e);
+				}
+			}
+
+			OnlyOneQueue.logger.info("server queue worker " + workerId + " closing");
+		}
+	}
+
+	protected static class OutboundWorker extends Thread {
+		int workerId;
+		boolean forever = true;
+
+		public OutboundWorker(ThreadGroup tgrp, int workerId) {
+			super(tgrp, "outbound-" + workerId);
+			this.workerId = workerId;
+		}
+
+		@Override
+		public void run() {
+			while (forever) {
+				try {
+					// block until a message is enqueued
+					OutboundEntry entry = outbound.take();
+
+					// tombstone - the channel closed while the reply waited
+					Channel conn = entry.sq.channel;
+					if (entry.sq.dead || conn == null || !conn.isOpen())
+						continue;
+
+					conn.write(entry.reply).addListener(new ChannelFutureListener() {
+						@Override
+						public void operationComplete(ChannelFuture future) throws Exception {
+							if (!future.isSuccess())
+								OnlyOneQueue.logger.error("failed to write reply", future.getCause());
+						}
+					});
+				} catch (InterruptedException ie) {
+					break;
+				} catch (Exception e) {
+					OnlyOneQueue.logger.error("Unexpected communcation failure", e);
+				}
+			}
 
+			OnlyOneQueue.logger.info("server queue closing");
+		}
 	}
 }
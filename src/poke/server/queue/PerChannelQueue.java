@@ -17,6 +17,7 @@ package poke.server.queue;
 
 import java.lang.Thread.State;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
@@ -24,9 +25,12 @@ import org.jboss.netty.channel.ChannelFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import poke.server.queue.QueueLimit.Policy;
 import poke.server.resources.Resource;
 import poke.server.resources.ResourceFactory;
 import poke.server.resources.ResourceUtil;
+import poke.server.routing.ForwardResource;
+import poke.server.routing.Partitioner;
 
 import com.google.protobuf.GeneratedMessage;
 
@@ -50,9 +54,10 @@ public class PerChannelQueue implements ChannelQueue {
 
 	private Channel channel;
 	private LinkedBlockingDeque<com.google.protobuf.GeneratedMessage> inbound;
-	private LinkedBlockingDeque<com.google.protobuf.GeneratedMessage> outbound;
-	private OutboundWorker oworker;
+	private ReplyWriter writer;
 	private InboundWorker iworker;
+	private QueueLimit limit;
+	private AtomicBoolean suspended = new AtomicBoolean(false);
 
 	// not the best method to ensure uniqueness
 	private ThreadGroup tgroup = new ThreadGroup("ServerQueue-" + System.nanoTime());
@@ -63,15 +68,18 @@ public class PerChannelQueue implements ChannelQueue {
 	}
 
 	protected void init() {
-		inbound = new LinkedBlockingDeque<com.google.protobuf.GeneratedMessage>();
-		outbound = new LinkedBlockingDeque<com.google.protobuf.GeneratedMessage>();
+		limit = QueueFactory.getLimit();
+
+		// when suspending, reads stop at the capacity (see QueueLimit)
+		int capacity = (limit.getPolicy() == Policy.Suspend) ? Integer.MAX_VALUE : limit.getCapacity();
+		inbound = new LinkedBlockingDeque<com.google.protobuf.GeneratedMessage>(capacity);
+
+		// replies are written asynchronously, no thread is needed
+		writer = new ReplyWriter(channel);
 
 		iworker = new InboundWorker(tgroup, 1, this);
 		iworker.start();
 
-		oworker = new OutboundWorker(tgroup, 1, this);
-		oworker.start();
-
 		// let the handler manage the queue's shutdown
 		// register listener to receive closing of channel
 		// channel.getCloseFuture().addListener(new CloseListener(this));
@@ -81,6 +89,24 @@ public class PerChannelQueue implements ChannelQueue {
 		return channel;
 	}
 
+	/**
+	 * the number of requests waiting to be processed
+	 * 
+	 * @return
+	 */
+	public int getInboundDepth() {
+		return inbound.size();
+	}
+
+	/**
+	 * the number of replies waiting to be written
+	 * 
+	 * @return
+	 */
+	public int getOutboundDepth() {
+		return writer.size();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -95,7 +121,7 @@ public class PerChannelQueue implements ChannelQueue {
 		if (hard) {
 			// drain queues, don't allow graceful completion
 			inbound.clear();
-			outbound.clear();
+			writer.clear();
 		}
 
 		if (iworker != null) {
@@ -105,13 +131,6 @@ public class PerChannelQueue implements ChannelQueue {
 			iworker = null;
 		}
 
-		if (oworker != null) {
-			oworker.forever = false;
-			if (oworker.getState() == State.BLOCKED || oworker.getState() == State.WAITING)
-				oworker.interrupt();
-			oworker = null;
-		}
-
 	}
 
 	/*
@@ -121,10 +140,18 @@ public class PerChannelQueue implements ChannelQueue {
 	 */
 	@Override
 	public void enqueueRequest(Request req) {
-		try {
-			inbound.put(req);
-		} catch (InterruptedException e) {
-			logger.error("message not enqueued for processing", e);
+		if (limit.getPolicy() == Policy.Suspend) {
+			inbound.offerLast(req);
+			if (inbound.size() >= limit.getCapacity() && suspended.compareAndSet(false, true))
+				limit.suspend(channel);
+		} else if (!inbound.offerLast(req)) {
+			if (limit.getPolicy() == Policy.DropOldest) {
+				while (!inbound.offerLast(req)) {
+					if (inbound.pollFirst() != null)
+						limit.drop();
+				}
+			} else
+				enqueueResponse(limit.reject(req));
 		}
 	}
 
@@ -138,68 +165,7 @@ public class PerChannelQueue implements ChannelQueue {
 		if (reply == null)
 			return;
 
-		try {
-			outbound.put(reply);
-		} catch (InterruptedException e) {
-			logger.error("message not enqueued for reply", e);
-		}
-	}
-
-	protected class OutboundWorker extends Thread {
-		int workerId;
-		PerChannelQueue sq;
-		boolean forever = true;
-
-		public OutboundWorker(ThreadGroup tgrp, int workerId, PerChannelQueue sq) {
-			super(tgrp, "outbound-" + workerId);
-			this.workerId = workerId;
-			this.sq = sq;
-
-			if (outbound == null)
-				throw new RuntimeException("connection worker detected null queue");
-		}
-
-		@Override
-		public void run() {
-			Channel conn = sq.channel;
-			if (conn == null || !conn.isOpen()) {
-				PerChannelQueue.logger.error("connection missing, no outbound communication");
-				return;
-			}
-
-			while (true) {
-				if (!forever && sq.outbound.size() == 0)
-					break;
-
-				try {
-					// block until a message is enqueued
-					GeneratedMessage msg = sq.outbound.take();
-					if (conn.isWritable()) {
-						boolean rtn = false;
-						if (channel != null && channel.isOpen() && channel.isWritable()) {
-							ChannelFuture cf = channel.write(msg);
-
-							// blocks on write - use listener to be async
-							cf.awaitUninterruptibly();
-							rtn = cf.isSuccess();
-							if (!rtn)
-								sq.outbound.putFirst(msg);
-						}
-
-					} else
-						sq.outbound.putFirst(msg);
-				} catch (InterruptedException ie) {
-					break;
-				} catch (Exception e) {
-					PerChannelQueue.logger.error("Unexpected communcation failure", e);
-					break;
-				}
-			}
-
-			if (!forever) {
-				PerChannelQueue.logger.info("connection queue closing");
-			}
-		}
+		writer.write(reply);
 	}
 
 	protected class InboundWorker extends Thread {
@@ -212,7 +178,7 @@ public class PerChannelQueue implements ChannelQueue {
 			this.workerId = workerId;
 			this.sq = sq;
 
-			if (outbound == null)
+			if (inbound == null)
 				throw new RuntimeException("connection worker detected null queue");
 		}
 
@@ -232,17 +198,30 @@ public class PerChannelQueue implements ChannelQueue {
 					// block until a message is enqueued
 					GeneratedMessage msg = sq.inbound.take();
 
+					// resume reading once the backlog has been worked down
+					if (sq.suspended.get() && sq.inbound.size() <= limit.getLowWater()
+							&& sq.suspended.compareAndSet(true, false))
+						limit.resume(sq.channel);
+
 					// process request and enqueue response
 					if (msg instanceof Request) {
 						Request req = ((Request) msg);
 
-						// do we need to route the request?
+						// do we need to route the request? (a document to its
+						// owner)
+						Partitioner pt = Partitioner.getInstance();
+						if (pt != null)
+							req = pt.address(req);
 
 						// handle it locally
 						Resource rsc = ResourceFactory.getInstance().resourceInstance(req.getHeader());
 
 						Response reply = null;
-						if (rsc == null) {
+						if (rsc instanceof ForwardResource) {
+							// the reply is relayed when the neighbor answers
+							((ForwardResource) rsc).forward(req, sq);
+							continue;
+						} else if (rsc == null) {
 							logger.error("failed to obtain resource for " + req);
 							reply = ResourceUtil.buildError(req.getHeader(), ReplyStatus.FAILURE,
 									"Request not processed");
@@ -0,0 +1,339 @@
+/*
+ * copyright 2012, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.queue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.server.queue.QueueLimit.Policy;
+import poke.server.resources.Resource;
+import poke.server.resources.ResourceFactory;
+import poke.server.resources.ResourceUtil;
+import poke.server.routing.ForwardResource;
+import poke.server.routing.Partitioner;
+import eye.Comm.Header.ReplyStatus;
+import eye.Comm.Request;
+import eye.Comm.Response;
+
+/**
+ * A per-channel queue that does not own any threads. All channels share a
+ * single, fixed size pool of workers (default is the number of cores).
+ * 
+ * Ordering of a channel's requests is preserved by allowing at most one task
+ * per channel to be scheduled on the pool at any time. The task drains a
+ * bounded number of requests before yielding the worker, so a busy channel
+ * cannot monopolize a thread while other channels wait.
+ * 
+ * Compare this with the PerChannelQueue where 1000 connections result in 2000
+ * threads.
+ * <p>
+ * On a JVM that supports virtual threads, the pool can be replaced by a
+ * virtual thread per request ("queue.threads": "virtual"). Blocking resources
+ * (file or database I/O) then do not hold a platform thread while they wait.
+ * With virtual threads, ordering may be relaxed ("queue.ordered": "false") so
+ * a channel's requests run concurrently; replies are then written as they
+ * complete and must be matched to requests by their tag.
+ * 
+ * @author gash
+ * 
+ */
+public class PooledChannelQueue implements ChannelQueue {
+	protected static Logger logger = LoggerFactory.getLogger(PooledChannelQueue.class);
+
+	// max requests a channel processes before yielding its worker
+	static final int sDrainLimit = 16;
+
+	private static volatile ExecutorService pool;
+	private static volatile boolean ordered = true;
+
+	private Channel channel;
+	private ConcurrentLinkedQueue<Request> inbound = new ConcurrentLinkedQueue<Request>();
+	private AtomicInteger depth = new AtomicInteger();
+	private AtomicBoolean scheduled = new AtomicBoolean(false);
+	private AtomicBoolean suspended = new AtomicBoolean(false);
+	private QueueLimit limit;
+	private volatile boolean forever = true;
+	private Drainer drainer = new Drainer();
+	private ReplyWriter writer;
+
+	protected PooledChannelQueue(Channel channel) {
+		this.channel = channel;
+		this.writer = new ReplyWriter(channel);
+		this.limit = QueueFactory.getLimit();
+	}
+
+	/**
+	 * create the shared worker pool. Called once by the QueueFactory, workers
+	 * are created on demand up to the number requested.
+	 * 
+	 * @param workers
+	 *            The number of threads shared by all channels
+	 */
+	protected static synchronized void initPool(int workers) {
+		if (pool != null)
+			return;
+
+		if (workers < 1)
+			workers = Runtime.getRuntime().availableProcessors();
+
+		ThreadPoolExecutor tpe = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new WorkerFactory());
+		tpe.allowCoreThreadTimeOut(true);
+		pool = tpe;
+		ordered = true;
+
+		logger.info("shared channel pool created with " + workers + " workers");
+	}
+
+	/**
+	 * run each request on its own virtual thread rather than a pool of
+	 * platform threads. Falls back to a pool of platform threads if the JVM
+	 * does not support virtual threads.
+	 * 
+	 * @param inOrder
+	 *            If false, a channel's requests are processed concurrently
+	 * @param workers
+	 *            The size of the fallback pool
+	 */
+	protected static synchronized void initVirtual(boolean inOrder, int workers) {
+		if (pool != null)
+			return;
+
+		pool = VirtualThreads.newExecutor();
+		if (pool == null) {
+			logger.warn("virtual threads are not supported by this JVM, using a pool of platform threads");
+			initPool(workers);
+			return;
+		}
+
+		ordered = inOrder;
+		logger.info("channel requests run on virtual threads, ordered = " + ordered);
+	}
+
+	protected static synchronized void releasePool() {
+		if (pool == null)
+			return;
+
+		pool.shutdown();
+		pool = null;
+	}
+
+	protected Channel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * the number of requests waiting to be processed for this channel
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return depth.get();
+	}
+
+	@Override
+	public void shutdown(boolean hard) {
+		logger.info("channel queue is shutting down");
+
+		forever = false;
+		channel = null;
+
+		if (hard) {
+			while (inbound.poll() != null)
+				depth.decrementAndGet();
+			writer.clear();
+		}
+	}
+
+	@Override
+	public void enqueueRequest(Request req) {
+		if (req == null || !forever)
+			return;
+
+		int n = depth.incrementAndGet();
+		if (limit.getPolicy() == Policy.Suspend) {
+			if (n >= limit.getCapacity() && suspended.compareAndSet(false, true))
+				limit.suspend(channel);
+		} else if (n > limit.getCapacity()) {
+			depth.decrementAndGet();
+			if (!overflow(req))
+				return;
+			depth.incrementAndGet();
+		}
+
+		inbound.offer(req);
+		if (ordered)
+			schedule();
+		else if (!execute(new Unordered())) {
+			inbound.remove(req);
+			depth.decrementAndGet();
+		}
+	}
+
+	/**
+	 * apply the drop or reject policy to a request arriving at a full queue
+	 * 
+	 * @param req
+	 * @return true if the request should be queued
+	 */
+	private boolean overflow(Request req) {
+		if (limit.getPolicy() == Policy.DropOldest) {
+			// the workers may have emptied the queue in the meantime
+			if (inbound.poll() != null) {
+				depth.decrementAndGet();
+				limit.drop();
+			}
+			return true;
+		}
+
+		enqueueResponse(limit.reject(req));
+		return false;
+	}
+
+	/**
+	 * Responses are written asynchronously by the channel's ReplyWriter, which
+	 * preserves the order they are issued in. Since only one task per channel
+	 * is active, the replies leave in request order.
+	 */
+	@Override
+	public void enqueueResponse(Response reply) {
+		if (reply == null)
+			return;
+
+		writer.write(reply);
+	}
+
+	/**
+	 * place this channel's drainer on the pool if it is not already waiting or
+	 * running
+	 */
+	private void schedule() {
+		if (!scheduled.compareAndSet(false, true))
+			return;
+
+		if (!execute(drainer))
+			scheduled.set(false);
+	}
+
+	private boolean execute(Runnable task) {
+		ExecutorService workers = pool;
+		if (workers == null) {
+			logger.error("shared pool not initialized, requests not processed");
+			return false;
+		}
+
+		try {
+			workers.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			logger.error("shared pool rejected channel, requests not processed", e);
+			return false;
+		}
+	}
+
+	/**
+	 * take the next request and process it
+	 * 
+	 * @return false if there was no request
+	 */
+	private boolean processNext() {
+		Request req = inbound.poll();
+		if (req == null)
+			return false;
+
+		// resume reading once the backlog has been worked down
+		if (depth.decrementAndGet() <= limit.getLowWater() && suspended.get() && suspended.compareAndSet(true, false))
+			limit.resume(channel);
+
+		// a request about a document goes to the document's owner
+		Partitioner pt = Partitioner.getInstance();
+		if (pt != null)
+			req = pt.address(req);
+
+		// handle it locally
+		Resource rsc = ResourceFactory.getInstance().resourceInstance(req.getHeader());
+
+		Response reply = null;
+		if (rsc instanceof ForwardResource) {
+			// the reply is relayed when the neighbor answers
+			((ForwardResource) rsc).forward(req, this);
+			return true;
+		} else if (rsc == null) {
+			logger.error("failed to obtain resource for " + req);
+			reply = ResourceUtil.buildError(req.getHeader(), ReplyStatus.FAILURE, "Request not processed");
+		} else
+			reply = rsc.process(req);
+
+		enqueueResponse(reply);
+		return true;
+	}
+
+	private class Drainer implements Runnable {
+		@Override
+		public void run() {
+			try {
+				int processed = 0;
+				while (forever && processed < sDrainLimit && processNext())
+					processed++;
+			} catch (Exception e) {
+				logger.error("Unexpected processing failure", e);
+			} finally {
+				scheduled.set(false);
+			}
+
+			// requests that arrived after the last poll or beyond the drain
+			// limit are handled by a new task to keep the ordering
+			if (forever && !inbound.isEmpty())
+				schedule();
+		}
+	}
+
+	/**
+	 * processes one request, without regard to the channel's other requests
+	 */
+	private class Unordered implements Runnable {
+		@Override
+		public void run() {
+			try {
+				if (forever)
+					processNext();
+			} catch (Exception e) {
+				logger.error("Unexpected processing failure", e);
+			}
+		}
+	}
+
+	private static class WorkerFactory implements ThreadFactory {
+		private ThreadGroup tgroup = new ThreadGroup("PooledChannelQueue-" + System.nanoTime());
+		private AtomicInteger workerId = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(tgroup, r, "pooled-" + workerId.incrementAndGet());
+		}
+	}
+}
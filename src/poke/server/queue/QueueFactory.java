@@ -16,10 +16,100 @@
 package poke.server.queue;
 
 import org.jboss.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import poke.server.conf.ServerConf;
 import poke.server.routing.ServerHandler.ConnectionClosedListener;
 
+/**
+ * The queue implementation is selected by the server's configuration (general
+ * section):
+ * 
+ * <pre>
+ * "queue": "poke.server.queue.PooledChannelQueue",
+ * "queue.workers": "8"
+ * </pre>
+ * 
+ * If not specified, the PerChannelQueue is used. On a JVM with virtual threads,
+ * "queue.threads": "virtual" processes each request on a virtual thread
+ * (PooledChannelQueue), and "queue.ordered": "false" drops the per-channel
+ * ordering. The number of workers applies
+ * to the queues that share threads (PooledChannelQueue, OnlyOneQueue).
+ * <p>
+ * The inbound capacity (per channel, or server-wide for the OnlyOneQueue) and
+ * the overload policy are set by "queue.capacity" and "queue.overload" (see
+ * QueueLimit).
+ * 
+ * @author gash
+ * 
+ */
 public class QueueFactory {
+	protected static Logger logger = LoggerFactory.getLogger(QueueFactory.class);
+
+	public static final String sQueue = "queue";
+	public static final String sWorkers = "queue.workers";
+	public static final String sThreads = "queue.threads";
+	public static final String sOrdered = "queue.ordered";
+
+	private static String queueType = PerChannelQueue.class.getName();
+	private static QueueLimit limit = new QueueLimit(sQueue, QueueLimit.sCapacityDefault, QueueLimit.Policy.Suspend);
+
+	public static void initialize(ServerConf cfg) {
+		if (cfg == null || cfg.getServer() == null)
+			return;
+
+		limit = QueueLimit.fromConf(sQueue, cfg.getServer());
+
+		String type = cfg.getServer().getProperty(sQueue);
+		if (type != null)
+			queueType = type.trim();
+
+		int workers = 0;
+		String str = cfg.getServer().getProperty(sWorkers);
+		if (str != null) {
+			try {
+				workers = Integer.parseInt(str.trim());
+			} catch (NumberFormatException e) {
+				logger.warn("Invalid " + sWorkers + " value: " + str + ", using default");
+			}
+		}
+
+		// virtual threads replace the platform threads of the PerChannelQueue
+		// and PooledChannelQueue, the PooledChannelQueue provides ordering
+		str = cfg.getServer().getProperty(sThreads);
+		if (str != null && str.trim().equalsIgnoreCase("virtual")) {
+			if (PerChannelQueue.class.getName().equals(queueType)
+					|| PooledChannelQueue.class.getName().equals(queueType)) {
+				queueType = PooledChannelQueue.class.getName();
+				str = cfg.getServer().getProperty(sOrdered);
+				boolean ordered = (str == null) || Boolean.parseBoolean(str.trim());
+				PooledChannelQueue.initVirtual(ordered, workers);
+			} else
+				logger.warn("Virtual threads are not supported by " + queueType);
+		}
+
+		if (PooledChannelQueue.class.getName().equals(queueType))
+			PooledChannelQueue.initPool(workers);
+		else if (OnlyOneQueue.class.getName().equals(queueType))
+			OnlyOneQueue.startup(workers);
+		else if (!PerChannelQueue.class.getName().equals(queueType)
+				&& !NoOpQueue.class.getName().equals(queueType)) {
+			logger.warn("Unknown queue " + queueType + ", using " + PerChannelQueue.class.getName());
+			queueType = PerChannelQueue.class.getName();
+		}
+
+		logger.info("Channel queue: " + queueType + ", " + limit);
+	}
+
+	/**
+	 * the capacity and overload policy shared by the channel queues
+	 * 
+	 * @return
+	 */
+	public static QueueLimit getLimit() {
+		return limit;
+	}
 
 	public static ChannelQueue getInstance(Channel channel) {
 		// if a single queue is needed, this is where we would obtain a
@@ -28,6 +118,12 @@ public class QueueFactory {
 
 		if (channel == null)
 			queue = new NoOpQueue();
+		else if (PooledChannelQueue.class.getName().equals(queueType))
+			queue = new PooledChannelQueue(channel);
+		else if (OnlyOneQueue.class.getName().equals(queueType))
+			queue = new OnlyOneQueue(channel);
+		else if (NoOpQueue.class.getName().equals(queueType))
+			queue = new NoOpQueue();
 		else
 			queue = new PerChannelQueue(channel);
 
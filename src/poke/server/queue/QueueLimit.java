@@ -0,0 +1,223 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.server.conf.ServerConf.GeneralConf;
+import poke.server.resources.ResourceUtil;
+import eye.Comm.Header.ReplyStatus;
+import eye.Comm.Request;
+import eye.Comm.Response;
+
+/**
+ * The capacity of a queue and what to do when it is full (overload). Queues
+ * of the same kind share a limit, so the counters show how often a policy
+ * was triggered across all of them.
+ * <p>
+ * Policies:
+ * <ol>
+ * <li>Suspend - stop reading from the channel (setReadable(false)) until the
+ * queue drains to half its capacity. TCP flow control pushes back on the
+ * sender. Nothing is lost; messages already read from the socket when reads
+ * are suspended are still queued, so the queue can exceed its capacity by one
+ * read's worth of messages.
+ * <li>Reject - reply immediately with a FAILURE (server busy).
+ * <li>DropOldest - discard the oldest queued message to make room.
+ * </ol>
+ * 
+ * @author gash
+ * 
+ */
+public class QueueLimit {
+	protected static Logger logger = LoggerFactory.getLogger(QueueLimit.class);
+
+	public static final int sCapacityDefault = 4096;
+	public static final String sBusyMsg = "server busy";
+
+	// log every nth trigger of a policy
+	static final int sLogRate = 1000;
+
+	public enum Policy {
+		Suspend, Reject, DropOldest
+	}
+
+	private String name;
+	private int capacity;
+	private Policy policy;
+
+	private AtomicLong suspended = new AtomicLong();
+	private AtomicLong rejected = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+
+	public QueueLimit(String name, int capacity, Policy policy) {
+		this.name = name;
+		this.capacity = (capacity > 0) ? capacity : sCapacityDefault;
+		this.policy = (policy != null) ? policy : Policy.Suspend;
+	}
+
+	/**
+	 * create a limit from the server's configuration (general section), e.g.,
+	 * 
+	 * <pre>
+	 * "queue.capacity": "4096",
+	 * "queue.overload": "suspend"
+	 * </pre>
+	 * 
+	 * @param name
+	 *            The queue's name and prefix of the properties
+	 * @param conf
+	 * @return
+	 */
+	public static QueueLimit fromConf(String name, GeneralConf conf) {
+		return fromConf(name, conf, sCapacityDefault);
+	}
+
+	public static QueueLimit fromConf(String name, GeneralConf conf, int capacityDefault) {
+		int capacity = capacityDefault;
+		Policy policy = Policy.Suspend;
+
+		if (conf != null) {
+			String str = conf.getProperty(name + ".capacity");
+			if (str != null) {
+				try {
+					capacity = Integer.parseInt(str.trim());
+				} catch (NumberFormatException e) {
+					logger.warn("Invalid " + name + ".capacity value: " + str + ", using default");
+				}
+			}
+
+			str = conf.getProperty(name + ".overload");
+			if (str != null)
+				policy = parsePolicy(str);
+		}
+
+		return new QueueLimit(name, capacity, policy);
+	}
+
+	/**
+	 * @param str
+	 *            suspend, reject or drop-oldest (case and dashes are ignored)
+	 * @return
+	 */
+	public static Policy parsePolicy(String str) {
+		String s = str.trim().replace("-", "").replace("_", "");
+		for (Policy p : Policy.values()) {
+			if (p.name().equalsIgnoreCase(s))
+				return p;
+		}
+
+		logger.warn("Unknown overload policy " + str + ", using " + Policy.Suspend);
+		return Policy.Suspend;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * the size a queue must drain to before suspended reads are resumed
+	 * 
+	 * @return
+	 */
+	public int getLowWater() {
+		return capacity / 2;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	public long getSuspended() {
+		return suspended.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * stop reading from the channel
+	 * 
+	 * @param channel
+	 */
+	public void suspend(Channel channel) {
+		if (channel != null && channel.isOpen())
+			channel.setReadable(false);
+
+		count(suspended, "suspended reads");
+	}
+
+	/**
+	 * resume reading from a suspended channel
+	 * 
+	 * @param channel
+	 */
+	public void resume(Channel channel) {
+		if (channel != null && channel.isOpen())
+			channel.setReadable(true);
+	}
+
+	/**
+	 * build the reply to a request that cannot be queued
+	 * 
+	 * @param req
+	 * @return
+	 */
+	public Response reject(Request req) {
+		reject();
+		return ResourceUtil.buildError(req.getHeader(), ReplyStatus.FAILURE, sBusyMsg);
+	}
+
+	/**
+	 * note a message was refused where there is no reply to send
+	 */
+	public void reject() {
+		count(rejected, "rejected");
+	}
+
+	/**
+	 * note a message was not queued, or removed from the queue, and will not be
+	 * processed
+	 */
+	public void drop() {
+		count(dropped, "dropped");
+	}
+
+	private void count(AtomicLong counter, String what) {
+		long n = counter.incrementAndGet();
+		if (n == 1 || n % sLogRate == 0)
+			logger.warn(name + " is full (" + capacity + "), " + what + " " + n + " times");
+	}
+
+	@Override
+	public String toString() {
+		return name + " [capacity=" + capacity + ", policy=" + policy + ", suspended=" + suspended + ", rejected="
+				+ rejected + ", dropped=" + dropped + "]";
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.GeneratedMessage;
+
+/**
+ * Asynchronous writer of a channel's replies. Replies are never waited on,
+ * completion is reported to a listener, so several writes can be in flight
+ * (pipelined, up to sMaxInflight). Replies that queue up while the writes are
+ * outstanding are coalesced into a single write (see BatchEncoder) when a
+ * write completes.
+ * <p>
+ * When netty reports the channel is not writable (its write buffer is above
+ * the high water mark) the writer stops and leaves the replies queued. The
+ * ServerHandler calls flush() when the channel's interest changes to writable
+ * again. The writer is found through the channel's attachment.
+ * 
+ * @author gash
+ * 
+ */
+public class ReplyWriter {
+	protected static Logger logger = LoggerFactory.getLogger(ReplyWriter.class);
+
+	// limits of a coalesced write
+	static final int sBatchMessages = 64;
+	static final int sBatchBytes = 64 * 1024;
+
+	// writes the socket has not completed
+	static final int sMaxInflight = 4;
+
+	private Channel channel;
+	private ConcurrentLinkedQueue<GeneratedMessage> outbound = new ConcurrentLinkedQueue<GeneratedMessage>();
+	private AtomicInteger depth = new AtomicInteger();
+	private AtomicInteger inflight = new AtomicInteger();
+	private AtomicBoolean draining = new AtomicBoolean(false);
+	private WriteListener listener = new WriteListener();
+
+	public ReplyWriter(Channel channel) {
+		this.channel = channel;
+		channel.setAttachment(this);
+	}
+
+	/**
+	 * find the writer of a channel
+	 * 
+	 * @param channel
+	 * @return the writer or null if the channel does not have one
+	 */
+	public static ReplyWriter getWriter(Channel channel) {
+		if (channel == null)
+			return null;
+
+		Object att = channel.getAttachment();
+		if (att instanceof ReplyWriter)
+			return (ReplyWriter) att;
+		else
+			return null;
+	}
+
+	/**
+	 * the number of replies waiting to be written
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return depth.get();
+	}
+
+	/**
+	 * the number of writes the socket has not completed
+	 * 
+	 * @return
+	 */
+	public int inflight() {
+		return inflight.get();
+	}
+
+	public void write(GeneratedMessage msg) {
+		if (msg == null)
+			return;
+
+		outbound.offer(msg);
+		depth.incrementAndGet();
+		flush();
+	}
+
+	public void clear() {
+		while (outbound.poll() != null)
+			depth.decrementAndGet();
+	}
+
+	/**
+	 * write queued replies while the channel accepts them. Only one thread
+	 * drains at a time to keep the replies in order.
+	 */
+	public void flush() {
+		while (draining.compareAndSet(false, true)) {
+			try {
+				Channel conn = channel;
+				if (conn == null || !conn.isOpen()) {
+					clear();
+					return;
+				}
+
+				while (canWrite(conn) && !outbound.isEmpty())
+					writeBatch(conn);
+			} finally {
+				draining.set(false);
+			}
+
+			// a reply may have been queued after we stopped looking
+			if (outbound.isEmpty() || !canWrite(channel))
+				return;
+		}
+	}
+
+	private boolean canWrite(Channel conn) {
+		return conn.isWritable() && inflight.get() < sMaxInflight;
+	}
+
+	private void writeBatch(Channel conn) {
+		GeneratedMessage msg = outbound.poll();
+		if (msg == null)
+			return;
+		depth.decrementAndGet();
+
+		GeneratedMessage next = outbound.peek();
+		if (next == null) {
+			// nothing to coalesce with
+			inflight.incrementAndGet();
+			conn.write(msg).addListener(listener);
+			return;
+		}
+
+		List<GeneratedMessage> batch = new ArrayList<GeneratedMessage>();
+		batch.add(msg);
+		int bytes = msg.getSerializedSize();
+		while (next != null && batch.size() < sBatchMessages && bytes + next.getSerializedSize() <= sBatchBytes) {
+			outbound.poll();
+			depth.decrementAndGet();
+			batch.add(next);
+			bytes += next.getSerializedSize();
+			next = outbound.peek();
+		}
+
+		inflight.incrementAndGet();
+		conn.write(batch).addListener(listener);
+	}
+
+	private class WriteListener implements ChannelFutureListener {
+		@Override
+		public void operationComplete(ChannelFuture future) throws Exception {
+			inflight.decrementAndGet();
+			if (!future.isSuccess()) {
+				logger.error("failed to write reply", future.getCause());
+				if (!future.getChannel().isOpen()) {
+					clear();
+					return;
+				}
+			}
+
+			// write what queued up while the write was outstanding
+			if (!outbound.isEmpty())
+				flush();
+		}
+	}
+}
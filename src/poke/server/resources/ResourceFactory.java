@@ -15,7 +15,6 @@
  */
 package poke.server.resources;
 
-import java.beans.Beans;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
@@ -23,6 +22,8 @@ import org.slf4j.LoggerFactory;
 
 import poke.server.conf.ServerConf;
 import poke.server.conf.ServerConf.ResourceConf;
+import poke.server.routing.ForwardResource;
+import poke.server.routing.Replicator;
 import eye.Comm.Header;
 
 /**
@@ -37,7 +38,17 @@ import eye.Comm.Header;
  * instances can be dirty), poor resource control
  * <li>fixed pool - favor resource control over throughput (in this case failure
  * due to no space must be handled)
+ * <li>singleton - one instance shared by all requests (stateless resources)
  * </ol>
+ * The strategy is chosen per routing entry, see ResourceStrategy.
+ * <p>
+ * The routes are resolved once, when the factory is initialized, into a table
+ * indexed by the routing id's ordinal (Header.Routing). A request's resource is
+ * an array lookup. Disabled routing entries, and routing ids without an entry,
+ * have no handler (null) and fail fast.
+ * <p>
+ * Requests addressed to another server (toNode) are given to the forward
+ * resource ("forward" in the conf).
  * 
  * @author gash
  * 
@@ -48,6 +59,16 @@ public class ResourceFactory {
 	private static ServerConf cfg;
 	private static AtomicReference<ResourceFactory> factory = new AtomicReference<ResourceFactory>();
 
+	// dispatch table, Header.Routing ordinal to the strategy managing the
+	// resource's instances
+	private ResourceStrategy[] routes;
+
+	// this server's id (node.id)
+	private String nodeId;
+
+	// handles requests for other servers
+	private ForwardResource forward;
+
 	public static void initialize(ServerConf cfg) {
 		try {
 			ResourceFactory.cfg = cfg;
@@ -66,36 +87,77 @@ public class ResourceFactory {
 	}
 
 	private ResourceFactory() {
+		nodeId = cfg.getServer().getProperty("node.id");
+		routes = new ResourceStrategy[Header.Routing.values().length];
+
+		String fwd = cfg.getServer().getProperty("forward");
+		if (fwd != null) {
+			try {
+				forward = (ForwardResource) Class.forName(fwd.trim()).newInstance();
+				forward.setCfg(cfg);
+			} catch (Exception e) {
+				logger.error("unable to create forward resource " + fwd, e);
+			}
+		}
+
+		if (cfg.getRouting() == null)
+			return;
+
+		for (ResourceConf rc : cfg.getRouting()) {
+			Header.Routing route = Header.Routing.valueOf(rc.getId());
+			if (route == null) {
+				logger.warn("resource " + rc.getName() + " has an unknown routing id " + rc.getId() + ", ignored");
+				continue;
+			} else if (!rc.isEnabled()) {
+				logger.info("resource " + rc.getName() + " (" + route + ") is disabled");
+				continue;
+			} else if (routes[route.ordinal()] != null) {
+				logger.warn("resource " + rc.getName() + " duplicates routing id " + rc.getId() + ", ignored");
+				continue;
+			}
+
+			try {
+				routes[route.ordinal()] = ResourceStrategy.create(rc);
+				logger.info("resource " + rc.getName() + " (" + rc.getClazz() + ") uses strategy "
+						+ routes[route.ordinal()].getType());
+			} catch (Exception e) {
+				logger.error("unable to create resource " + rc.getClazz(), e);
+			}
+		}
 	}
 
 	/**
 	 * Obtain a resource
 	 * 
 	 * @param route
-	 * @return
+	 * @return the resource or null if the route is disabled or not configured
 	 */
 	public Resource resourceInstance(Header header) {
 		// is the message for this server?
 		if (header.hasToNode()) {
-			String iam = cfg.getServer().getProperty("node.id");
-			if (iam.equalsIgnoreCase(header.getToNode()))
+			if (nodeId.equalsIgnoreCase(header.getToNode()))
 				; // fall through and process normally
-			else {
-				// forward request
-			}
+			else
+				return forward;
 		}
 
-		ResourceConf rc = cfg.findById(header.getRoutingId().getNumber());
-		if (rc == null)
-			return null;
+		// a client's document this server owns is also written to (read
+		// from) its other owners
+		Replicator rp = Replicator.getInstance();
+		if (rp != null && rp.coordinates(header))
+			return rp;
 
-		try {
-			// strategy: instance-per-request
-			Resource rsc = (Resource) Beans.instantiate(this.getClass().getClassLoader(), rc.getClazz());
-			return rsc;
-		} catch (Exception e) {
-			logger.error("unable to create resource " + rc.getClazz());
-			return null;
-		}
+		return routes[header.getRoutingId().ordinal()];
+	}
+
+	/**
+	 * Obtain the resource processing a request here (not forwarded, not
+	 * replicated)
+	 * 
+	 * @param header
+	 * @return the resource or null if the route is disabled or not configured
+	 */
+	public Resource localInstance(Header header) {
+		return routes[header.getRoutingId().ordinal()];
 	}
 }
@@ -0,0 +1,252 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.resources;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.server.conf.ServerConf.ResourceConf;
+import eye.Comm.Header.ReplyStatus;
+import eye.Comm.Request;
+import eye.Comm.Response;
+
+/**
+ * How instances of a resource are managed. The strategy is itself a resource,
+ * it obtains an instance, has it process the request and releases it, so the
+ * callers of the ResourceFactory do not need to know which strategy is used.
+ * <p>
+ * The strategy is set per routing entry ("strategy" in the conf):
+ * <ol>
+ * <li>request - instance-per-request (default)
+ * <li>pool - pool w/ dynamic growth, at most poolSize idle instances are kept
+ * <li>fixed - fixed pool of poolSize instances, a request arriving when all
+ * are in use is answered with a FAILURE
+ * <li>singleton - one instance shared by all threads (the resource must be
+ * stateless/thread-safe)
+ * </ol>
+ * The resource's class is loaded once, instances are created through its
+ * no-arg constructor.
+ * 
+ * @author gash
+ * 
+ */
+public abstract class ResourceStrategy implements Resource {
+	protected static Logger logger = LoggerFactory.getLogger(ResourceStrategy.class);
+
+	public static final int sPoolSizeDefault = 16;
+
+	public enum Type {
+		Request, Pool, Fixed, Singleton
+	}
+
+	protected String name;
+	protected Constructor<? extends Resource> ctor;
+
+	protected ResourceStrategy(String name, Class<? extends Resource> clazz) throws Exception {
+		this.name = name;
+		this.ctor = clazz.getConstructor();
+	}
+
+	/**
+	 * create the strategy described by the routing entry
+	 * 
+	 * @param rc
+	 * @return
+	 * @throws Exception
+	 *             if the resource's class cannot be loaded
+	 */
+	public static ResourceStrategy create(ResourceConf rc) throws Exception {
+		Class<? extends Resource> clazz = Class
+				.forName(rc.getClazz(), true, ResourceStrategy.class.getClassLoader()).asSubclass(Resource.class);
+
+		int size = (rc.getPoolSize() > 0) ? rc.getPoolSize() : sPoolSizeDefault;
+
+		switch (parseType(rc.getStrategy())) {
+		case Pool:
+			return new Pool(rc.getName(), clazz, size);
+		case Fixed:
+			return new FixedPool(rc.getName(), clazz, size);
+		case Singleton:
+			return new Singleton(rc.getName(), clazz);
+		default:
+			return new PerRequest(rc.getName(), clazz);
+		}
+	}
+
+	public static Type parseType(String str) {
+		if (str == null)
+			return Type.Request;
+
+		for (Type t : Type.values()) {
+			if (t.name().equalsIgnoreCase(str.trim()))
+				return t;
+		}
+
+		logger.warn("Unknown resource strategy " + str + ", using " + Type.Request);
+		return Type.Request;
+	}
+
+	protected Resource newInstance() {
+		try {
+			return ctor.newInstance();
+		} catch (Exception e) {
+			logger.error("unable to create resource " + ctor.getDeclaringClass().getName(), e);
+			return null;
+		}
+	}
+
+	public abstract Type getType();
+
+	public Class<? extends Resource> getResourceClass() {
+		return ctor.getDeclaringClass();
+	}
+
+	protected Response notProcessed(Request request, String msg) {
+		return ResourceUtil.buildError(request.getHeader(), ReplyStatus.FAILURE, msg);
+	}
+
+	/**
+	 * instance-per-request - best isolation, worst object reuse and control
+	 */
+	public static class PerRequest extends ResourceStrategy {
+		public PerRequest(String name, Class<? extends Resource> clazz) throws Exception {
+			super(name, clazz);
+		}
+
+		@Override
+		public Type getType() {
+			return Type.Request;
+		}
+
+		@Override
+		public Response process(Request request) {
+			Resource rsc = newInstance();
+			if (rsc == null)
+				return notProcessed(request, "Request not processed");
+
+			return rsc.process(request);
+		}
+	}
+
+	/**
+	 * one instance shared by all requests
+	 */
+	public static class Singleton extends ResourceStrategy {
+		private Resource rsc;
+
+		public Singleton(String name, Class<? extends Resource> clazz) throws Exception {
+			super(name, clazz);
+			rsc = ctor.newInstance();
+		}
+
+		@Override
+		public Type getType() {
+			return Type.Singleton;
+		}
+
+		@Override
+		public Response process(Request request) {
+			return rsc.process(request);
+		}
+	}
+
+	/**
+	 * pool w/ dynamic growth - instances are created when the pool is empty,
+	 * at most maxIdle instances are returned to the pool.
+	 */
+	public static class Pool extends ResourceStrategy {
+		private ConcurrentLinkedQueue<Resource> idle = new ConcurrentLinkedQueue<Resource>();
+		private AtomicInteger idleCount = new AtomicInteger();
+		private int maxIdle;
+
+		public Pool(String name, Class<? extends Resource> clazz, int maxIdle) throws Exception {
+			super(name, clazz);
+			this.maxIdle = maxIdle;
+		}
+
+		@Override
+		public Type getType() {
+			return Type.Pool;
+		}
+
+		@Override
+		public Response process(Request request) {
+			Resource rsc = idle.poll();
+			if (rsc != null)
+				idleCount.decrementAndGet();
+			else {
+				rsc = newInstance();
+				if (rsc == null)
+					return notProcessed(request, "Request not processed");
+			}
+
+			try {
+				return rsc.process(request);
+			} finally {
+				if (idleCount.incrementAndGet() <= maxIdle)
+					idle.offer(rsc);
+				else
+					idleCount.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * fixed pool - favor resource control over throughput. A request that
+	 * finds no free instance is answered with a FAILURE (server busy).
+	 */
+	public static class FixedPool extends ResourceStrategy {
+		private BlockingQueue<Resource> idle;
+
+		public FixedPool(String name, Class<? extends Resource> clazz, int size) throws Exception {
+			super(name, clazz);
+
+			idle = new ArrayBlockingQueue<Resource>(size);
+			for (int n = 0; n < size; n++)
+				idle.offer(ctor.newInstance());
+		}
+
+		@Override
+		public Type getType() {
+			return Type.Fixed;
+		}
+
+		public int available() {
+			return idle.size();
+		}
+
+		@Override
+		public Response process(Request request) {
+			Resource rsc = idle.poll();
+			if (rsc == null) {
+				logger.warn("no free instance of " + name + ", request not processed");
+				return notProcessed(request, "server busy");
+			}
+
+			try {
+				return rsc.process(request);
+			} finally {
+				idle.offer(rsc);
+			}
+		}
+	}
+}
@@ -21,6 +21,7 @@ import poke.server.conf.ServerConf;
 import eye.Comm.Header;
 import eye.Comm.Header.ReplyStatus;
 import eye.Comm.Header.Routing;
+import eye.Comm.PayloadReply;
 import eye.Comm.Request;
 import eye.Comm.Response;
 import eye.Comm.RoutingPath;
@@ -91,6 +92,9 @@ public class ResourceUtil {
 		Header hdr = buildHeaderFrom(reqHeader, status, statusMsg);
 		bldr.setHeader(hdr);
 
+		// the body is required even if there is nothing to return
+		bldr.setBody(PayloadReply.newBuilder().build());
+
 		// TODO add logging
 
 		return bldr.build();
@@ -0,0 +1,64 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+
+import com.google.protobuf.MessageLite;
+
+/**
+ * Encodes a list of protobuf messages into a single buffer so that the
+ * messages are written (flushed) to the socket together. Each message is
+ * framed exactly as the frameEncoder/protobufEncoder pair does (4 byte length,
+ * message bytes), the receiver cannot tell the difference.
+ * <p>
+ * The encoder must be placed before the frameEncoder. Lists pass through the
+ * protobuf and frame encoders untouched and are framed here, all other
+ * messages are passed on as is.
+ * 
+ * @author gash
+ * 
+ */
+public class BatchEncoder extends OneToOneEncoder {
+
+	@Override
+	protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+		if (!(msg instanceof List))
+			return msg;
+
+		List<?> batch = (List<?>) msg;
+		int size = 0;
+		for (Object m : batch)
+			size += 4 + ((MessageLite) m).getSerializedSize();
+
+		ChannelBuffer buf = ChannelBuffers.buffer(size);
+		ChannelBufferOutputStream out = new ChannelBufferOutputStream(buf);
+		for (Object m : batch) {
+			MessageLite ml = (MessageLite) m;
+			buf.writeInt(ml.getSerializedSize());
+			ml.writeTo(out);
+		}
+
+		return buf;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eye.Comm.Header;
+
+/**
+ * Remembers the requests forwarded to this server so a request that arrives a
+ * second time (by another route, or resent) is dropped before it is queued. A
+ * request is identified by its originator, tag and time, which do not change
+ * as it is forwarded (see ForwardingEngine).
+ * <p>
+ * Only forwarded requests (with a path) are checked. Requests from clients do
+ * not necessarily have a unique tag and time (a client may send many requests
+ * with the same tag within a millisecond) and cannot be amplified by the
+ * topology.
+ * <p>
+ * The cache is two generations of keys. Keys are added to the current
+ * generation; when it is full or older than sTtlMsec, it becomes the previous
+ * generation and the old previous one is discarded. A key is therefore
+ * remembered for at least sTtlMsec (unless more than sCapacity requests arrive
+ * within that time) and memory is bounded by twice sCapacity keys, without a
+ * per-key timestamp or a sweep.
+ * 
+ * @author gash
+ * 
+ */
+public class DuplicateCache {
+	protected static Logger logger = LoggerFactory.getLogger(DuplicateCache.class);
+
+	// keys in a generation
+	static final int sCapacity = 50000;
+
+	// age of a generation before it is retired
+	static final int sTtlMsec = 60000;
+
+	// log every nth duplicate
+	static final int sLogRate = 1000;
+
+	private static final DuplicateCache instance = new DuplicateCache(sCapacity, sTtlMsec);
+
+	private final int capacity;
+	private final int ttl;
+
+	private volatile ConcurrentHashMap<String, Boolean> current = new ConcurrentHashMap<String, Boolean>();
+	private volatile ConcurrentHashMap<String, Boolean> previous = new ConcurrentHashMap<String, Boolean>();
+	private volatile long started = System.currentTimeMillis();
+	private AtomicLong dropped = new AtomicLong();
+
+	public static DuplicateCache getInstance() {
+		return instance;
+	}
+
+	public DuplicateCache(int capacity, int ttlMsec) {
+		this.capacity = capacity;
+		this.ttl = ttlMsec;
+	}
+
+	/**
+	 * the number of duplicates found
+	 * 
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * record that the request was seen
+	 * 
+	 * @param hdr
+	 * @return true if it was seen before (a duplicate)
+	 */
+	public boolean isDuplicate(Header hdr) {
+		if (hdr.getPathCount() == 0)
+			return false;
+
+		String key = hdr.getOriginator() + '\u0000' + hdr.getTag() + '\u0000' + hdr.getTime();
+
+		rotate();
+		boolean dup = previous.containsKey(key) || current.putIfAbsent(key, Boolean.TRUE) != null;
+		if (dup) {
+			long n = dropped.incrementAndGet();
+			if (n == 1 || n % sLogRate == 0)
+				logger.warn("duplicate request " + hdr.getTag() + " from " + hdr.getOriginator() + ", " + n
+						+ " duplicates dropped");
+		}
+
+		return dup;
+	}
+
+	private void rotate() {
+		if (current.size() < capacity && System.currentTimeMillis() - started < ttl)
+			return;
+
+		synchronized (this) {
+			if (current.size() < capacity && System.currentTimeMillis() - started < ttl)
+				return;
+
+			previous = current;
+			current = new ConcurrentHashMap<String, Boolean>();
+			started = System.currentTimeMillis();
+		}
+	}
+}
@@ -15,20 +15,19 @@
  */
 package poke.server.routing;
 
-import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import poke.server.conf.NodeDesc;
 import poke.server.conf.ServerConf;
+import poke.server.queue.ChannelQueue;
 import poke.server.resources.Resource;
 import poke.server.resources.ResourceUtil;
-import eye.Comm.Finger;
-import eye.Comm.PayloadReply;
+import eye.Comm.Header.ReplyStatus;
 import eye.Comm.Request;
 import eye.Comm.Response;
-import eye.Comm.RoutingPath;
 
 /**
  * The forward resource is used by the ResourceFactory to send requests to a
@@ -36,6 +35,10 @@ import eye.Comm.RoutingPath;
  * 
  * Strategies used by the Forward can include TTL (max hops), durable tracking,
  * endpoint hiding.
+ * <p>
+ * The work is done by the ForwardingEngine. The queues call forward() so the
+ * reply is relayed to the channel asynchronously; process() is for callers
+ * that need the reply in hand and blocks until it arrives.
  * 
  * @author gash
  * 
@@ -56,63 +59,53 @@ public class ForwardResource implements Resource {
 	 */
 	public void setCfg(ServerConf cfg) {
 		this.cfg = cfg;
+		ForwardingEngine.getInstance(cfg);
+	}
+
+	/**
+	 * forward the request, the reply is enqueued on the origin when it arrives
+	 * 
+	 * @param request
+	 * @param origin
+	 */
+	public void forward(Request request, ChannelQueue origin) {
+		ForwardingEngine.getInstance(cfg).forward(request, origin);
 	}
 
 	@Override
 	public Response process(Request request) {
-		String nextNode = determineForwardNode(request);
-		if (nextNode != null) {
-			Request fwd = ResourceUtil.buildForwardMessage(request, cfg);
-
-			// TODO forward the request
-
-			return null;
-		} else {
-			Response reply = null;
-			// cannot forward the message - no edge or already traveled known
-			// edges
-
-			// TODO should we just fail silently?
-
-			Response.Builder rb = Response.newBuilder();
-			PayloadReply.Builder pb = PayloadReply.newBuilder();
-			Finger.Builder fb = Finger.newBuilder();
-			fb.setTag(request.getBody().getFinger().getTag());
-			fb.setNumber(request.getBody().getFinger().getNumber());
-			pb.setFinger(fb.build());
-			rb.setBody(pb.build());
-
-			reply = rb.build();
-
-			return reply;
+		ReplyHolder holder = new ReplyHolder();
+		forward(request, holder);
+
+		try {
+			if (holder.latch.await(ForwardingEngine.sTimeoutMsec + 1000, TimeUnit.MILLISECONDS))
+				return holder.reply;
+		} catch (InterruptedException e) {
+			logger.warn("interrupted waiting for forwarded reply");
 		}
+
+		return ResourceUtil.buildError(request.getHeader(), ReplyStatus.FAILURE, "Forward not answered");
 	}
 
 	/**
-	 * Find the nearest node that has not received the request.
-	 * 
-	 * TODO this should use the heartbeat to determine which node is active in
-	 * its list.
-	 * 
-	 * @param request
-	 * @return
+	 * receives the reply for a caller of process()
 	 */
-	private String determineForwardNode(Request request) {
-		List<RoutingPath> paths = request.getHeader().getPathList();
-		if (paths == null || paths.size() == 0) {
-			// pick first nearest
-			NodeDesc nd = cfg.getNearest().getNearestNodes().values().iterator().next();
-			return nd.getNodeId();
-		} else {
-			// if this server has already seen this message return null
-			for (RoutingPath rp : paths) {
-				for (NodeDesc nd : cfg.getNearest().getNearestNodes().values()) {
-					if (!nd.getNodeId().equalsIgnoreCase(rp.getNode()))
-						return nd.getNodeId();
-				}
-			}
+	private static class ReplyHolder implements ChannelQueue {
+		CountDownLatch latch = new CountDownLatch(1);
+		volatile Response reply;
+
+		@Override
+		public void shutdown(boolean hard) {
 		}
 
-		return null;
+		@Override
+		public void enqueueRequest(Request req) {
+		}
+
+		@Override
+		public void enqueueResponse(Response reply) {
+			this.reply = reply;
+			latch.countDown();
+		}
 	}
 }
@@ -0,0 +1,361 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.server.conf.NodeDesc;
+import poke.server.conf.ServerConf;
+import poke.server.management.HeartbeatData.BeatStatus;
+import poke.server.management.TopologyManager;
+import poke.server.queue.ChannelQueue;
+import poke.server.resources.ResourceUtil;
+import eye.Comm.Header;
+import eye.Comm.Header.ReplyStatus;
+import eye.Comm.Request;
+import eye.Comm.Response;
+import eye.Comm.RoutingPath;
+
+/**
+ * Forwards requests to neighbors and relays their replies to the channel the
+ * request came from.
+ * <p>
+ * Each neighbor has one persistent connection (NeighborConnection) that all
+ * forwarded requests share. To match a reply with its request, the first
+ * server to forward a request replaces the request's tag with a key unique in
+ * the cluster (node id and sequence); the reply carries the key back (see
+ * ResourceUtil.buildHeaderFrom) and the first server restores the original
+ * tag before the reply is relayed to the client. Servers further on keep the
+ * key, so a request has the same originator, tag and time on every hop, which
+ * is what the DuplicateCache recognizes it by. A request can travel any number
+ * of hops and the reply retraces its path.
+ * <p>
+ * Nothing waits for a reply. Replies are relayed by the thread that receives
+ * them, and requests not answered within sTimeoutMsec, or outstanding on a
+ * connection that closes, are answered with a FAILURE.
+ * <p>
+ * Which neighbor a request is passed to is decided by a NextHopSelector.
+ * 
+ * @author gash
+ * 
+ */
+public class ForwardingEngine {
+	protected static Logger logger = LoggerFactory.getLogger(ForwardingEngine.class);
+	protected static AtomicReference<ForwardingEngine> instance = new AtomicReference<ForwardingEngine>();
+
+	// time a forwarded request waits for its reply
+	static final int sTimeoutMsec = 30000;
+
+	// requests carrying this many hops (path) are not forwarded
+	static final int sMaxHops = 16;
+
+	// forwarded requests waiting for a reply
+	static final int sMaxPending = 10000;
+
+	private String nodeId;
+	private ServerConf cfg;
+	private ChannelFactory factory;
+	// not modified after construction, ordered by node id
+	private Map<String, NeighborConnection> neighbors = new TreeMap<String, NeighborConnection>();
+	private ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+	private AtomicLong seq = new AtomicLong();
+	private ScheduledExecutorService timer;
+	private NextHopSelector selector;
+
+	/**
+	 * create the server's engine. The first configuration wins.
+	 * 
+	 * @param cfg
+	 * @return
+	 */
+	public static ForwardingEngine getInstance(ServerConf cfg) {
+		if (instance.get() == null) {
+			synchronized (ForwardingEngine.class) {
+				if (instance.get() == null)
+					instance.set(new ForwardingEngine(cfg));
+			}
+		}
+
+		return instance.get();
+	}
+
+	public static ForwardingEngine getInstance() {
+		return instance.get();
+	}
+
+	protected ForwardingEngine(ServerConf cfg) {
+		this.cfg = cfg;
+		this.nodeId = cfg.getServer().getProperty("node.id");
+
+		selector = NextHopSelector.create(cfg.getServer().getProperty("forward.selector"));
+
+		factory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+
+		if (cfg.getNearest() != null && cfg.getNearest().getNearestNodes() != null) {
+			for (NodeDesc nd : cfg.getNearest().getNearestNodes().values())
+				neighbors.put(nd.getNodeId(), new NeighborConnection(nd, factory, this));
+		}
+
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "forward-timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				expire();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+
+		logger.info("forwarding to " + neighbors.keySet() + ", next hop by " + selector.getClass().getSimpleName());
+	}
+
+	public void release() {
+		timer.shutdownNow();
+		for (NeighborConnection nc : neighbors.values())
+			nc.close();
+		factory.releaseExternalResources();
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * the number of forwarded requests waiting for their reply
+	 * 
+	 * @return
+	 */
+	public int getPending() {
+		return pending.size();
+	}
+
+	public NeighborConnection getNeighbor(String nodeId) {
+		return neighbors.get(nodeId);
+	}
+
+	/**
+	 * forward a request. The reply, or a FAILURE if the request cannot be
+	 * delivered, is enqueued on the origin.
+	 * 
+	 * @param req
+	 * @param origin
+	 *            The queue of the channel the request arrived on
+	 */
+	public void forward(Request req, ChannelQueue origin) {
+		Header hdr = req.getHeader();
+		if (hdr.getPathCount() >= sMaxHops) {
+			origin.enqueueResponse(ResourceUtil.buildError(hdr, ReplyStatus.FAILURE, "Too many hops"));
+			return;
+		} else if (pending.size() >= sMaxPending) {
+			origin.enqueueResponse(ResourceUtil.buildError(hdr, ReplyStatus.FAILURE, "server busy"));
+			return;
+		}
+
+		// adds this server to the path, null if we have seen it before
+		Request fwd = ResourceUtil.buildForwardMessage(req, cfg);
+		NeighborConnection next = (fwd != null) ? nextHop(req) : null;
+		if (next == null) {
+			origin.enqueueResponse(ResourceUtil.buildError(hdr, ReplyStatus.FAILURE, "No route to "
+					+ hdr.getToNode()));
+			return;
+		}
+
+		// a request from a client gets a key, forwarded requests have one
+		String key;
+		Request.Builder bldr = Request.newBuilder(fwd);
+		if (hdr.getPathCount() == 0) {
+			key = nodeId + "." + seq.incrementAndGet();
+			bldr.getHeaderBuilder().setTag(key);
+		} else
+			key = hdr.getTag();
+
+		if (pending.putIfAbsent(key, new Pending(origin, hdr, next)) != null) {
+			logger.warn("request " + key + " is already being forwarded, dropped");
+			return;
+		}
+		if (!next.send(bldr.build()))
+			failed(key, "Neighbor " + next.getNodeId() + " unreachable");
+	}
+
+	/**
+	 * Find the neighbor to pass the request to. If the topology has a route to
+	 * the destination, the choice is limited to the neighbors that start a
+	 * shortest path; otherwise any neighbor the request has not visited may be
+	 * tried. The selector picks among the choices. Failed neighbors are only
+	 * tried if all have failed.
+	 * 
+	 * @param req
+	 * @return null if there is no neighbor left to try
+	 */
+	protected NeighborConnection nextHop(Request req) {
+		Header hdr = req.getHeader();
+
+		Set<String> shortest = null;
+		TopologyManager tm = TopologyManager.getInstance();
+		if (tm != null && hdr.hasToNode()) {
+			shortest = tm.nextHops(hdr.getToNode());
+			if (shortest.isEmpty())
+				shortest = null;
+		}
+
+		NeighborConnection rtn = null;
+		if (shortest != null)
+			rtn = nextHop(hdr, req, shortest);
+		if (rtn == null)
+			rtn = nextHop(hdr, req, neighbors.keySet());
+
+		return rtn;
+	}
+
+	private NeighborConnection nextHop(Header hdr, Request req, Set<String> allowed) {
+		List<NeighborConnection> candidates = new ArrayList<NeighborConnection>();
+		List<NeighborConnection> failed = null;
+		for (String id : allowed) {
+			NeighborConnection nc = neighbors.get(id);
+			if (nc == null || visited(hdr, id))
+				continue;
+
+			if (nc.getHealth() == BeatStatus.Failed) {
+				if (failed == null)
+					failed = new ArrayList<NeighborConnection>();
+				failed.add(nc);
+			} else
+				candidates.add(nc);
+		}
+
+		if (candidates.isEmpty()) {
+			if (failed == null)
+				return null;
+			candidates = failed;
+		}
+
+		if (hdr.hasToNode()) {
+			for (NeighborConnection nc : candidates) {
+				if (nc.getNodeId().equalsIgnoreCase(hdr.getToNode()))
+					return nc;
+			}
+		}
+
+		return selector.select(req, candidates);
+	}
+
+	private boolean visited(Header hdr, String node) {
+		for (RoutingPath rp : hdr.getPathList()) {
+			if (rp.getNode().equalsIgnoreCase(node))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * a reply from a neighbor; relay it to the channel that made the request
+	 * 
+	 * @param reply
+	 */
+	void replied(Response reply) {
+		Pending p = complete(reply.getHeader().getTag());
+		if (p == null) {
+			logger.warn("reply " + reply.getHeader().getTag() + " does not match a forwarded request, dropped");
+			return;
+		}
+
+		p.next.recordRtt(System.nanoTime() - p.sent);
+
+		Response.Builder bldr = Response.newBuilder(reply);
+		bldr.getHeaderBuilder().setTag(p.header.getTag());
+		p.origin.enqueueResponse(bldr.build());
+	}
+
+	/**
+	 * a forwarded request that will not be answered
+	 * 
+	 * @param key
+	 * @param msg
+	 */
+	void failed(String key, String msg) {
+		Pending p = complete(key);
+		if (p == null)
+			return;
+
+		logger.warn(msg + " (" + p.header.getTag() + ")");
+		p.origin.enqueueResponse(ResourceUtil.buildError(p.header, ReplyStatus.FAILURE, msg));
+	}
+
+	private Pending complete(String key) {
+		Pending p = pending.remove(key);
+		if (p != null)
+			p.next.answered();
+		return p;
+	}
+
+	/**
+	 * a neighbor's connection closed, the requests sent on it will not be
+	 * answered
+	 * 
+	 * @param nc
+	 */
+	void closed(NeighborConnection nc) {
+		for (Map.Entry<String, Pending> e : pending.entrySet()) {
+			if (e.getValue().next == nc)
+				failed(e.getKey(), "Connection to " + nc.getNodeId() + " lost");
+		}
+	}
+
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Pending> e : pending.entrySet()) {
+			if (e.getValue().expires < now)
+				failed(e.getKey(), "Forward to " + e.getValue().next.getNodeId() + " timed out");
+		}
+	}
+
+	private static class Pending {
+		ChannelQueue origin;
+		Header header;
+		NeighborConnection next;
+		long expires;
+		long sent;
+
+		public Pending(ChannelQueue origin, Header header, NeighborConnection next) {
+			this.origin = origin;
+			this.header = header;
+			this.next = next;
+			this.expires = System.currentTimeMillis() + sTimeoutMsec;
+			this.sent = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A consistent hash ring of nodes. Each node is placed on the ring at several
+ * points (virtual nodes), a key belongs to the node of the first point at or
+ * after the key's hash, and its replicas to the next distinct nodes. Adding or
+ * removing a node moves only the keys of the ring's arcs that node gains or
+ * loses (about 1/n of them), spread over all the other nodes.
+ * <p>
+ * The ring is immutable, a change of nodes is a new ring. Every server builds
+ * the same ring from the same nodes (the hash does not depend on the JVM).
+ * 
+ * @author gash
+ * 
+ */
+public class HashRing {
+	private final Set<String> nodes;
+	private final long[] points;
+	private final String[] owners;
+
+	/**
+	 * @param nodes
+	 * @param vnodes
+	 *            Points per node
+	 */
+	public HashRing(Collection<String> nodes, int vnodes) {
+		this.nodes = Collections.unmodifiableSet(new TreeSet<String>(nodes));
+
+		// a point two nodes hash to (not expected) goes to the last
+		TreeMap<Long, String> ring = new TreeMap<Long, String>();
+		for (String node : this.nodes) {
+			for (int v = 0; v < vnodes; v++)
+				ring.put(hash(node + "#" + v), node);
+		}
+
+		points = new long[ring.size()];
+		owners = new String[ring.size()];
+		int i = 0;
+		for (Map.Entry<Long, String> e : ring.entrySet()) {
+			points[i] = e.getKey();
+			owners[i++] = e.getValue();
+		}
+	}
+
+	public Set<String> getNodes() {
+		return nodes;
+	}
+
+	public boolean isEmpty() {
+		return nodes.isEmpty();
+	}
+
+	/**
+	 * the node a key belongs to
+	 * 
+	 * @param key
+	 * @return null if the ring is empty
+	 */
+	public String owner(String key) {
+		if (points.length == 0)
+			return null;
+		return owners[first(hash(key))];
+	}
+
+	/**
+	 * the node a key belongs to and its replicas, in order
+	 * 
+	 * @param key
+	 * @param n
+	 *            The number of nodes wanted (fewer if the ring has fewer)
+	 * @return
+	 */
+	public List<String> owners(String key, int n) {
+		n = Math.min(n, nodes.size());
+		List<String> rtn = new ArrayList<String>(n);
+		if (n <= 0)
+			return rtn;
+
+		for (int i = first(hash(key)), seen = 0; rtn.size() < n && seen < points.length; i++, seen++) {
+			String node = owners[i % points.length];
+			if (!rtn.contains(node))
+				rtn.add(node);
+		}
+		return rtn;
+	}
+
+	/**
+	 * the first point at or after a hash (wrapping around)
+	 */
+	private int first(long h) {
+		int i = Arrays.binarySearch(points, h);
+		if (i < 0)
+			i = -i - 1;
+		return (i < points.length) ? i : 0;
+	}
+
+	/**
+	 * FNV-1a, mixed (the points of a node's names differ in a character)
+	 * 
+	 * @param s
+	 * @return
+	 */
+	static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0, I = s.length(); i < I; i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.client.ClientDecoderPipeline;
+import poke.client.ClientListener;
+import poke.server.conf.NodeDesc;
+import poke.server.management.HeartbeatData;
+import poke.server.management.HeartbeatData.BeatStatus;
+import poke.server.management.HeartbeatManager;
+import eye.Comm.Request;
+import eye.Comm.Response;
+
+/**
+ * A persistent connection to a neighbor (NearestConf) over which requests are
+ * forwarded. The connection is shared by all requests forwarded to the
+ * neighbor (multiplexed), replies are matched to the requests by the
+ * ForwardingEngine.
+ * <p>
+ * The connection is made when the first request is sent and re-made, after a
+ * lost connection, by the next request. Requests sent while the connection is
+ * being made wait for it; if the neighbor cannot be reached, they fail and
+ * further attempts are held off for sRetryMsec so requests fail fast.
+ * 
+ * @author gash
+ * 
+ */
+public class NeighborConnection {
+	protected static Logger logger = LoggerFactory.getLogger(NeighborConnection.class);
+
+	// time between connection attempts to an unreachable neighbor
+	static final int sRetryMsec = 2000;
+
+	private NodeDesc node;
+	private ForwardingEngine engine;
+	private ClientBootstrap bootstrap;
+
+	private volatile Channel channel;
+	private ChannelFuture connecting;
+	private volatile long lastFailure;
+	private List<Request> waiting = new ArrayList<Request>();
+
+	// requests forwarded and not yet answered
+	private AtomicInteger outstanding = new AtomicInteger();
+
+	// smoothed round-trip time (nsec) of forwarded requests, 0 until measured
+	private volatile long rtt;
+
+	public NeighborConnection(NodeDesc node, ChannelFactory factory, ForwardingEngine engine) {
+		this.node = node;
+		this.engine = engine;
+
+		ClientDecoderPipeline pipeline = new ClientDecoderPipeline();
+		pipeline.addListener(new ReplyListener());
+
+		bootstrap = new ClientBootstrap(factory);
+		bootstrap.setOption("connectTimeoutMillis", 10000);
+		bootstrap.setOption("tcpNoDelay", true);
+		bootstrap.setOption("keepAlive", true);
+		bootstrap.setPipelineFactory(pipeline);
+	}
+
+	public NodeDesc getNode() {
+		return node;
+	}
+
+	public String getNodeId() {
+		return node.getNodeId();
+	}
+
+	public boolean isConnected() {
+		Channel ch = channel;
+		return ch != null && ch.isConnected();
+	}
+
+	/**
+	 * the number of requests sent to this neighbor that have not been answered
+	 * 
+	 * @return
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	void answered() {
+		outstanding.decrementAndGet();
+	}
+
+	/**
+	 * the smoothed round-trip time of the requests forwarded to this neighbor
+	 * 
+	 * @return nsec, 0 if no request has been answered yet
+	 */
+	public long getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * add a measured round-trip time, smoothed as TCP does (1/8 weight)
+	 * 
+	 * @param nsec
+	 */
+	void recordRtt(long nsec) {
+		long r = rtt;
+		rtt = (r == 0) ? nsec : r + (nsec - r) / 8;
+	}
+
+	/**
+	 * The neighbor's health as seen by the heartbeat. A neighbor we failed to
+	 * connect to recently is Failed regardless of its heartbeat.
+	 * 
+	 * @return
+	 */
+	public BeatStatus getHealth() {
+		long lf = lastFailure;
+		if (lf != 0 && System.currentTimeMillis() - lf < sRetryMsec)
+			return BeatStatus.Failed;
+
+		HeartbeatManager mgr = HeartbeatManager.getInstance();
+		HeartbeatData hd = (mgr != null) ? mgr.getNearestNode(node.getNodeId()) : null;
+		return (hd != null) ? hd.getStatus() : BeatStatus.Unknown;
+	}
+
+	/**
+	 * send a request, connecting first if needed. The request counts as
+	 * outstanding even if it cannot be sent, the ForwardingEngine fails it and
+	 * that answers it.
+	 * 
+	 * @param req
+	 * @return false if the neighbor cannot be reached
+	 */
+	public boolean send(Request req) {
+		outstanding.incrementAndGet();
+
+		Channel ch = channel;
+		if (ch == null || !ch.isConnected()) {
+			synchronized (this) {
+				ch = channel;
+				if (ch == null || !ch.isConnected()) {
+					if (!connect())
+						return false;
+
+					waiting.add(req);
+					return true;
+				}
+			}
+		}
+
+		write(ch, req);
+		return true;
+	}
+
+	public synchronized void close() {
+		if (channel != null)
+			channel.close();
+		channel = null;
+	}
+
+	/**
+	 * start a connection attempt unless one is under way or the last one
+	 * failed recently. Caller must hold the lock.
+	 * 
+	 * @return false if no connection can be expected
+	 */
+	private boolean connect() {
+		if (connecting != null)
+			return true;
+		else if (System.currentTimeMillis() - lastFailure < sRetryMsec)
+			return false;
+
+		logger.info("connecting to neighbor " + node.getNodeId() + " (" + node.getHost() + ", " + node.getPort()
+				+ ")");
+		connecting = bootstrap.connect(new InetSocketAddress(node.getHost(), node.getPort()));
+		connecting.addListener(new ConnectListener());
+		return true;
+	}
+
+	private void write(Channel ch, final Request req) {
+		ch.write(req).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (!future.isSuccess())
+					engine.failed(req.getHeader().getTag(), "Forward to " + node.getNodeId() + " failed");
+			}
+		});
+	}
+
+	private class ConnectListener implements ChannelFutureListener {
+		@Override
+		public void operationComplete(ChannelFuture future) throws Exception {
+			List<Request> reqs;
+			Channel ch = null;
+			synchronized (NeighborConnection.this) {
+				connecting = null;
+				reqs = waiting;
+				waiting = new ArrayList<Request>();
+
+				if (future.isSuccess()) {
+					ch = future.getChannel();
+					channel = ch;
+					ch.getCloseFuture().addListener(new ChannelFutureListener() {
+						@Override
+						public void operationComplete(ChannelFuture cf) throws Exception {
+							logger.info("connection to neighbor " + node.getNodeId() + " closed");
+							synchronized (NeighborConnection.this) {
+								if (channel == cf.getChannel())
+									channel = null;
+							}
+							engine.closed(NeighborConnection.this);
+						}
+					});
+				} else
+					lastFailure = System.currentTimeMillis();
+			}
+
+			if (ch != null) {
+				logger.info("connected to neighbor " + node.getNodeId());
+				for (Request req : reqs)
+					write(ch, req);
+			} else {
+				logger.warn("neighbor " + node.getNodeId() + " is unreachable");
+				for (Request req : reqs)
+					engine.failed(req.getHeader().getTag(), "Neighbor " + node.getNodeId() + " unreachable");
+			}
+		}
+	}
+
+	private class ReplyListener implements ClientListener {
+		@Override
+		public String getListenerID() {
+			return "forward-" + node.getNodeId();
+		}
+
+		@Override
+		public void onMessage(Response msg) {
+			engine.replied(msg);
+		}
+	}
+}
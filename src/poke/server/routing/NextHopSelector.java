@@ -0,0 +1,150 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.server.management.HeartbeatData.BeatStatus;
+import eye.Comm.Request;
+
+/**
+ * Chooses the neighbor a forwarded request is passed to. The ForwardingEngine
+ * removes the neighbors the request has visited and, if there are others,
+ * those that are known to have failed; the selector picks from the rest.
+ * <p>
+ * The selector is set with "forward.selector" in the conf (general):
+ * <ol>
+ * <li>first - the first connected neighbor (in node id order)
+ * <li>least-outstanding - the neighbor of lowest cost (default)
+ * <li>two-choices - the cheaper of two neighbors chosen at random (power of
+ * two choices), which spreads load without every server herding to the same
+ * neighbor
+ * <li>the name of a class extending NextHopSelector
+ * </ol>
+ * The cost of a neighbor is its unanswered requests times its observed
+ * round-trip time. It is doubled if the neighbor's heartbeat status is not
+ * known yet and quadrupled if the heartbeat is Weak.
+ * 
+ * @author gash
+ * 
+ */
+public abstract class NextHopSelector {
+	protected static Logger logger = LoggerFactory.getLogger(NextHopSelector.class);
+
+	/**
+	 * @param req
+	 * @param candidates
+	 *            The neighbors to choose from, never empty
+	 * @return
+	 */
+	public abstract NeighborConnection select(Request req, List<NeighborConnection> candidates);
+
+	public static NextHopSelector create(String name) {
+		if (name == null || name.trim().length() == 0)
+			return new LeastOutstanding();
+
+		String n = name.trim().replace("-", "").replace("_", "");
+		if (n.equalsIgnoreCase("first"))
+			return new First();
+		else if (n.equalsIgnoreCase("leastoutstanding"))
+			return new LeastOutstanding();
+		else if (n.equalsIgnoreCase("twochoices") || n.equalsIgnoreCase("poweroftwo"))
+			return new TwoChoices();
+
+		try {
+			return (NextHopSelector) Class.forName(name.trim()).newInstance();
+		} catch (Exception e) {
+			logger.warn("Unknown next hop selector " + name + ", using least-outstanding", e);
+			return new LeastOutstanding();
+		}
+	}
+
+	/**
+	 * the relative cost of sending a request to the neighbor (lower is
+	 * better)
+	 * 
+	 * @param nc
+	 * @return
+	 */
+	public static double cost(NeighborConnection nc) {
+		// a neighbor without a measurement is treated as fast (1 ms) so it
+		// gets traffic and is measured
+		double rtt = Math.max(nc.getRtt(), 1000000);
+		// a miscounted (negative) outstanding must not make a neighbor free
+		double c = (Math.max(nc.getOutstanding(), 0) + 1) * rtt;
+
+		BeatStatus hs = nc.getHealth();
+		if (hs == BeatStatus.Weak)
+			c *= 4;
+		else if (hs != BeatStatus.Active)
+			c *= 2;
+
+		return c;
+	}
+
+	public static class First extends NextHopSelector {
+		@Override
+		public NeighborConnection select(Request req, List<NeighborConnection> candidates) {
+			for (NeighborConnection nc : candidates) {
+				if (nc.isConnected())
+					return nc;
+			}
+
+			return candidates.get(0);
+		}
+	}
+
+	public static class LeastOutstanding extends NextHopSelector {
+		@Override
+		public NeighborConnection select(Request req, List<NeighborConnection> candidates) {
+			NeighborConnection best = null;
+			double bestCost = 0;
+			for (NeighborConnection nc : candidates) {
+				double c = cost(nc);
+				if (best == null || c < bestCost) {
+					best = nc;
+					bestCost = c;
+				}
+			}
+
+			return best;
+		}
+	}
+
+	public static class TwoChoices extends NextHopSelector {
+		private Random rand = new Random();
+
+		@Override
+		public NeighborConnection select(Request req, List<NeighborConnection> candidates) {
+			int size = candidates.size();
+			if (size == 1)
+				return candidates.get(0);
+
+			int a = rand.nextInt(size);
+			int b = rand.nextInt(size - 1);
+			if (b >= a)
+				b++;
+
+			NeighborConnection na = candidates.get(a);
+			NeighborConnection nb = candidates.get(b);
+			return (cost(nb) < cost(na)) ? nb : na;
+		}
+	}
+}
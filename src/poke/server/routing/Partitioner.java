@@ -0,0 +1,391 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.client.ClientConnection;
+import poke.client.DocumentSender;
+import poke.client.DocumentSync;
+import poke.resources.Manifest;
+import poke.server.conf.ServerConf;
+import poke.server.management.TopologyManager;
+import eye.Comm.Document;
+import eye.Comm.Request;
+
+/**
+ * Divides the documents among the servers, so the cluster's capacity grows
+ * with its servers instead of every server holding every document.
+ * <p>
+ * The servers that hold documents are listed in the conf (partition.nodes,
+ * comma separated node ids). A document belongs to the servers its name maps
+ * to on a consistent hash ring (HashRing) of those servers that are up:
+ * partition.replicas servers (default 1), each placed on the ring
+ * partition.vnodes times (default 64).
+ * <p>
+ * A request about a document (DOCADD, DOCFIND of a named document, DOCUPDATE,
+ * DOCREMOVE) from a client is addressed (toNode) to the document's first
+ * owner, unless this server is one of its owners, and travels there by the
+ * forwarding path. Other DOCFINDs (manifest and storage queries) are about
+ * the server asked and are not addressed.
+ * <p>
+ * The servers that are up are the listed servers the topology has a route to.
+ * A change (NODEJOIN, NODELEAVE, a server that dies) is acted on once it has
+ * held for sSettleMsec, so a server that restarts does not move documents
+ * twice: the ring is rebuilt and the documents whose owners changed are sent
+ * to their new owners (through this server, addressed to each). A document
+ * this server no longer owns is deleted once its owners have it. Documents
+ * whose owners did not change are not looked at again, which with a
+ * consistent hash is all but about 1/n of them.
+ * 
+ * @author gash
+ * 
+ */
+public class Partitioner extends Thread {
+	protected static Logger logger = LoggerFactory.getLogger(Partitioner.class);
+	protected static AtomicReference<Partitioner> instance = new AtomicReference<Partitioner>();
+
+	public static final String sNodes = "partition.nodes";
+	public static final String sVnodes = "partition.vnodes";
+	public static final String sReplicas = "partition.replicas";
+
+	static final int sDefaultVnodes = 64;
+
+	// how often the servers that are up are checked
+	static final int sCheckMsec = 2000;
+
+	// time a change of servers must hold before documents are moved
+	static final int sSettleMsec = 15000;
+
+	private String nodeId;
+	private Set<String> nodes;
+	private int vnodes;
+	private int replicas;
+	private File dir;
+	private int port;
+	private boolean forever = true;
+
+	private volatile HashRing ring;
+
+	// the servers up, and since when, not yet in the ring
+	private Set<String> changed;
+	private long changedAt;
+
+	/**
+	 * create the server's partitioner. The first configuration wins.
+	 * 
+	 * @param cfg
+	 * @param dir
+	 *            The server's documents
+	 * @return null if the conf lists no servers (no partitioning)
+	 */
+	public static Partitioner getInstance(ServerConf cfg, File dir) {
+		if (cfg.getServer().getProperty(sNodes) == null)
+			return instance.get();
+
+		if (instance.get() == null)
+			instance.compareAndSet(null, new Partitioner(cfg, dir));
+		return instance.get();
+	}
+
+	/**
+	 * @return null if the documents are not partitioned
+	 */
+	public static Partitioner getInstance() {
+		return instance.get();
+	}
+
+	protected Partitioner(ServerConf cfg, File dir) {
+		super("partitioner");
+		setDaemon(true);
+
+		this.nodeId = cfg.getServer().getProperty("node.id");
+		this.dir = dir;
+		this.port = Integer.parseInt(cfg.getServer().getProperty("port"));
+
+		String n = cfg.getServer().getProperty(sVnodes);
+		this.vnodes = (n != null) ? Integer.parseInt(n.trim()) : sDefaultVnodes;
+		n = cfg.getServer().getProperty(sReplicas);
+		this.replicas = (n != null) ? Integer.parseInt(n.trim()) : 1;
+
+		nodes = new TreeSet<String>();
+		for (String id : cfg.getServer().getProperty(sNodes).split(",")) {
+			if (id.trim().length() > 0)
+				nodes.add(id.trim());
+		}
+		if (!nodes.contains(nodeId))
+			logger.warn(nodeId + " is not one of the partitioned servers " + nodes + ", it holds no documents");
+
+		// until the topology is known, every server is taken to be up
+		ring = new HashRing(nodes, vnodes);
+		changedAt = System.currentTimeMillis();
+		logger.info("documents are partitioned over " + nodes + ", " + replicas + " replicas, " + vnodes
+				+ " points per server");
+	}
+
+	public void release() {
+		forever = false;
+	}
+
+	/**
+	 * @return the partitioned servers
+	 */
+	public Set<String> getNodes() {
+		return Collections.unmodifiableSet(nodes);
+	}
+
+	public HashRing getRing() {
+		return ring;
+	}
+
+	public int getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * the servers a document belongs to, the first is its primary
+	 * 
+	 * @param docName
+	 * @return
+	 */
+	public List<String> owners(String docName) {
+		return ring.owners(docName, replicas);
+	}
+
+	public boolean isOwner(String docName) {
+		return owners(docName).contains(nodeId);
+	}
+
+	/**
+	 * the document a request is about
+	 * 
+	 * @param req
+	 * @return null if it is not about a document
+	 */
+	public static String keyOf(Request req) {
+		switch (req.getHeader().getRoutingId()) {
+		case DOCFIND:
+			// a query of the storage is about this server
+			if (req.getBody().hasSpace())
+				return null;
+			break;
+		case DOCADD:
+		case DOCUPDATE:
+		case DOCREMOVE:
+			break;
+		default:
+			return null;
+		}
+
+		Document doc = req.getBody().getDoc();
+		return (req.getBody().hasDoc() && doc.getDocName().length() > 0) ? doc.getDocName() : null;
+	}
+
+	/**
+	 * address a request about a document to the document's owner
+	 * 
+	 * @param req
+	 * @return the request, addressed to another server if this server does
+	 *         not own the document
+	 */
+	public Request address(Request req) {
+		if (req.getHeader().hasToNode())
+			return req;
+
+		String key = keyOf(req);
+		if (key == null)
+			return req;
+
+		List<String> owners = owners(key);
+		if (owners.isEmpty() || owners.contains(nodeId))
+			return req;
+
+		Request.Builder bldr = Request.newBuilder(req);
+		bldr.getHeaderBuilder().setToNode(owners.get(0));
+		return bldr.build();
+	}
+
+	/**
+	 * the documents a server owns, for bringing a neighbor up to date (see
+	 * DocumentSync)
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public DocumentSync.Filter ownedBy(final String node) {
+		return new DocumentSync.Filter() {
+			@Override
+			public boolean accept(Manifest.Entry e) {
+				return owners(e.name).contains(node);
+			}
+		};
+	}
+
+	@Override
+	public void run() {
+		logger.info("starting partitioner");
+
+		// the first rebalance moves the documents held before partitioning
+		boolean first = true;
+		while (forever) {
+			try {
+				Thread.sleep(sCheckMsec);
+				if ((check() || first) && settled(first))
+					first = false;
+			} catch (InterruptedException ie) {
+				break;
+			} catch (Exception e) {
+				logger.error("Unexpected partitioning failure", e);
+			}
+		}
+
+		logger.info("partitioner closing");
+	}
+
+	/**
+	 * @return true if the servers up differ from the ring's
+	 */
+	private boolean check() {
+		Set<String> up = up();
+		if (changed == null || !changed.equals(up)) {
+			changed = up;
+			changedAt = System.currentTimeMillis();
+		}
+		return !up.equals(ring.getNodes());
+	}
+
+	/**
+	 * rebuild the ring once the servers up have held for sSettleMsec
+	 * 
+	 * @param always
+	 *            Rebalance even if the ring does not change
+	 * @return true if the ring was rebuilt
+	 */
+	private boolean settled(boolean always) {
+		if (System.currentTimeMillis() - changedAt < sSettleMsec)
+			return false;
+
+		HashRing prev = ring;
+		if (!changed.equals(prev.getNodes())) {
+			ring = new HashRing(changed, vnodes);
+			logger.info("servers up changed from " + prev.getNodes() + " to " + changed + ", rebalancing");
+		} else if (!always)
+			return false;
+
+		rebalance(prev, ring);
+		return true;
+	}
+
+	/**
+	 * the listed servers this server has a route to, and itself
+	 * 
+	 * @return
+	 */
+	private Set<String> up() {
+		TopologyManager tm = TopologyManager.getInstance();
+		if (tm == null)
+			return nodes;
+
+		Set<String> up = new TreeSet<String>();
+		Set<String> reachable = tm.getReachable();
+		for (String n : nodes) {
+			if (n.equals(nodeId) || reachable.contains(n))
+				up.add(n);
+		}
+		return up;
+	}
+
+	/**
+	 * send the documents whose owners changed to their new owners, and delete
+	 * those this server no longer owns once their owners have them
+	 * 
+	 * @param prev
+	 * @param cur
+	 */
+	protected void rebalance(HashRing prev, HashRing cur) {
+		if (!dir.isDirectory())
+			return;
+
+		long start = System.currentTimeMillis();
+		Manifest m = Manifest.getInstance(dir);
+		m.refresh();
+
+		Map<String, ClientConnection> conns = new HashMap<String, ClientConnection>();
+		int moved = 0, copied = 0, failed = 0;
+		try {
+			for (Manifest.Entry e : m.bucket(0, 1)) {
+				List<String> owners = cur.owners(e.name, replicas);
+				boolean keep = owners.contains(nodeId);
+
+				// the owners that do not have it (as far as we know)
+				List<String> to = new ArrayList<String>(owners);
+				to.remove(nodeId);
+				if (keep)
+					to.removeAll(prev.owners(e.name, replicas));
+				if (to.isEmpty())
+					continue;
+
+				boolean sent = true;
+				for (String n : to) {
+					ClientConnection cc = connect(conns, n);
+					sent &= (cc != null && new DocumentSender(cc, new File(dir, e.name), e).send());
+				}
+
+				if (!sent)
+					failed++;
+				else if (keep)
+					copied++;
+				else if (new File(dir, e.name).delete()) {
+					m.get(e.name);
+					moved++;
+				}
+			}
+		} finally {
+			for (ClientConnection cc : conns.values())
+				cc.release();
+		}
+
+		logger.info("rebalanced " + m.size() + " documents: " + moved + " moved, " + copied + " copied, " + failed
+				+ " failed (" + (System.currentTimeMillis() - start) + " ms)");
+	}
+
+	/**
+	 * a connection to this server whose documents are addressed to a server
+	 */
+	private ClientConnection connect(Map<String, ClientConnection> conns, String node) {
+		if (conns.containsKey(node))
+			return conns.get(node);
+
+		ClientConnection cc = ClientConnection.initConnection("localhost", port);
+		if (cc != null) {
+			cc.setToNode(node);
+			cc.setOriginator(Replicator.sReplicaOriginator);
+		}
+		conns.put(node, cc);
+		return cc;
+	}
+}
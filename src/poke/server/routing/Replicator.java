@@ -0,0 +1,556 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poke.client.ClientConnection;
+import poke.client.DocumentSender;
+import poke.resources.Manifest;
+import poke.server.conf.ServerConf;
+import poke.server.management.HeartbeatData;
+import poke.server.management.HeartbeatData.BeatStatus;
+import poke.server.management.HeartbeatManager;
+import poke.server.management.TopologyManager;
+import poke.server.queue.ChannelQueue;
+import poke.server.resources.Resource;
+import poke.server.resources.ResourceFactory;
+import poke.server.resources.ResourceUtil;
+import eye.Comm.Document;
+import eye.Comm.Header;
+import eye.Comm.Header.ReplyStatus;
+import eye.Comm.PayloadReply;
+import eye.Comm.Request;
+import eye.Comm.Response;
+
+/**
+ * Keeps a document on each of its owners (see Partitioner, N is
+ * partition.replicas) with quorums: a chunk of a document (DOCADD) is
+ * written here and sent to the other owners, and the client is answered as
+ * soon as W of the N have it (replication.write, default a majority). A
+ * question about a document (DOCFIND of a named document) is asked of R
+ * owners (replication.read, default a majority) and answered with the newest
+ * entry once R have answered. As W + R &gt; N, a read sees the latest write.
+ * <p>
+ * The ResourceFactory gives this resource the requests of clients about
+ * documents this server owns. The copies it sends to the other owners come
+ * from the replica originator and are processed by the owners as usual.
+ * Replies of owners after the quorum is reached are not waited for.
+ * <p>
+ * An owner that is down (its heartbeat failed, or there is no route to it),
+ * or that does not acknowledge its copy, is given a hint: the name of the
+ * document it is missing. Hints are kept in the documents' directory
+ * (.hints) and handed off when the owner is back, by sending it the whole
+ * document (the transfer resumes from what it has). An owner found with an
+ * older version on a read is given a hint as well.
+ * 
+ * @author gash
+ * 
+ */
+public class Replicator extends ForwardResource {
+	protected static Logger logger = LoggerFactory.getLogger(Replicator.class);
+	protected static AtomicReference<Replicator> instance = new AtomicReference<Replicator>();
+
+	public static final String sWrite = "replication.write";
+	public static final String sRead = "replication.read";
+
+	// the originator of copies sent to owners
+	public static final String sReplicaOriginator = "replica";
+
+	static final String sHintFile = ".hints";
+
+	// how often hints are handed off
+	static final int sHandoffMsec = 5000;
+
+	private String nodeId;
+	private Partitioner partitioner;
+	private File dir;
+	private int port;
+	private int write;
+	private int read;
+
+	// node to the documents it is missing, guarded by itself
+	private Map<String, Set<String>> hints = new TreeMap<String, Set<String>>();
+	private ScheduledExecutorService handoff;
+
+	/**
+	 * create the server's replicator. The first configuration wins.
+	 * 
+	 * @param cfg
+	 * @param partitioner
+	 * @param dir
+	 *            The server's documents
+	 * @return null if documents have a single owner (no replication)
+	 */
+	public static Replicator getInstance(ServerConf cfg, Partitioner partitioner, File dir) {
+		if (partitioner == null || partitioner.getReplicas() < 2)
+			return instance.get();
+
+		// the constructor starts the handoff, it must run once
+		if (instance.get() == null) {
+			synchronized (Replicator.class) {
+				if (instance.get() == null)
+					instance.set(new Replicator(cfg, partitioner, dir));
+			}
+		}
+
+		return instance.get();
+	}
+
+	/**
+	 * @return null if documents are not replicated
+	 */
+	public static Replicator getInstance() {
+		return instance.get();
+	}
+
+	protected Replicator(ServerConf cfg, Partitioner partitioner, File dir) {
+		setCfg(cfg);
+		this.nodeId = cfg.getServer().getProperty("node.id");
+		this.partitioner = partitioner;
+		this.dir = dir;
+		this.port = Integer.parseInt(cfg.getServer().getProperty("port"));
+
+		int n = partitioner.getReplicas();
+		String w = cfg.getServer().getProperty(sWrite);
+		String r = cfg.getServer().getProperty(sRead);
+		write = Math.min(n, (w != null) ? Integer.parseInt(w.trim()) : n / 2 + 1);
+		read = Math.min(n, (r != null) ? Integer.parseInt(r.trim()) : n / 2 + 1);
+		if (write + read <= n)
+			logger.warn("W " + write + " + R " + read + " <= N " + n + ", a read may not see the latest write");
+
+		loadHints();
+
+		handoff = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "handoff");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		handoff.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					handoff();
+				} catch (Exception e) {
+					logger.error("Unexpected handoff failure", e);
+				}
+			}
+		}, sHandoffMsec, sHandoffMsec, TimeUnit.MILLISECONDS);
+
+		logger.info("replicating documents to " + n + " owners, W " + write + ", R " + read);
+	}
+
+	public void release() {
+		handoff.shutdownNow();
+	}
+
+	public int getWrite() {
+		return write;
+	}
+
+	public int getRead() {
+		return read;
+	}
+
+	/**
+	 * whether a request is one this server coordinates (a client's DOCADD or
+	 * DOCFIND, for this server)
+	 * 
+	 * @param hdr
+	 * @return
+	 */
+	public boolean coordinates(Header hdr) {
+		if (hdr.hasToNode() && !nodeId.equalsIgnoreCase(hdr.getToNode()))
+			return false;
+		else if (sReplicaOriginator.equals(hdr.getOriginator()))
+			return false;
+
+		return hdr.getRoutingId() == Header.Routing.DOCADD || hdr.getRoutingId() == Header.Routing.DOCFIND;
+	}
+
+	/**
+	 * process the request here and on the other owners, the reply is enqueued
+	 * on the origin once the quorum is reached
+	 */
+	@Override
+	public void forward(Request req, ChannelQueue origin) {
+		Resource local = ResourceFactory.getInstance().localInstance(req.getHeader());
+		if (local == null) {
+			origin.enqueueResponse(ResourceUtil.buildError(req.getHeader(), ReplyStatus.FAILURE,
+					"Request not processed"));
+			return;
+		}
+
+		// only documents, by name, are replicated (not manifest queries)
+		String name = Partitioner.keyOf(req);
+		boolean find = (req.getHeader().getRoutingId() == Header.Routing.DOCFIND);
+		if (name == null || (find && req.getBody().getDoc().hasChunkId()) || !partitioner.isOwner(name)) {
+			origin.enqueueResponse(local.process(req));
+			return;
+		}
+
+		List<String> others = partitioner.owners(name);
+		others.remove(nodeId);
+
+		Quorum q = new Quorum(req, origin, name, find ? read : write, find);
+		List<String> sendTo = new ArrayList<String>();
+		for (String n : others) {
+			if (!isUp(n)) {
+				q.down(n);
+				continue;
+			} else if (find && sendTo.size() >= read - 1) {
+				// enough owners asked
+				continue;
+			}
+			sendTo.add(n);
+		}
+		q.expect(sendTo.size());
+
+		for (String n : sendTo) {
+			Request.Builder copy = Request.newBuilder(req);
+			copy.getHeaderBuilder().clearPath().setOriginator(sReplicaOriginator).setToNode(n);
+			ForwardingEngine.getInstance().forward(copy.build(), q.from(n));
+		}
+
+		q.local(local.process(req));
+	}
+
+	/**
+	 * whether a node can be sent to: its heartbeat has not failed (a
+	 * neighbor) and the topology has a route to it
+	 */
+	private boolean isUp(String node) {
+		HeartbeatManager hbm = HeartbeatManager.getInstance();
+		HeartbeatData hd = (hbm != null) ? hbm.getNearestNode(node) : null;
+		if (hd != null && hd.getStatus() == BeatStatus.Failed)
+			return false;
+
+		TopologyManager tm = TopologyManager.getInstance();
+		return (tm == null || tm.getReachable().contains(node));
+	}
+
+	/**
+	 * remember that a node is missing a document
+	 * 
+	 * @param node
+	 * @param name
+	 */
+	public void hint(String node, String name) {
+		synchronized (hints) {
+			Set<String> names = hints.get(node);
+			if (names == null) {
+				names = new TreeSet<String>();
+				hints.put(node, names);
+			}
+			if (names.add(name)) {
+				logger.info("hint: " + node + " is missing " + name);
+				saveHints();
+			}
+		}
+	}
+
+	/**
+	 * the number of documents waiting to be handed off
+	 * 
+	 * @return
+	 */
+	public int getHints() {
+		int n = 0;
+		synchronized (hints) {
+			for (Set<String> names : hints.values())
+				n += names.size();
+		}
+		return n;
+	}
+
+	/**
+	 * send the owners that are back the documents they are missing
+	 */
+	private void handoff() {
+		Map<String, Set<String>> todo = new TreeMap<String, Set<String>>();
+		synchronized (hints) {
+			for (Map.Entry<String, Set<String>> e : hints.entrySet()) {
+				if (isUp(e.getKey()))
+					todo.put(e.getKey(), new TreeSet<String>(e.getValue()));
+			}
+		}
+
+		for (Map.Entry<String, Set<String>> e : todo.entrySet()) {
+			ClientConnection cc = ClientConnection.initConnection("localhost", port);
+			if (cc == null)
+				return;
+
+			String node = e.getKey();
+			cc.setToNode(node);
+			cc.setOriginator(sReplicaOriginator);
+			int sent = 0;
+			try {
+				Manifest m = Manifest.getInstance(dir);
+				for (String name : e.getValue()) {
+					// a document still arriving is handed off later, one no
+					// longer owned (moved away) not at all
+					Manifest.Entry entry = m.get(name);
+					if (entry == null && partitioner.isOwner(name))
+						continue;
+					else if (entry == null || new DocumentSender(cc, new File(dir, name), entry).send()) {
+						done(node, name);
+						sent++;
+					} else
+						break;
+				}
+			} finally {
+				cc.release();
+			}
+
+			logger.info("handed off " + sent + " of " + e.getValue().size() + " documents to " + node);
+		}
+	}
+
+	private void done(String node, String name) {
+		synchronized (hints) {
+			Set<String> names = hints.get(node);
+			if (names != null && names.remove(name)) {
+				if (names.isEmpty())
+					hints.remove(node);
+				saveHints();
+			}
+		}
+	}
+
+	private void loadHints() {
+		File f = new File(dir, sHintFile);
+		if (!f.isFile())
+			return;
+
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(f));
+			String line;
+			while ((line = in.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab > 0)
+					hint(line.substring(0, tab), line.substring(tab + 1));
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to read " + f, e);
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * write the hints (node, tab, document), replacing the file. Called with
+	 * the hints locked.
+	 */
+	private void saveHints() {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			return;
+
+		File f = new File(dir, sHintFile);
+		File tmp = new File(dir, sHintFile + ".tmp");
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(new FileWriter(tmp));
+			for (Map.Entry<String, Set<String>> e : hints.entrySet()) {
+				for (String name : e.getValue())
+					out.println(e.getKey() + "\t" + name);
+			}
+			out.close();
+			out = null;
+
+			if (!tmp.renameTo(f) && (!f.delete() || !tmp.renameTo(f)))
+				logger.warn("Unable to replace " + f);
+		} catch (IOException e) {
+			logger.warn("Unable to write " + f, e);
+		} finally {
+			if (out != null)
+				out.close();
+		}
+	}
+
+	/**
+	 * the replies of a request's owners, this server's included
+	 */
+	class Quorum {
+		final Request req;
+		final ChannelQueue origin;
+		final String name;
+		final int needed;
+		final boolean find;
+
+		Response local;
+		int expected = -1;
+		int acked;
+		int failed;
+		boolean answered;
+
+		// the newest entry found (reads), and the owners that have it
+		Document newest;
+		List<String> stale = new ArrayList<String>();
+		List<String> current = new ArrayList<String>();
+
+		Quorum(Request req, ChannelQueue origin, String name, int needed, boolean find) {
+			this.req = req;
+			this.origin = origin;
+			this.name = name;
+			this.needed = needed;
+			this.find = find;
+		}
+
+		/**
+		 * an owner not asked as it is down
+		 */
+		void down(String node) {
+			if (!find)
+				hint(node, name);
+		}
+
+		synchronized void expect(int n) {
+			expected = n;
+		}
+
+		/**
+		 * the queue an owner's reply is enqueued on
+		 */
+		ChannelQueue from(final String node) {
+			return new ChannelQueue() {
+				@Override
+				public void shutdown(boolean hard) {
+				}
+
+				@Override
+				public void enqueueRequest(Request req) {
+				}
+
+				@Override
+				public void enqueueResponse(Response reply) {
+					replied(node, reply);
+				}
+			};
+		}
+
+		synchronized void local(Response reply) {
+			local = reply;
+			if (reply.getHeader().getReplyCode() == ReplyStatus.SUCCESS) {
+				acked++;
+				if (find)
+					compare(nodeId, reply);
+			} else
+				failed++;
+			check();
+		}
+
+		void replied(String node, Response reply) {
+			// a chunk not stored is a failure (see DocumentAssembler)
+			boolean ok = (reply.getHeader().getReplyCode() == ReplyStatus.SUCCESS);
+			if (!ok && !find)
+				hint(node, name);
+
+			synchronized (this) {
+				if (ok) {
+					acked++;
+					if (find)
+						compare(node, reply);
+				} else
+					failed++;
+				check();
+			}
+		}
+
+		/**
+		 * keep the newest entry of the document, owners with another are stale
+		 */
+		private void compare(String node, Response reply) {
+			Document d = (reply.getBody().getDocsCount() > 0) ? reply.getBody().getDocs(0) : null;
+			if (d == null)
+				stale.add(node);
+			else if (newest == null || Manifest.mtimeOf(d) > Manifest.mtimeOf(newest)) {
+				if (newest != null && newest.getId() != d.getId()) {
+					stale.addAll(current);
+					current.clear();
+				}
+				newest = d;
+				current.add(node);
+			} else if (d.getId() == newest.getId())
+				current.add(node);
+			else
+				stale.add(node);
+		}
+
+		/**
+		 * reply once the quorum is reached (this server has replied), or
+		 * cannot be. Owners replying after that are still compared.
+		 */
+		private void check() {
+			if (!answered && local != null && expected >= 0) {
+				if (acked >= needed) {
+					answered = true;
+					origin.enqueueResponse(find ? answer() : local);
+				} else if (acked + (expected + 1 - acked - failed) < needed) {
+					answered = true;
+					origin.enqueueResponse(ResourceUtil.buildError(req.getHeader(), ReplyStatus.FAILURE, acked
+							+ " of " + needed + " owners have " + name));
+				}
+			}
+
+			// owners that missed the newest version, if it is here
+			if (answered && find && current.contains(nodeId)) {
+				for (String n : stale) {
+					if (!n.equals(nodeId))
+						hint(n, name);
+				}
+				stale.clear();
+			}
+		}
+
+		private Response answer() {
+			PayloadReply.Builder pb = PayloadReply.newBuilder(local.getBody());
+			pb.clearDocs();
+			if (newest != null)
+				pb.addDocs(newest);
+
+			Response.Builder rb = Response.newBuilder(local);
+			rb.setBody(pb.build());
+			return rb.build();
+		}
+	}
+}
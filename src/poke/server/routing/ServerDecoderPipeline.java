@@ -41,6 +41,10 @@ public class ServerDecoderPipeline implements ChannelPipelineFactory {
 		// 4, 0, 4));
 		pipeline.addLast("protobufDecoder", new ProtobufDecoder(
 				eye.Comm.Request.getDefaultInstance()));
+
+		// batches of replies (see ReplyWriter) are framed by the batchEncoder
+		// so they leave in a single write
+		pipeline.addLast("batchEncoder", new BatchEncoder());
 		pipeline.addLast("frameEncoder", new LengthFieldPrepender(4));
 		pipeline.addLast("protobufEncoder", new ProtobufEncoder());
 
@@ -19,6 +19,7 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
@@ -27,6 +28,9 @@ import org.slf4j.LoggerFactory;
 
 import poke.server.queue.ChannelQueue;
 import poke.server.queue.QueueFactory;
+import poke.server.queue.ReplyWriter;
+import poke.server.resources.ResourceUtil;
+import eye.Comm.Header.ReplyStatus;
 
 /**
  * As implemented, this server handler does not share queues or worker threads
@@ -65,6 +69,15 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
 			return;
 		}
 
+		// a forwarded request that reached us by two routes is handled once,
+		// the duplicate is refused so the sender's pending entry completes
+		// now rather than when it times out
+		if (DuplicateCache.getInstance().isDuplicate(req.getHeader())) {
+			queueInstance(channel).enqueueResponse(
+					ResourceUtil.buildError(req.getHeader(), ReplyStatus.FAILURE, "Duplicate request"));
+			return;
+		}
+
 		// processing is deferred to the worker threads
 		queueInstance(channel).enqueueRequest(req);
 	}
@@ -97,6 +110,20 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
 		handleMessage((eye.Comm.Request) e.getMessage(), e.getChannel());
 	}
 
+	/**
+	 * resume writing replies once the channel's write buffer has drained
+	 */
+	@Override
+	public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		if (e.getChannel().isWritable()) {
+			ReplyWriter writer = ReplyWriter.getWriter(e.getChannel());
+			if (writer != null)
+				writer.flush();
+		}
+
+		super.channelInterestChanged(ctx, e);
+	}
+
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
 		logger.error("ServerHandler error, closing channel, reason: " + e.getCause(), e);
@@ -0,0 +1,358 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eye.Comm.Document;
+import eye.Comm.NameSpace;
+
+/**
+ * A storage in front of another (e.g., DatabaseStorage) that remembers the
+ * answers of findDocuments(), so a document found again and again is read
+ * from the other storage once.
+ * <p>
+ * An answer is remembered by its namespace and criteria. The answers are
+ * bounded by their size (storage.cache.size bytes, mostly the documents'
+ * content), the least recently used are dropped first. A change to a
+ * namespace (add, update or remove of a document, or removing the namespace)
+ * drops every answer of the namespace: an answer is a query, not a document,
+ * so which answers a change affects is not known.
+ * <p>
+ * An answer found while a change to its namespace is made is not remembered
+ * (each namespace counts its changes), so an answer never outlives a change
+ * made before it was remembered. Changes made to the other storage directly
+ * are not seen.
+ * <p>
+ * Hits, misses, evictions and invalidations are counted (see the getters),
+ * and logged on release.
+ * 
+ * @author gash
+ * 
+ */
+public class CachingStorage implements Storage {
+	protected static Logger logger = LoggerFactory.getLogger(CachingStorage.class);
+
+	public static final String sBacking = "storage.cache.backing";
+	public static final String sSize = "storage.cache.size";
+
+	static final long sDefaultSize = 64 * 1024 * 1024;
+
+	// the size of an answer besides the documents' content
+	static final int sAnswerSize = 128;
+	static final int sDocumentSize = 64;
+
+	private static String sNoName = "";
+
+	private Storage backing;
+	private long capacity = sDefaultSize;
+
+	// answers, least recently used first, guarded by the cache
+	private final LinkedHashMap<Query, Answer> cache = new LinkedHashMap<Query, Answer>(1024, 0.75f, true);
+	private final Map<String, Set<Query>> byNameSpace = new HashMap<String, Set<Query>>();
+	private final Map<String, Long> changes = new HashMap<String, Long>();
+	private long size;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+	private AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * the storage is named by storage.cache.backing (InMemoryStorage if not)
+	 */
+	public CachingStorage() {
+	}
+
+	public CachingStorage(Storage backing) {
+		this.backing = backing;
+	}
+
+	@Override
+	public void init(Properties cfg) {
+		if (cfg == null)
+			cfg = new Properties();
+
+		try {
+			if (backing == null)
+				backing = (Storage) Class.forName(cfg.getProperty(sBacking, InMemoryStorage.class.getName()))
+						.newInstance();
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to create the cached storage", e);
+		}
+
+		capacity = Long.parseLong(cfg.getProperty(sSize, Long.toString(sDefaultSize)).trim());
+		backing.init(cfg);
+	}
+
+	@Override
+	public void release() {
+		logger.info("cache: " + hits.get() + " hits, " + misses.get() + " misses, " + evictions.get()
+				+ " evictions, " + invalidations.get() + " invalidations");
+		clear();
+		backing.release();
+	}
+
+	public Storage getBacking() {
+		return backing;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * the size of the answers remembered
+	 * 
+	 * @return
+	 */
+	public long getSize() {
+		synchronized (cache) {
+			return size;
+		}
+	}
+
+	/**
+	 * forget every answer
+	 */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+			byNameSpace.clear();
+			size = 0;
+		}
+	}
+
+	@Override
+	public List<Document> findDocuments(String namespace, Document criteria) {
+		Query q = new Query((namespace == null) ? sNoName : namespace, criteria);
+		long seen;
+		synchronized (cache) {
+			Answer a = cache.get(q);
+			if (a != null) {
+				hits.incrementAndGet();
+				return new ArrayList<Document>(a.docs);
+			}
+			seen = changes(q.namespace);
+		}
+
+		misses.incrementAndGet();
+		List<Document> docs = backing.findDocuments(namespace, criteria);
+		if (docs != null)
+			remember(q, new Answer(docs), seen);
+
+		return docs;
+	}
+
+	@Override
+	public boolean addDocument(String namespace, Document doc) {
+		try {
+			return backing.addDocument(namespace, doc);
+		} finally {
+			invalidate(namespace);
+		}
+	}
+
+	@Override
+	public boolean addDocuments(String namespace, List<Document> docs) {
+		try {
+			return backing.addDocuments(namespace, docs);
+		} finally {
+			invalidate(namespace);
+		}
+	}
+
+	@Override
+	public boolean removeDocument(String namespace, long docId) {
+		try {
+			return backing.removeDocument(namespace, docId);
+		} finally {
+			invalidate(namespace);
+		}
+	}
+
+	@Override
+	public boolean updateDocument(String namespace, Document doc) {
+		try {
+			return backing.updateDocument(namespace, doc);
+		} finally {
+			invalidate(namespace);
+		}
+	}
+
+	@Override
+	public NameSpace getNameSpaceInfo(long spaceId) {
+		return backing.getNameSpaceInfo(spaceId);
+	}
+
+	@Override
+	public List<NameSpace> findNameSpaces(NameSpace criteria) {
+		return backing.findNameSpaces(criteria);
+	}
+
+	@Override
+	public NameSpace createNameSpace(NameSpace space) {
+		// a namespace is not found until created, and such an answer (null)
+		// is not remembered
+		return backing.createNameSpace(space);
+	}
+
+	@Override
+	public boolean removeNameSpace(long spaceId) {
+		NameSpace ns = backing.getNameSpaceInfo(spaceId);
+		try {
+			return backing.removeNameSpace(spaceId);
+		} finally {
+			if (ns != null)
+				invalidate(ns.getName());
+		}
+	}
+
+	private long changes(String namespace) {
+		Long n = changes.get(namespace);
+		return (n != null) ? n : 0;
+	}
+
+	/**
+	 * remember an answer unless its namespace changed since it was looked for
+	 */
+	private void remember(Query q, Answer a, long seen) {
+		if (a.size > capacity)
+			return;
+
+		synchronized (cache) {
+			if (changes(q.namespace) != seen)
+				return;
+
+			Answer prev = cache.put(q, a);
+			if (prev != null)
+				size -= prev.size;
+			size += a.size;
+
+			Set<Query> queries = byNameSpace.get(q.namespace);
+			if (queries == null) {
+				queries = new HashSet<Query>();
+				byNameSpace.put(q.namespace, queries);
+			}
+			queries.add(q);
+
+			Iterator<Map.Entry<Query, Answer>> it = cache.entrySet().iterator();
+			while (size > capacity && it.hasNext()) {
+				Map.Entry<Query, Answer> e = it.next();
+				it.remove();
+				size -= e.getValue().size;
+				forget(e.getKey());
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private void forget(Query q) {
+		Set<Query> queries = byNameSpace.get(q.namespace);
+		if (queries != null) {
+			queries.remove(q);
+			if (queries.isEmpty())
+				byNameSpace.remove(q.namespace);
+		}
+	}
+
+	private void invalidate(String namespace) {
+		if (namespace == null)
+			namespace = sNoName;
+
+		synchronized (cache) {
+			changes.put(namespace, changes(namespace) + 1);
+
+			Set<Query> queries = byNameSpace.remove(namespace);
+			if (queries == null)
+				return;
+
+			for (Query q : queries) {
+				Answer a = cache.remove(q);
+				if (a != null) {
+					size -= a.size;
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * the key of an answer (criteria, a protobuf, compares by value)
+	 */
+	private static class Query {
+		final String namespace;
+		final Document criteria;
+
+		Query(String namespace, Document criteria) {
+			this.namespace = namespace;
+			this.criteria = criteria;
+		}
+
+		@Override
+		public int hashCode() {
+			return namespace.hashCode() * 31 + ((criteria != null) ? criteria.hashCode() : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Query))
+				return false;
+
+			Query q = (Query) obj;
+			return namespace.equals(q.namespace)
+					&& ((criteria == null) ? q.criteria == null : criteria.equals(q.criteria));
+		}
+	}
+
+	private static class Answer {
+		final List<Document> docs;
+		final long size;
+
+		Answer(List<Document> docs) {
+			this.docs = new ArrayList<Document>(docs);
+
+			long n = sAnswerSize;
+			for (Document doc : docs)
+				n += sDocumentSize + doc.getChunkContent().size();
+			this.size = n;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import poke.server.storage.DocumentQuery.Condition;
+import eye.Comm.Document;
+
+/**
+ * A secondary index of a namespace's documents on the values of one path (see
+ * DocumentQuery), held in value order so equals, range and prefix conditions
+ * on the path are answered without looking at the other documents.
+ * <p>
+ * The index only narrows the documents a query looks at, the candidates are
+ * still matched against the whole query. An entry left behind by concurrent
+ * changes of a document therefore costs a look, it is never a wrong answer.
+ * 
+ * @author gash
+ * 
+ */
+public class DocumentIndex {
+	private final String path;
+	private TreeMap<String, Set<Long>> values = new TreeMap<String, Set<Long>>(DocumentQuery.sValueOrder);
+
+	public DocumentIndex(String path) {
+		this.path = path;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public synchronized void add(Long key, Document doc) {
+		for (String v : DocumentQuery.values(doc, path)) {
+			Set<Long> keys = values.get(v);
+			if (keys == null) {
+				keys = new HashSet<Long>();
+				values.put(v, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	public synchronized void remove(Long key, Document doc) {
+		for (String v : DocumentQuery.values(doc, path)) {
+			Set<Long> keys = values.get(v);
+			if (keys != null && keys.remove(key) && keys.isEmpty())
+				values.remove(v);
+		}
+	}
+
+	public synchronized void clear() {
+		values.clear();
+	}
+
+	/**
+	 * the documents that may meet a condition on the index's path
+	 * 
+	 * @param c
+	 * @return the keys of the documents, null if the index cannot narrow them
+	 *         (not-equals)
+	 */
+	public synchronized Set<Long> find(Condition c) {
+		String v = c.getOperand();
+		Set<Long> rtn = new HashSet<Long>();
+		switch (c.getOp()) {
+		case Equals:
+			Set<Long> keys = values.get(v);
+			if (keys != null)
+				rtn.addAll(keys);
+			break;
+		case Less:
+			addAll(values.headMap(v, false), rtn);
+			break;
+		case LessOrEqual:
+			addAll(values.headMap(v, true), rtn);
+			break;
+		case Greater:
+			addAll(values.tailMap(v, false), rtn);
+			break;
+		case GreaterOrEqual:
+			addAll(values.tailMap(v, true), rtn);
+			break;
+		case Prefix:
+			// values starting with a non-number are together in string order;
+			// numbers are not, look at each distinct value
+			boolean strings = v.length() > 0 && !isNumeric(v.charAt(0));
+			for (Map.Entry<String, Set<Long>> e : (strings ? values.tailMap(v, true) : values).entrySet()) {
+				if (e.getKey().startsWith(v))
+					rtn.addAll(e.getValue());
+				else if (strings)
+					break;
+			}
+			break;
+		default:
+			return null;
+		}
+
+		return rtn;
+	}
+
+	private static boolean isNumeric(char c) {
+		return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+	}
+
+	private static void addAll(NavigableMap<String, Set<Long>> range, Collection<Long> keys) {
+		for (Set<Long> k : range.values())
+			keys.addAll(k);
+	}
+}
@@ -0,0 +1,313 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import eye.Comm.Document;
+import eye.Comm.NameValueSet;
+
+/**
+ * The criteria of findDocuments(), a Document whose fields are conditions the
+ * documents found must meet (all of them).
+ * <p>
+ * A condition has a path, which names a value of a document, and an operator
+ * and operand, written as the value:
+ * <ol>
+ * <li>"x" or "=x" - equals x
+ * <li>"!=x" - does not equal x (also met if the document has no value)
+ * <li>"&lt;x", "&lt;=x", "&gt;x", "&gt;=x" - a range, two conditions on the
+ * same path give both bounds
+ * <li>"x*" - starts with x
+ * </ol>
+ * Values are compared as numbers if both are numbers, otherwise as strings.
+ * <p>
+ * The paths of the document's fields are their names (docName, id, docSize,
+ * chunkId, totalChunk); docName may be written as a condition, the others are
+ * equal to. The path of a value of the document's NameValueSet tree is the
+ * names of the nodes from the root to the value, separated by '/' (nodes
+ * without a name are skipped). Conditions on the tree are written as a tree
+ * of the same shape whose values are the conditions. A path that names
+ * several values is met if one of them is.
+ * 
+ * @author gash
+ * 
+ */
+public class DocumentQuery {
+	public enum Op {
+		Equals, NotEquals, Less, LessOrEqual, Greater, GreaterOrEqual, Prefix
+	}
+
+	public static final Comparator<String> sValueOrder = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b) {
+			return DocumentQuery.compare(a, b);
+		}
+	};
+
+	private List<Condition> conditions = new ArrayList<Condition>();
+
+	/**
+	 * @param criteria
+	 *            null matches every document
+	 * @return
+	 */
+	public static DocumentQuery parse(Document criteria) {
+		DocumentQuery q = new DocumentQuery();
+		if (criteria == null)
+			return q;
+
+		if (criteria.hasDocName())
+			q.conditions.add(Condition.parse("docName", criteria.getDocName()));
+		if (criteria.hasId())
+			q.conditions.add(new Condition("id", Op.Equals, Long.toString(criteria.getId())));
+		if (criteria.hasDocSize())
+			q.conditions.add(new Condition("docSize", Op.Equals, Long.toString(criteria.getDocSize())));
+		if (criteria.hasChunkId())
+			q.conditions.add(new Condition("chunkId", Op.Equals, Long.toString(criteria.getChunkId())));
+		if (criteria.hasTotalChunk())
+			q.conditions.add(new Condition("totalChunk", Op.Equals, Long.toString(criteria.getTotalChunk())));
+		if (criteria.hasDocument())
+			q.parse(criteria.getDocument(), "");
+
+		return q;
+	}
+
+	private void parse(NameValueSet node, String path) {
+		if (node.hasName() && node.getName().length() > 0)
+			path = (path.length() == 0) ? node.getName() : path + "/" + node.getName();
+
+		if (node.hasValue())
+			conditions.add(Condition.parse(path, node.getValue()));
+
+		for (NameValueSet child : node.getNodeList())
+			parse(child, path);
+	}
+
+	public List<Condition> getConditions() {
+		return Collections.unmodifiableList(conditions);
+	}
+
+	public boolean isEmpty() {
+		return conditions.isEmpty();
+	}
+
+	public boolean matches(Document doc) {
+		for (Condition c : conditions) {
+			if (!c.matches(doc))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * the values of a document a path names
+	 * 
+	 * @param doc
+	 * @param path
+	 * @return
+	 */
+	public static List<String> values(Document doc, String path) {
+		List<String> rtn = new ArrayList<String>(1);
+		if (path.equals("docName")) {
+			if (doc.hasDocName())
+				rtn.add(doc.getDocName());
+		} else if (path.equals("id")) {
+			if (doc.hasId())
+				rtn.add(Long.toString(doc.getId()));
+		} else if (path.equals("docSize")) {
+			if (doc.hasDocSize())
+				rtn.add(Long.toString(doc.getDocSize()));
+		} else if (path.equals("chunkId")) {
+			if (doc.hasChunkId())
+				rtn.add(Long.toString(doc.getChunkId()));
+		} else if (path.equals("totalChunk")) {
+			if (doc.hasTotalChunk())
+				rtn.add(Long.toString(doc.getTotalChunk()));
+		} else if (doc.hasDocument())
+			collect(doc.getDocument(), path.split("/"), 0, rtn);
+
+		return rtn;
+	}
+
+	private static void collect(NameValueSet node, String[] path, int depth, List<String> values) {
+		if (node.hasName() && node.getName().length() > 0) {
+			if (depth >= path.length || !path[depth].equals(node.getName()))
+				return;
+			depth++;
+		}
+
+		if (depth == path.length && node.hasValue())
+			values.add(node.getValue());
+
+		for (NameValueSet child : node.getNodeList())
+			collect(child, path, depth, values);
+	}
+
+	/**
+	 * the order of values: numbers (in numeric order) before other values (in
+	 * string order)
+	 * 
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int compare(String a, String b) {
+		// keys (ids) need all 64 bits
+		Long la = toLong(a);
+		if (la != null) {
+			Long lb = toLong(b);
+			if (lb != null)
+				return la.compareTo(lb);
+		}
+
+		Double na = toNumber(a);
+		Double nb = toNumber(b);
+		if (na != null && nb != null)
+			return na.compareTo(nb);
+		else if (na != null)
+			return -1;
+		else if (nb != null)
+			return 1;
+		else
+			return a.compareTo(b);
+	}
+
+	private static Long toLong(String s) {
+		if (s.length() == 0 || s.length() > 20)
+			return null;
+
+		for (int i = 0, I = s.length(); i < I; i++) {
+			char c = s.charAt(i);
+			if ((c < '0' || c > '9') && !(i == 0 && c == '-' && I > 1))
+				return null;
+		}
+
+		try {
+			return Long.valueOf(s);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static Double toNumber(String s) {
+		if (s.length() == 0)
+			return null;
+
+		char c = s.charAt(0);
+		if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.')
+			return null;
+
+		try {
+			return Double.valueOf(s);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public static class Condition {
+		private final String path;
+		private final Op op;
+		private final String operand;
+
+		public Condition(String path, Op op, String operand) {
+			this.path = path;
+			this.op = op;
+			this.operand = operand;
+		}
+
+		public static Condition parse(String path, String value) {
+			if (value.startsWith("!="))
+				return new Condition(path, Op.NotEquals, value.substring(2));
+			else if (value.startsWith("<="))
+				return new Condition(path, Op.LessOrEqual, value.substring(2));
+			else if (value.startsWith(">="))
+				return new Condition(path, Op.GreaterOrEqual, value.substring(2));
+			else if (value.startsWith("<"))
+				return new Condition(path, Op.Less, value.substring(1));
+			else if (value.startsWith(">"))
+				return new Condition(path, Op.Greater, value.substring(1));
+			else if (value.startsWith("="))
+				return new Condition(path, Op.Equals, value.substring(1));
+			else if (value.endsWith("*"))
+				return new Condition(path, Op.Prefix, value.substring(0, value.length() - 1));
+			else
+				return new Condition(path, Op.Equals, value);
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public Op getOp() {
+			return op;
+		}
+
+		public String getOperand() {
+			return operand;
+		}
+
+		public boolean matches(Document doc) {
+			List<String> values = values(doc, path);
+			if (op == Op.NotEquals) {
+				for (String v : values) {
+					if (compare(v, operand) == 0)
+						return false;
+				}
+				return true;
+			}
+
+			for (String v : values) {
+				if (test(v))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * whether a value meets the condition (other than not-equals)
+		 * 
+		 * @param v
+		 * @return
+		 */
+		public boolean test(String v) {
+			switch (op) {
+			case Equals:
+				return compare(v, operand) == 0;
+			case NotEquals:
+				return compare(v, operand) != 0;
+			case Less:
+				return compare(v, operand) < 0;
+			case LessOrEqual:
+				return compare(v, operand) <= 0;
+			case Greater:
+				return compare(v, operand) > 0;
+			case GreaterOrEqual:
+				return compare(v, operand) >= 0;
+			default:
+				return v.startsWith(operand);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return path + " " + op + " " + operand;
+		}
+	}
+}
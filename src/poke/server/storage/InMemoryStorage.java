@@ -15,47 +15,88 @@
  */
 package poke.server.storage;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.protobuf.ByteString;
 
 import eye.Comm.Document;
 import eye.Comm.NameSpace;
 
 /**
  * A memory-based storage.
+ * <p>
+ * The storage is called by the server's worker threads concurrently. There is
+ * no storage-wide lock: namespaces are held in concurrent maps by id and by
+ * name (the name index), and each namespace has its own concurrent map of
+ * documents, so operations on different namespaces, or different documents
+ * of a namespace, do not wait for each other.
+ * <p>
+ * Documents are found by matching them against the criteria (see
+ * DocumentQuery). Without help that is a look at every document of the
+ * namespace; paths named as indexed (property storage.index, a comma separated
+ * list, or addIndex()) have a DocumentIndex in each namespace, which a query
+ * with a condition on the path uses to look at only the documents that may
+ * match.
+ * <p>
+ * Documents with large content (chunkContent) make the heap large and its
+ * collections slow. With storage.offheap the content of a document of at
+ * least storage.offheap.min bytes (default 4 KB) is kept in a direct buffer,
+ * outside of the heap; the heap holds the rest of the document (id, name,
+ * size, values), which is all a query looks at. A document found is rebuilt
+ * with a copy of its content.
+ * <p>
+ * A buffer is freed as soon as its document is replaced or removed and no
+ * reader is copying it (the buffer is reference counted), not when the heap
+ * object holding it is collected: the heap of such a storage is small, so
+ * collections are rare and direct memory would run out first. If the JVM
+ * does not let a buffer be freed explicitly, buffers are left to the
+ * collector; the JDK then calls System.gc() when direct memory runs out,
+ * which fails with -XX:+DisableExplicitGC. -XX:MaxDirectMemorySize must hold
+ * the content of the documents kept.
  * 
  * @author gash
  * 
  */
 public class InMemoryStorage implements Storage {
+	public static final String sIndex = "storage.index";
+	public static final String sOffHeap = "storage.offheap";
+	public static final String sOffHeapMin = "storage.offheap.min";
+
+	static final int sDefaultOffHeapMin = 4096;
+
 	private static String sNoName = "";
-	private HashMap<Long, DataNameSpace> data = new HashMap<Long, DataNameSpace>();
+	private ConcurrentHashMap<Long, DataNameSpace> data = new ConcurrentHashMap<Long, DataNameSpace>();
+
+	// namespace name to id
+	private ConcurrentHashMap<String, Long> names = new ConcurrentHashMap<String, Long>();
+
+	// the paths each namespace has an index of
+	private CopyOnWriteArrayList<String> indexed = new CopyOnWriteArrayList<String>();
+
+	// the least content kept off the heap, none if negative
+	private volatile int offHeapMin = -1;
 
 	@Override
 	public boolean addDocument(String namespace, Document doc) {
 		if (doc == null)
 			return false;
-		DataNameSpace dns = null;
-		if (namespace == null) {
-			namespace = sNoName;
-			NameSpace.Builder bldr = NameSpace.newBuilder();
-			bldr.setId(createKey());
-			bldr.setName(sNoName);
-			bldr.setOwner("none");
-			bldr.setCreated(System.currentTimeMillis());
-			dns = new DataNameSpace(bldr.build());
-			data.put(dns.nsb.getId(), dns);
-		} else
-			dns = lookupByName(namespace);
 
+		DataNameSpace dns = (namespace == null) ? defaultNameSpace() : lookupByName(namespace);
 		if (dns == null)
 			throw new RuntimeException("Unknown namspace: " + namespace);
 
 		Long key = null;
 		if (doc.hasId())
-			doc.hasId();
+			key = doc.getId();
 		else {
 			// note because we store the protobuf instance (read-only)
 			key = createKey();
@@ -64,7 +105,17 @@ public class InMemoryStorage implements Storage {
 			doc = bldr.build();
 		}
 
-		return dns.add(key, doc);
+		return dns.add(key, store(doc));
+	}
+
+	@Override
+	public boolean addDocuments(String namespace, List<Document> docs) {
+		if (docs == null || docs.contains(null))
+			return false;
+
+		for (Document doc : docs)
+			addDocument(namespace, doc);
+		return true;
 	}
 
 	@Override
@@ -73,7 +124,7 @@ public class InMemoryStorage implements Storage {
 			namespace = sNoName;
 
 		boolean rtn = false;
-		DataNameSpace list = data.get(namespace);
+		DataNameSpace list = lookupByName(namespace);
 		if (list != null)
 			rtn = list.remove(docId);
 
@@ -87,15 +138,24 @@ public class InMemoryStorage implements Storage {
 
 	@Override
 	public List<Document> findDocuments(String namespace, Document criteria) {
-		// TODO locating documents can be have several implementations that
-		// allow for exact matching to not equal to gt to lt
-
-		// return the namespace as queries are not implemented
-		DataNameSpace list = data.get(namespace);
+		DataNameSpace list = lookupByName((namespace == null) ? sNoName : namespace);
 		if (list == null)
 			return null;
 		else
-			return new ArrayList<Document>(list.data.values());
+			return list.find(DocumentQuery.parse(criteria));
+	}
+
+	/**
+	 * index the values of a path in every namespace
+	 * 
+	 * @param path
+	 */
+	public void addIndex(String path) {
+		if (path == null || path.length() == 0 || !indexed.addIfAbsent(path))
+			return;
+
+		for (DataNameSpace dns : data.values())
+			dns.addIndex(path);
 	}
 
 	@Override
@@ -109,8 +169,17 @@ public class InMemoryStorage implements Storage {
 
 	@Override
 	public List<eye.Comm.NameSpace> findNameSpaces(eye.Comm.NameSpace criteria) {
-		// TODO Auto-generated method stub
-		return null;
+		List<NameSpace> rtn = new ArrayList<NameSpace>();
+		if (criteria != null && criteria.hasName()) {
+			DataNameSpace dns = lookupByName(criteria.getName());
+			if (dns != null)
+				rtn.add(dns.getNameSpace());
+		} else {
+			for (DataNameSpace dns : data.values())
+				rtn.add(dns.getNameSpace());
+		}
+
+		return rtn;
 	}
 
 	@Override
@@ -118,18 +187,13 @@ public class InMemoryStorage implements Storage {
 		if (space == null)
 			return null;
 
-		DataNameSpace dns = lookupByName(space.getName());
-		if (dns != null)
+		if (names.containsKey(space.getName()))
 			throw new RuntimeException("Namespace already exists");
 
 		NameSpace.Builder bldr = NameSpace.newBuilder();
-		if (space.hasId()) {
-			dns = data.get(space.getId());
-			if (dns != null)
-				throw new RuntimeException("Namespace ID already exists");
-			else
-				bldr.setId(space.getId());
-		} else
+		if (space.hasId())
+			bldr.setId(space.getId());
+		else
 			bldr.setId(createKey());
 
 		bldr.setName(space.getName());
@@ -143,8 +207,17 @@ public class InMemoryStorage implements Storage {
 			bldr.setDesc(space.getDesc());
 
 		NameSpace ns = bldr.build();
-		dns = new DataNameSpace(ns);
-		data.put(dns.getNameSpace().getId(), dns);
+		DataNameSpace dns = new DataNameSpace(ns);
+		for (String path : indexed)
+			dns.addIndex(path);
+
+		// claim the id, then the name, undoing the first if the second fails
+		if (data.putIfAbsent(ns.getId(), dns) != null)
+			throw new RuntimeException("Namespace ID already exists");
+		if (names.putIfAbsent(ns.getName(), ns.getId()) != null) {
+			data.remove(ns.getId(), dns);
+			throw new RuntimeException("Namespace already exists");
+		}
 
 		return ns;
 	}
@@ -155,8 +228,10 @@ public class InMemoryStorage implements Storage {
 		try {
 			return (dns != null);
 		} finally {
-			if (dns != null)
+			if (dns != null) {
+				names.remove(dns.ns.getName(), spaceId);
 				dns.release();
+			}
 			dns = null;
 		}
 	}
@@ -165,66 +240,275 @@ public class InMemoryStorage implements Storage {
 		if (name == null)
 			return null;
 
-		for (DataNameSpace dns : data.values()) {
-			if (dns.getNameSpace().getName().equals(name))
-				return dns;
+		Long id = names.get(name);
+		return (id != null) ? data.get(id) : null;
+	}
+
+	/**
+	 * the namespace of documents added without one, created when first needed
+	 * 
+	 * @return
+	 */
+	private DataNameSpace defaultNameSpace() {
+		DataNameSpace dns = lookupByName(sNoName);
+		while (dns == null) {
+			NameSpace.Builder bldr = NameSpace.newBuilder();
+			bldr.setName(sNoName);
+			bldr.setOwner("none");
+			try {
+				createNameSpace(bldr.build());
+			} catch (RuntimeException e) {
+				// created by another thread
+			}
+			dns = lookupByName(sNoName);
 		}
-		return null;
+
+		return dns;
 	}
 
 	private long createKey() {
-		// TODO need key generator
-		return System.nanoTime();
+		return KeyGenerator.getInstance().next();
+	}
+
+	// frees a direct buffer: Unsafe.invokeCleaner (Java 9+) or the buffer's
+	// cleaner (Java 8), neither if the JVM has none
+	private static Object sUnsafe;
+	private static Method sInvokeCleaner, sCleaner, sClean;
+
+	static {
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			sInvokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+			sUnsafe = f.get(null);
+		} catch (Exception e) {
+			sInvokeCleaner = null;
+			try {
+				sCleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+				sCleaner.setAccessible(true);
+				sClean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			} catch (Exception e2) {
+				sCleaner = null;
+			}
+		}
+	}
+
+	/**
+	 * free a direct buffer now, rather than when it is collected
+	 * 
+	 * @param b
+	 *            Not used afterwards
+	 */
+	static void free(ByteBuffer b) {
+		try {
+			if (sInvokeCleaner != null)
+				sInvokeCleaner.invoke(sUnsafe, b);
+			else if (sCleaner != null) {
+				Object cleaner = sCleaner.invoke(b);
+				if (cleaner != null)
+					sClean.invoke(cleaner);
+			}
+		} catch (Exception e) {
+			// left to the collector
+		}
+	}
+
+	private Stored store(Document doc) {
+		int min = offHeapMin;
+		if (min < 0 || !doc.hasChunkContent() || doc.getChunkContent().size() < min)
+			return new Stored(doc, null);
+
+		ByteBuffer content = ByteBuffer.allocateDirect(doc.getChunkContent().size());
+		doc.getChunkContent().copyTo(content);
+		content.flip();
+		return new Stored(Document.newBuilder(doc).clearChunkContent().build(), content);
+	}
+
+	/**
+	 * a document as kept: the document, or the document without its content
+	 * and the content off the heap. The content is referenced by the
+	 * namespace (until the document is replaced or removed) and by the
+	 * readers copying it, the last to let go frees it.
+	 */
+	private static class Stored {
+		final Document doc;
+		final ByteBuffer content;
+		private final AtomicInteger refs = new AtomicInteger(1);
+
+		Stored(Document doc, ByteBuffer content) {
+			this.doc = doc;
+			this.content = content;
+		}
+
+		/**
+		 * @return the document, null if it was replaced or removed (its
+		 *         content freed) since it was looked up
+		 */
+		Document get() {
+			if (content == null)
+				return doc;
+
+			while (true) {
+				int r = refs.get();
+				if (r == 0)
+					return null;
+				if (refs.compareAndSet(r, r + 1))
+					break;
+			}
+
+			try {
+				return Document.newBuilder(doc).setChunkContent(ByteString.copyFrom(content.duplicate())).build();
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * let go of the content (the namespace's reference, or a reader's)
+		 */
+		void release() {
+			if (content != null && refs.decrementAndGet() == 0)
+				free(content);
+		}
 	}
 
 	private static class DataNameSpace {
-		// store the builder to allow continued updates to the metadata
-		eye.Comm.NameSpace.Builder nsb;
-		HashMap<Long, Document> data = new HashMap<Long, Document>();
+		// the metadata, except the time of the last change
+		final NameSpace ns;
+		volatile long lastModified;
+		ConcurrentHashMap<Long, Stored> data = new ConcurrentHashMap<Long, Stored>();
+		ConcurrentHashMap<String, DocumentIndex> indexes = new ConcurrentHashMap<String, DocumentIndex>();
 
 		public DataNameSpace(NameSpace ns) {
-			nsb = NameSpace.newBuilder(ns);
+			this.ns = ns;
+			this.lastModified = ns.getLastModified();
 		}
 
 		public void release() {
-			if (data != null) {
-				data.clear();
-				data = null;
-			}
+			for (Stored s : data.values())
+				s.release();
+			data.clear();
+			for (DocumentIndex idx : indexes.values())
+				idx.clear();
+		}
 
-			nsb = null;
+		/**
+		 * the index is used once it holds the documents already added
+		 * 
+		 * @param path
+		 */
+		public void addIndex(String path) {
+			DocumentIndex idx = new DocumentIndex(path);
+			for (Stored s : data.values())
+				idx.add(s.doc.getId(), s.doc);
+			if (indexes.putIfAbsent(path, idx) != null)
+				return;
+
+			// documents added while the index was built
+			for (Stored s : data.values())
+				idx.add(s.doc.getId(), s.doc);
 		}
 
 		public NameSpace getNameSpace() {
-			return nsb.build();
+			return NameSpace.newBuilder(ns).setLastModified(lastModified).build();
 		}
 
-		public boolean add(Long key, Document doc) {
-			data.put(key, doc);
-			nsb.setLastModified(System.currentTimeMillis());
+		public boolean add(Long key, Stored doc) {
+			Stored prev = data.put(key, doc);
+			for (DocumentIndex idx : indexes.values()) {
+				if (prev != null)
+					idx.remove(key, prev.doc);
+				idx.add(key, doc.doc);
+			}
+			if (prev != null)
+				prev.release();
+			lastModified = System.currentTimeMillis();
 			return true;
 		}
 
 		public boolean remove(Long key) {
-			Document doc = data.remove(key);
+			Stored doc = data.remove(key);
 			if (doc == null)
 				return false;
 			else {
-				nsb.setLastModified(System.currentTimeMillis());
+				for (DocumentIndex idx : indexes.values())
+					idx.remove(key, doc.doc);
+				doc.release();
+				lastModified = System.currentTimeMillis();
 				return true;
 			}
 		}
+
+		/**
+		 * the documents matching a query, looking only at those the most
+		 * selective index allows (all without one)
+		 * 
+		 * @param q
+		 * @return
+		 */
+		public List<Document> find(DocumentQuery q) {
+			List<Document> rtn = new ArrayList<Document>();
+			if (q.isEmpty()) {
+				for (Stored s : data.values())
+					add(rtn, s);
+				return rtn;
+			}
+
+			Collection<Long> keys = null;
+			for (DocumentQuery.Condition c : q.getConditions()) {
+				DocumentIndex idx = indexes.get(c.getPath());
+				if (idx == null)
+					continue;
+
+				Collection<Long> k = idx.find(c);
+				if (k != null && (keys == null || k.size() < keys.size()))
+					keys = k;
+			}
+
+			if (keys == null) {
+				for (Stored s : data.values()) {
+					if (q.matches(s.doc))
+						add(rtn, s);
+				}
+			} else {
+				for (Long key : keys) {
+					Stored s = data.get(key);
+					if (s != null && q.matches(s.doc))
+						add(rtn, s);
+				}
+			}
+
+			return rtn;
+		}
+
+		private void add(List<Document> found, Stored s) {
+			Document d = s.get();
+			if (d != null)
+				found.add(d);
+		}
 	}
 
 	@Override
 	public void init(Properties cfg) {
-		// TODO Auto-generated method stub
-		
+		if (cfg == null)
+			return;
+
+		String paths = cfg.getProperty(sIndex);
+		if (paths != null) {
+			for (String path : paths.split(","))
+				addIndex(path.trim());
+		}
+
+		if (Boolean.parseBoolean(cfg.getProperty(sOffHeap)))
+			offHeapMin = Integer.parseInt(cfg.getProperty(sOffHeapMin, Integer.toString(sDefaultOffHeapMin)).trim());
 	}
 
 	@Override
 	public void release() {
-		// TODO Auto-generated method stub
-		
+		for (DataNameSpace dns : data.values())
+			dns.release();
+		data.clear();
+		names.clear();
 	}
 }
@@ -0,0 +1,147 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The keys (ids) of namespaces and documents, unique across the cluster
+ * without asking the other nodes. A key is 64 bits:
+ * 
+ * <pre>
+ * | 41 bits time (msec since 2013) | 10 bits node | 12 bits sequence |
+ * </pre>
+ * 
+ * The node is the server's node.id if it is a number (0 - 1023), otherwise a
+ * hash of it, so nodes must have ids that do not share the 10 bits.
+ * <p>
+ * The time and sequence are kept together in one AtomicLong and advanced by
+ * compare-and-set: no lock, and nothing is allocated. If more than 4096 keys
+ * are needed in a millisecond, or the clock goes back, the keys carry on from
+ * the last one (the time runs ahead of the clock until it catches up), so
+ * keys of a node never repeat and always increase.
+ * 
+ * @author gash
+ * 
+ */
+public class KeyGenerator {
+	protected static Logger logger = LoggerFactory.getLogger(KeyGenerator.class);
+
+	// 2013-01-01T00:00:00Z
+	static final long sEpoch = 1356998400000L;
+
+	static final int sNodeBits = 10;
+	static final int sSequenceBits = 12;
+
+	private static AtomicReference<KeyGenerator> instance = new AtomicReference<KeyGenerator>();
+
+	private final long node;
+
+	// time << sSequenceBits | sequence, of the last key
+	private final AtomicLong last = new AtomicLong();
+
+	/**
+	 * the server's generator, created for the node on the first call
+	 * 
+	 * @param nodeId
+	 * @return
+	 * @throws IllegalStateException
+	 *             if the generator was created for another node (e.g., by
+	 *             getInstance() before the server set it up), whose keys
+	 *             would not be this node's
+	 */
+	public static KeyGenerator getInstance(String nodeId) {
+		KeyGenerator kg = instance.get();
+		if (kg == null) {
+			instance.compareAndSet(null, new KeyGenerator(nodeId));
+			kg = instance.get();
+		}
+
+		if (kg.node != toNode(nodeId))
+			throw new IllegalStateException("Keys are already generated as node " + kg.node + ", not as node "
+					+ toNode(nodeId) + " (" + nodeId + ")");
+		return kg;
+	}
+
+	/**
+	 * @return the server's generator, node 0 if the server has not set it up
+	 *         (e.g., a storage used outside of a server)
+	 */
+	public static KeyGenerator getInstance() {
+		KeyGenerator kg = instance.get();
+		return (kg != null) ? kg : getInstance("0");
+	}
+
+	protected KeyGenerator(String nodeId) {
+		this.node = toNode(nodeId);
+		logger.info("keys of node " + nodeId + " are generated as node " + node);
+	}
+
+	public long next() {
+		long now = (System.currentTimeMillis() - sEpoch) << sSequenceBits;
+		while (true) {
+			long prev = last.get();
+			long next = (now > prev) ? now : prev + 1;
+			if (last.compareAndSet(prev, next))
+				return ((next >>> sSequenceBits) << (sNodeBits + sSequenceBits)) | (node << sSequenceBits)
+						| (next & ((1 << sSequenceBits) - 1));
+		}
+	}
+
+	/**
+	 * the node that generated a key
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public static int nodeOf(long key) {
+		return (int) ((key >>> sSequenceBits) & ((1 << sNodeBits) - 1));
+	}
+
+	/**
+	 * the time a key was generated (about)
+	 * 
+	 * @param key
+	 * @return msec
+	 */
+	public static long timeOf(long key) {
+		return (key >>> (sNodeBits + sSequenceBits)) + sEpoch;
+	}
+
+	static long toNode(String nodeId) {
+		int max = (1 << sNodeBits) - 1;
+		if (nodeId == null)
+			return 0;
+
+		try {
+			int n = Integer.parseInt(nodeId.trim());
+			if (n >= 0 && n <= max)
+				return n;
+		} catch (NumberFormatException e) {
+		}
+
+		int h = 0;
+		for (int i = 0, I = nodeId.length(); i < I; i++)
+			h = 31 * h + nodeId.charAt(i);
+		h ^= h >>> 16;
+		h ^= h >>> 10;
+		return h & max;
+	}
+}
@@ -0,0 +1,1015 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eye.Comm.Document;
+import eye.Comm.NameSpace;
+
+/**
+ * A storage that keeps its documents on disk, as a log: every change is a
+ * record (the Document or NameSpace protobuf, or a removal) appended to the
+ * current segment file of the directory (storage.dir). Memory holds only an
+ * index per namespace of where each document's latest record is, a document
+ * is read from its segment when found.
+ * <p>
+ * A full segment (storage.segment.size) is sealed with a footer listing its
+ * records (kind, namespace, document, offset and length), so recovery reads
+ * the footers to rebuild the index instead of the segments. Only a segment
+ * that was being written when the server stopped is scanned (and cut at the
+ * first damaged record).
+ * <p>
+ * Replaced and removed documents leave dead records behind. A thread
+ * compacts sealed segments that are mostly dead by copying their live
+ * records to the current segment and deleting the file. A removal record is
+ * copied too unless nothing older could hold the document (the oldest
+ * segment), so a compacted removal never brings a document back.
+ * <p>
+ * Records are written to the file (the OS) when the change returns, which
+ * survives a restart of the server; storage.segment.force also forces each
+ * change to disk. Changes are serialized, reads are concurrent.
+ * <p>
+ * Reads run on the callers' threads. A thread interrupted during a read
+ * closes the segment's channel (FileChannel does), so a segment that is found
+ * closed while it is still in use is reopened.
+ * 
+ * @author gash
+ * 
+ */
+public class LogStorage implements Storage {
+	protected static Logger logger = LoggerFactory.getLogger(LogStorage.class);
+
+	public static final String sDir = "storage.dir";
+	public static final String sSegmentSize = "storage.segment.size";
+	public static final String sForce = "storage.segment.force";
+
+	static final long sDefaultSegmentSize = 64 * 1024 * 1024;
+
+	// a sealed segment with less live data than this (fraction) is compacted
+	static final double sCompactBelow = 0.5;
+	static final int sCompactMsec = 30000;
+
+	static final byte sPut = 1;
+	static final byte sDelete = 2;
+	static final byte sSpace = 3;
+	static final byte sDropSpace = 4;
+
+	// record: length, CRC, op, namespace id, document id, protobuf
+	static final int sRecordHeader = 4 + 4 + 1 + 8 + 8;
+
+	// footer entry: op, namespace id, document id, offset, length
+	static final int sEntrySize = 1 + 8 + 8 + 8 + 4;
+
+	// footer trailer: entries offset, count, CRC, magic
+	static final int sTrailerSize = 8 + 4 + 4 + 8;
+	static final long sMagic = 0x706f6b652d736567L;
+
+	private static String sNoName = "";
+
+	private File dir;
+	private long segmentSize = sDefaultSegmentSize;
+	private boolean force;
+
+	private ConcurrentHashMap<Long, Space> spaces = new ConcurrentHashMap<Long, Space>();
+
+	// namespace name to id
+	private ConcurrentHashMap<String, Long> names = new ConcurrentHashMap<String, Long>();
+
+	private ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+
+	// guarded by this (changes are serialized)
+	private Segment active;
+
+	private Compactor compactor;
+
+	@Override
+	public void init(Properties cfg) {
+		if (active != null)
+			return;
+
+		if (cfg == null)
+			cfg = new Properties();
+
+		dir = new File(cfg.getProperty(sDir, "storage"));
+		segmentSize = Long.parseLong(cfg.getProperty(sSegmentSize, Long.toString(sDefaultSegmentSize)));
+		force = Boolean.parseBoolean(cfg.getProperty(sForce, "false"));
+
+		try {
+			recover();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to open storage " + dir, e);
+		}
+
+		compactor = new Compactor();
+		compactor.start();
+	}
+
+	@Override
+	public synchronized void release() {
+		if (active == null)
+			return;
+
+		compactor.interrupt();
+		try {
+			// sealed, the next start reads only footers
+			active.seal();
+		} catch (IOException e) {
+			logger.warn("Unable to seal " + active.file, e);
+		}
+
+		for (Segment s : segments.values())
+			s.close();
+		segments.clear();
+		spaces.clear();
+		names.clear();
+		active = null;
+	}
+
+	@Override
+	public NameSpace getNameSpaceInfo(long spaceId) {
+		Space s = spaces.get(spaceId);
+		return (s != null) ? s.getNameSpace() : null;
+	}
+
+	@Override
+	public List<NameSpace> findNameSpaces(NameSpace criteria) {
+		List<NameSpace> rtn = new ArrayList<NameSpace>();
+		if (criteria != null && criteria.hasName()) {
+			Space s = lookupByName(criteria.getName());
+			if (s != null)
+				rtn.add(s.getNameSpace());
+		} else {
+			for (Space s : spaces.values())
+				rtn.add(s.getNameSpace());
+		}
+
+		return rtn;
+	}
+
+	@Override
+	public synchronized NameSpace createNameSpace(NameSpace space) {
+		if (space == null)
+			return null;
+
+		if (names.containsKey(space.getName()))
+			throw new RuntimeException("Namespace already exists");
+
+		NameSpace.Builder bldr = NameSpace.newBuilder(space);
+		if (!space.hasId())
+			bldr.setId(KeyGenerator.getInstance().next());
+		bldr.setCreated(System.currentTimeMillis());
+		bldr.setLastModified(bldr.getCreated());
+		NameSpace ns = bldr.build();
+
+		if (spaces.containsKey(ns.getId()))
+			throw new RuntimeException("Namespace ID already exists");
+
+		Location loc = write(sSpace, ns.getId(), 0, ns.toByteArray());
+		Space s = new Space(ns, loc);
+		spaces.put(ns.getId(), s);
+		names.put(ns.getName(), ns.getId());
+		loc.segment.live += loc.length;
+		force();
+
+		return ns;
+	}
+
+	@Override
+	public synchronized boolean removeNameSpace(long spaceId) {
+		Space s = spaces.get(spaceId);
+		if (s == null)
+			return false;
+
+		write(sDropSpace, spaceId, 0, null);
+		drop(s);
+		force();
+		return true;
+	}
+
+	@Override
+	public boolean addDocument(String namespace, Document doc) {
+		if (doc == null)
+			return false;
+
+		return addDocuments(namespace, Arrays.asList(doc));
+	}
+
+	@Override
+	public synchronized boolean addDocuments(String namespace, List<Document> docs) {
+		if (docs == null || docs.contains(null))
+			return false;
+
+		Space s = (namespace == null) ? defaultNameSpace() : lookupByName(namespace);
+		if (s == null)
+			throw new RuntimeException("Unknown namspace: " + namespace);
+
+		// all are written before any is indexed
+		long[] ids = new long[docs.size()];
+		List<byte[]> recs = new ArrayList<byte[]>(docs.size());
+		for (int i = 0; i < ids.length; i++) {
+			Document doc = docs.get(i);
+			if (!doc.hasId())
+				doc = Document.newBuilder(doc).setId(KeyGenerator.getInstance().next()).build();
+
+			ids[i] = doc.getId();
+			recs.add(encode(sPut, s.ns.getId(), ids[i], doc.toByteArray()));
+		}
+
+		List<Location> locs = write(sPut, s.ns.getId(), ids, recs);
+
+		// once for all of them
+		force();
+		for (int i = 0; i < ids.length; i++)
+			put(s, ids[i], locs.get(i));
+		s.lastModified = System.currentTimeMillis();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean removeDocument(String namespace, long docId) {
+		Space s = lookupByName((namespace == null) ? sNoName : namespace);
+		if (s == null || !s.docs.containsKey(docId))
+			return false;
+
+		write(sDelete, s.ns.getId(), docId, null);
+		Location prev = s.docs.remove(docId);
+		if (prev != null)
+			prev.segment.live -= prev.length;
+		s.lastModified = System.currentTimeMillis();
+		force();
+		return true;
+	}
+
+	@Override
+	public boolean updateDocument(String namespace, Document doc) {
+		return addDocument(namespace, doc);
+	}
+
+	@Override
+	public List<Document> findDocuments(String namespace, Document criteria) {
+		Space s = lookupByName((namespace == null) ? sNoName : namespace);
+		if (s == null)
+			return null;
+
+		DocumentQuery q = DocumentQuery.parse(criteria);
+		List<Document> rtn = new ArrayList<Document>();
+
+		// by id, one read
+		if (criteria != null && criteria.hasId()) {
+			Document doc = read(s, criteria.getId());
+			if (doc != null && q.matches(doc))
+				rtn.add(doc);
+			return rtn;
+		}
+
+		for (Long id : s.docs.keySet()) {
+			Document doc = read(s, id);
+			if (doc != null && q.matches(doc))
+				rtn.add(doc);
+		}
+
+		return rtn;
+	}
+
+	private Space lookupByName(String name) {
+		if (name == null)
+			return null;
+
+		Long id = names.get(name);
+		return (id != null) ? spaces.get(id) : null;
+	}
+
+	private synchronized Space defaultNameSpace() {
+		Space s = lookupByName(sNoName);
+		if (s == null) {
+			NameSpace.Builder bldr = NameSpace.newBuilder();
+			bldr.setName(sNoName);
+			bldr.setOwner("none");
+			createNameSpace(bldr.build());
+			s = lookupByName(sNoName);
+		}
+
+		return s;
+	}
+
+	private void put(Space s, long id, Location loc) {
+		Location prev = s.docs.put(id, loc);
+		loc.segment.live += loc.length;
+		if (prev != null)
+			prev.segment.live -= prev.length;
+	}
+
+	private void drop(Space s) {
+		spaces.remove(s.ns.getId());
+		names.remove(s.ns.getName(), s.ns.getId());
+		s.loc.segment.live -= s.loc.length;
+		for (Location loc : s.docs.values())
+			loc.segment.live -= loc.length;
+		s.docs.clear();
+	}
+
+	/**
+	 * a document's latest version, reading again if its segment was compacted
+	 * meanwhile
+	 * 
+	 * @param s
+	 * @param id
+	 * @return null if the namespace has no such document
+	 */
+	private Document read(Space s, long id) {
+		// an interrupted thread would close the shared channel, the interrupt
+		// is kept for the thread's owner
+		boolean interrupted = Thread.interrupted();
+		try {
+			for (int attempt = 0; attempt < 3; attempt++) {
+				Location loc = s.docs.get(id);
+				if (loc == null)
+					return null;
+
+				try {
+					return Document.parseFrom(loc.segment.payload(loc));
+				} catch (ClosedByInterruptException e) {
+					// interrupted while reading, the next attempt reopens
+					interrupted |= Thread.interrupted();
+				} catch (ClosedChannelException e) {
+					// compacted
+				} catch (IOException e) {
+					logger.error("Unable to read document " + id + " from " + loc.segment.file, e);
+					return null;
+				}
+			}
+
+			return null;
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * append a record to the current segment (a new one if it is full), the
+	 * caller forces the change
+	 * 
+	 * @return where the record is
+	 */
+	private Location write(byte op, long spaceId, long id, byte[] payload) {
+		byte[] rec = encode(op, spaceId, id, payload);
+		try {
+			if (active.size + rec.length > segmentSize && active.size > 0)
+				roll();
+
+			return active.append(op, spaceId, id, rec);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write to " + active.file, e);
+		}
+	}
+
+	/**
+	 * write records to one segment, all or none: the active segment is
+	 * rolled first if they do not fit, and cut back if one fails
+	 * 
+	 * @return the records' locations
+	 */
+	private List<Location> write(byte op, long spaceId, long[] ids, List<byte[]> recs) {
+		long len = 0;
+		for (byte[] rec : recs)
+			len += rec.length;
+
+		try {
+			if (active.size + len > segmentSize && active.size > 0)
+				roll();
+
+			return active.append(op, spaceId, ids, recs);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write to " + active.file, e);
+		}
+	}
+
+	private void force() {
+		if (!force)
+			return;
+
+		try {
+			active.channel().force(false);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to force " + active.file, e);
+		}
+	}
+
+	private void roll() throws IOException {
+		active.seal();
+		active = open(active.number + 1);
+		segments.put(active.number, active);
+	}
+
+	private Segment open(int number) throws IOException {
+		return new Segment(number, new File(dir, String.format("segment-%08d.log", number)));
+	}
+
+	static byte[] encode(byte op, long spaceId, long id, byte[] payload) {
+		int len = sRecordHeader - 8 + ((payload != null) ? payload.length : 0);
+		ByteBuffer b = ByteBuffer.allocate(8 + len);
+		b.putInt(len);
+		b.putInt(0);
+		b.put(op);
+		b.putLong(spaceId);
+		b.putLong(id);
+		if (payload != null)
+			b.put(payload);
+
+		CRC32 crc = new CRC32();
+		crc.update(b.array(), 8, len);
+		b.putInt(4, (int) crc.getValue());
+		return b.array();
+	}
+
+	/**
+	 * rebuild the index from the segments, oldest first
+	 * 
+	 * @throws IOException
+	 */
+	private void recover() throws IOException {
+		long start = System.currentTimeMillis();
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Unable to create " + dir);
+
+		File[] files = dir.listFiles();
+		List<Integer> numbers = new ArrayList<Integer>();
+		if (files != null) {
+			for (File f : files) {
+				String n = f.getName();
+				if (n.startsWith("segment-") && n.endsWith(".log"))
+					numbers.add(Integer.parseInt(n.substring(8, n.length() - 4)));
+			}
+		}
+		Collections.sort(numbers);
+
+		int scanned = 0;
+		long records = 0;
+		Map<Long, ConcurrentHashMap<Long, Location>> pending = new HashMap<Long, ConcurrentHashMap<Long, Location>>();
+		Set<Long> dropped = new HashSet<Long>();
+		for (int i = 0; i < numbers.size(); i++) {
+			Segment seg = open(numbers.get(i));
+			List<Entry> entries = seg.readFooter();
+			if (entries == null) {
+				entries = seg.scan();
+				scanned++;
+			}
+			segments.put(seg.number, seg);
+
+			for (Entry e : entries)
+				recover(seg, e, pending, dropped);
+			records += entries.size();
+
+			boolean last = (i == numbers.size() - 1);
+			if (last && seg.size < segmentSize) {
+				// keep writing it
+				seg.unseal(entries);
+				active = seg;
+			} else if (!seg.sealed)
+				seg.seal();
+		}
+
+		// documents of a namespace whose record is lost (not expected)
+		for (Map.Entry<Long, ConcurrentHashMap<Long, Location>> p : pending.entrySet()) {
+			logger.warn("storage " + dir + ": " + p.getValue().size() + " documents of unknown namespace " + p.getKey());
+			for (Location loc : p.getValue().values())
+				loc.segment.live -= loc.length;
+		}
+
+		if (active == null) {
+			active = open(numbers.isEmpty() ? 1 : numbers.get(numbers.size() - 1) + 1);
+			segments.put(active.number, active);
+		}
+
+		int docs = 0;
+		for (Space s : spaces.values())
+			docs += s.docs.size();
+		logger.info("storage " + dir + ": " + segments.size() + " segments (" + scanned + " scanned), " + records
+				+ " records, " + spaces.size() + " namespaces, " + docs + " documents ("
+				+ (System.currentTimeMillis() - start) + " ms)");
+	}
+
+	/**
+	 * apply a record found on recovery. A compaction copies a namespace's
+	 * record after documents of it, so documents of a namespace not (yet) seen
+	 * wait in pending.
+	 */
+	private void recover(Segment seg, Entry e, Map<Long, ConcurrentHashMap<Long, Location>> pending,
+			Set<Long> dropped) throws IOException {
+		Location loc = new Location(seg, e.offset, e.length);
+		Space s = spaces.get(e.spaceId);
+		ConcurrentHashMap<Long, Location> docs = (s != null) ? s.docs : pending.get(e.spaceId);
+		switch (e.op) {
+		case sPut:
+			// a document of a removed namespace is dead
+			if (s == null && docs == null && !dropped.contains(e.spaceId)) {
+				docs = new ConcurrentHashMap<Long, Location>();
+				pending.put(e.spaceId, docs);
+			}
+			if (docs != null) {
+				Location prev = docs.put(e.id, loc);
+				if (prev != null)
+					prev.segment.live -= prev.length;
+				seg.live += loc.length;
+			}
+			break;
+		case sDelete:
+			if (docs != null) {
+				Location prev = docs.remove(e.id);
+				if (prev != null)
+					prev.segment.live -= prev.length;
+			}
+			break;
+		case sSpace:
+			NameSpace ns = NameSpace.parseFrom(seg.payload(loc));
+			if (s != null) {
+				// copied by a compaction
+				s.loc.segment.live -= s.loc.length;
+				s.loc = loc;
+			} else {
+				s = new Space(ns, loc);
+				if (docs != null) {
+					s.docs = docs;
+					pending.remove(e.spaceId);
+				}
+				spaces.put(ns.getId(), s);
+				names.put(ns.getName(), ns.getId());
+			}
+			seg.live += loc.length;
+			break;
+		case sDropSpace:
+			dropped.add(e.spaceId);
+			if (s != null)
+				drop(s);
+			else if (docs != null) {
+				for (Location l : docs.values())
+					l.segment.live -= l.length;
+				pending.remove(e.spaceId);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * copy the live records of a sealed segment to the current one and delete
+	 * it
+	 * 
+	 * @param seg
+	 * @throws IOException
+	 */
+	private synchronized void compact(Segment seg) throws IOException {
+		if (active == null || seg == active || !segments.containsKey(seg.number))
+			return;
+
+		List<Entry> entries = seg.readFooter();
+		if (entries == null)
+			return;
+
+		boolean oldest = segments.firstKey() == seg.number;
+		long before = seg.size;
+		int copied = 0;
+		for (Entry e : entries) {
+			Space s = spaces.get(e.spaceId);
+			Location at = new Location(seg, e.offset, e.length);
+			switch (e.op) {
+			case sPut:
+				if (s != null && at.equals(s.docs.get(e.id))) {
+					put(s, e.id, copy(seg, e));
+					copied++;
+				}
+				break;
+			case sSpace:
+				if (s != null && at.equals(s.loc)) {
+					Location loc = copy(seg, e);
+					s.loc.segment.live -= s.loc.length;
+					s.loc = loc;
+					loc.segment.live += loc.length;
+					copied++;
+				}
+				break;
+			case sDelete:
+				// an older segment may hold the document, unless it was
+				// added again since
+				if (!oldest && s != null && !s.docs.containsKey(e.id)) {
+					copy(seg, e);
+					copied++;
+				}
+				break;
+			case sDropSpace:
+				if (!oldest && s == null) {
+					copy(seg, e);
+					copied++;
+				}
+				break;
+			}
+		}
+		// the copies must be on disk before the file is gone, whether or not
+		// changes are forced
+		active.channel().force(false);
+
+		segments.remove(seg.number);
+		seg.close();
+		if (!seg.file.delete())
+			logger.warn("Unable to delete " + seg.file);
+
+		logger.info("compacted " + seg.file.getName() + ": " + copied + " of " + entries.size() + " records, "
+				+ before + " bytes");
+	}
+
+	private Location copy(Segment seg, Entry e) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(e.length);
+		seg.read(b, e.offset);
+		byte[] rec = b.array();
+
+		if (active.size + rec.length > segmentSize && active.size > 0)
+			roll();
+		return active.append(e.op, e.spaceId, e.id, rec);
+	}
+
+	/**
+	 * a namespace and the latest record of each of its documents
+	 */
+	private static class Space {
+		final NameSpace ns;
+		volatile long lastModified;
+		Location loc;
+		ConcurrentHashMap<Long, Location> docs = new ConcurrentHashMap<Long, Location>();
+
+		Space(NameSpace ns, Location loc) {
+			this.ns = ns;
+			this.loc = loc;
+			this.lastModified = ns.getLastModified();
+		}
+
+		NameSpace getNameSpace() {
+			return NameSpace.newBuilder(ns).setLastModified(lastModified).build();
+		}
+	}
+
+	private static class Location {
+		final Segment segment;
+		final long offset;
+		final int length;
+
+		Location(Segment segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Location))
+				return false;
+			Location l = (Location) o;
+			return l.segment == segment && l.offset == offset;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (offset ^ (offset >>> 32)) ^ segment.number;
+		}
+	}
+
+	private static class Entry {
+		final byte op;
+		final long spaceId;
+		final long id;
+		final long offset;
+		final int length;
+
+		Entry(byte op, long spaceId, long id, long offset, int length) {
+			this.op = op;
+			this.spaceId = spaceId;
+			this.id = id;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static class Segment {
+		final int number;
+		final File file;
+		private volatile FileChannel channel;
+		private boolean closed;
+
+		// the end of the records
+		long size;
+
+		// bytes of the records that are the latest of their document
+		// (namespace), guarded by the storage
+		long live;
+
+		boolean sealed;
+
+		// the records of the segment being written
+		List<Entry> entries = new ArrayList<Entry>();
+
+		Segment(int number, File file) throws IOException {
+			this.number = number;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		/**
+		 * the segment's channel, reopened if a thread interrupted in an I/O
+		 * operation closed it
+		 * 
+		 * @return
+		 * @throws ClosedChannelException
+		 *             if the segment is closed (compacted or released)
+		 */
+		FileChannel channel() throws IOException {
+			FileChannel ch = channel;
+			if (ch.isOpen())
+				return ch;
+
+			synchronized (this) {
+				if (closed)
+					throw new ClosedChannelException();
+				if (!channel.isOpen()) {
+					logger.warn("reopening " + file + ", closed by an interrupted thread");
+					channel = new RandomAccessFile(file, "rw").getChannel();
+				}
+				return channel;
+			}
+		}
+
+		Location append(byte op, long spaceId, long id, byte[] rec) throws IOException {
+			long offset = size;
+			ByteBuffer b = ByteBuffer.wrap(rec);
+			long pos = offset;
+			FileChannel ch = channel();
+			while (b.hasRemaining())
+				pos += ch.write(b, pos);
+
+			size += rec.length;
+			entries.add(new Entry(op, spaceId, id, offset, rec.length));
+			return new Location(this, offset, rec.length);
+		}
+
+		/**
+		 * append records, none if one cannot be written
+		 */
+		List<Location> append(byte op, long spaceId, long[] ids, List<byte[]> recs) throws IOException {
+			long offset = size;
+			long pos = offset;
+			FileChannel ch = channel();
+			try {
+				for (byte[] rec : recs) {
+					ByteBuffer b = ByteBuffer.wrap(rec);
+					while (b.hasRemaining())
+						pos += ch.write(b, pos);
+				}
+			} catch (IOException e) {
+				// the records written must not be found by a scan
+				try {
+					channel().truncate(offset);
+				} catch (IOException t) {
+					logger.warn("Unable to cut " + file + " back to " + offset, t);
+				}
+				throw e;
+			}
+
+			List<Location> rtn = new ArrayList<Location>(recs.size());
+			for (int i = 0; i < ids.length; i++) {
+				int len = recs.get(i).length;
+				entries.add(new Entry(op, spaceId, ids[i], size, len));
+				rtn.add(new Location(this, size, len));
+				size += len;
+			}
+			return rtn;
+		}
+
+		void read(ByteBuffer b, long pos) throws IOException {
+			FileChannel ch = channel();
+			while (b.hasRemaining()) {
+				int n = ch.read(b, pos);
+				if (n < 0)
+					throw new EOFException("End of " + file);
+				pos += n;
+			}
+		}
+
+		byte[] payload(Location loc) throws IOException {
+			ByteBuffer b = ByteBuffer.allocate(loc.length - sRecordHeader);
+			read(b, loc.offset + sRecordHeader);
+			return b.array();
+		}
+
+		/**
+		 * write the footer (the list of records)
+		 * 
+		 * @throws IOException
+		 */
+		void seal() throws IOException {
+			if (sealed)
+				return;
+
+			ByteBuffer b = ByteBuffer.allocate(entries.size() * sEntrySize + sTrailerSize);
+			for (Entry e : entries) {
+				b.put(e.op);
+				b.putLong(e.spaceId);
+				b.putLong(e.id);
+				b.putLong(e.offset);
+				b.putInt(e.length);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(b.array(), 0, b.position());
+			b.putLong(size);
+			b.putInt(entries.size());
+			b.putInt((int) crc.getValue());
+			b.putLong(sMagic);
+			b.flip();
+
+			long pos = size;
+			FileChannel ch = channel();
+			while (b.hasRemaining())
+				pos += ch.write(b, pos);
+			ch.truncate(pos);
+			ch.force(false);
+
+			sealed = true;
+			entries = null;
+		}
+
+		/**
+		 * continue writing a sealed segment: drop the footer
+		 */
+		void unseal(List<Entry> entries) throws IOException {
+			channel().truncate(size);
+			this.entries = new ArrayList<Entry>(entries);
+			sealed = false;
+		}
+
+		/**
+		 * @return the records of a sealed segment, null if the segment has
+		 *         no (valid) footer
+		 * @throws IOException
+		 */
+		List<Entry> readFooter() throws IOException {
+			long len = channel().size();
+			if (len < sTrailerSize)
+				return null;
+
+			ByteBuffer t = ByteBuffer.allocate(sTrailerSize);
+			read(t, len - sTrailerSize);
+			t.flip();
+			long start = t.getLong();
+			int count = t.getInt();
+			int crc = t.getInt();
+			if (t.getLong() != sMagic || count < 0 || start < 0
+					|| start + (long) count * sEntrySize + sTrailerSize != len)
+				return null;
+
+			ByteBuffer b = ByteBuffer.allocate(count * sEntrySize);
+			read(b, start);
+			CRC32 c = new CRC32();
+			c.update(b.array());
+			if ((int) c.getValue() != crc)
+				return null;
+
+			b.flip();
+			List<Entry> rtn = new ArrayList<Entry>(count);
+			for (int i = 0; i < count; i++)
+				rtn.add(new Entry(b.get(), b.getLong(), b.getLong(), b.getLong(), b.getInt()));
+
+			size = start;
+			sealed = true;
+			return rtn;
+		}
+
+		/**
+		 * read the records of a segment without a footer, cutting it at the
+		 * first damaged record
+		 * 
+		 * @return
+		 * @throws IOException
+		 */
+		List<Entry> scan() throws IOException {
+			FileChannel ch = channel();
+			long len = ch.size();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch.position(0)),
+					65536));
+
+			List<Entry> rtn = new ArrayList<Entry>();
+			long pos = 0;
+			CRC32 crc = new CRC32();
+			while (pos + sRecordHeader <= len) {
+				int n = in.readInt();
+				int sum = in.readInt();
+				if (n < sRecordHeader - 8 || pos + 8 + n > len)
+					break;
+
+				byte[] body = new byte[n];
+				in.readFully(body);
+				crc.reset();
+				crc.update(body);
+				if ((int) crc.getValue() != sum)
+					break;
+
+				ByteBuffer b = ByteBuffer.wrap(body);
+				rtn.add(new Entry(b.get(), b.getLong(), b.getLong(), pos, 8 + n));
+				pos += 8 + n;
+			}
+
+			if (pos < len) {
+				logger.warn(file + " is damaged after " + rtn.size() + " records, the rest is dropped");
+				ch.truncate(pos);
+			}
+
+			size = pos;
+			return rtn;
+		}
+
+		synchronized void close() {
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * compacts the sealed segments that are mostly dead
+	 */
+	private class Compactor extends Thread {
+		public Compactor() {
+			super("storage-compactor");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(sCompactMsec);
+					compact();
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					logger.error("compaction failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * compact the sealed segments that are mostly dead
+	 * 
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		for (Map.Entry<Integer, Segment> e : segments.entrySet()) {
+			Segment seg = e.getValue();
+			boolean dead;
+			synchronized (this) {
+				dead = seg != active && seg.sealed && seg.live < seg.size * sCompactBelow;
+			}
+			if (dead)
+				compact(seg);
+		}
+	}
+}
@@ -29,6 +29,11 @@ public class NoOpStorage implements Storage {
 		return true;
 	}
 
+	@Override
+	public boolean addDocuments(String namespace, List<Document> docs) {
+		return true;
+	}
+
 	@Override
 	public boolean removeDocument(String namespace, long docId) {
 		// TODO Auto-generated method stub
@@ -37,6 +37,15 @@ public interface Storage {
 
 	boolean addDocument(String namespace, Document doc);
 
+	/**
+	 * add several documents at once, all or none
+	 * 
+	 * @param namespace
+	 * @param docs
+	 * @return
+	 */
+	boolean addDocuments(String namespace, List<Document> docs);
+
 	boolean removeDocument(String namespace, long docId);
 
 	boolean updateDocument(String namespace, Document doc);
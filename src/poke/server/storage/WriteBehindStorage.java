@@ -0,0 +1,875 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eye.Comm.Document;
+import eye.Comm.NameSpace;
+
+/**
+ * A storage in front of another (e.g., InMemoryStorage or DatabaseStorage)
+ * that acknowledges a change once it is in an append-only log, and applies
+ * the changes to the other storage behind the caller's back.
+ * <p>
+ * Writers append a record to the log and wait for it to be on disk. Writers
+ * that arrive while the log is being forced wait for the next force, which
+ * covers all of them (group commit): the cost of a force is shared by the
+ * writers of the moment. Records are applied only once forced; if the force
+ * fails, the log is cut back to its last forced record and the writers of
+ * the records after it are refused. If a durability window (storage.log.window.msec) is
+ * set, writers do not wait at all and the log is forced at least that often,
+ * so a power failure can lose up to the window of acknowledged changes (a
+ * process failure loses nothing).
+ * <p>
+ * A thread applies the records to the storage in order, consecutive adds to a
+ * namespace as one addDocuments(). Reads wait until the changes acknowledged
+ * before them are applied, so a caller sees its own writes. Since adds,
+ * updates and removes are acknowledged before they are applied, they answer
+ * true; failures of the storage are logged. Namespace changes wait to be
+ * applied, they return the storage's answer.
+ * <p>
+ * A change the storage does not take is retried if the storage is
+ * unavailable (it answers findNameSpaces with null, or throws), with a
+ * growing delay, and nothing after it is applied meanwhile. While the storage
+ * is unavailable, changes are refused and reads do not wait for it. A change
+ * refused by a storage that is available (e.g., the removal of a document it
+ * does not have) is logged and passed over.
+ * <p>
+ * On init the log is replayed into the storage (applying a record twice is
+ * harmless: documents carry their id in the log); the records the storage
+ * is unavailable for are left to the applier. A storage that keeps its data
+ * (storage.log.checkpoint) lets the log be emptied once all its records are
+ * applied; otherwise the log is the storage's only copy and is kept.
+ * 
+ * @author gash
+ * 
+ */
+public class WriteBehindStorage implements Storage {
+	protected static Logger logger = LoggerFactory.getLogger(WriteBehindStorage.class);
+
+	public static final String sBacking = "storage.backing";
+	public static final String sLog = "storage.log";
+	public static final String sWindow = "storage.log.window.msec";
+	public static final String sCheckpoint = "storage.log.checkpoint";
+
+	// records applied to the storage at a time
+	static final int sBatch = 500;
+
+	// a log of a storage that keeps its data is emptied past this size
+	static final long sCheckpointSize = 16 * 1024 * 1024;
+
+	// delay before a change is retried on an unavailable storage, doubled up
+	// to sMaxRetryMsec
+	static final int sRetryMsec = 500;
+	static final int sMaxRetryMsec = 30000;
+
+	static final byte sAdd = 1;
+	static final byte sUpdate = 2;
+	static final byte sRemove = 3;
+	static final byte sCreateSpace = 4;
+	static final byte sRemoveSpace = 5;
+
+	private Storage backing;
+	private File logFile;
+	private FileChannel log;
+	private int window;
+	private boolean checkpoint;
+
+	private LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+	private Applier applier;
+	private Syncer syncer;
+
+	// records appended, forced to disk, and applied to the storage
+	private final Object appendLock = new Object();
+	private volatile long appended;
+
+	// records appended and not yet forced, and where the last forced record
+	// ends (without a durability window)
+	private ArrayDeque<Record> pending = new ArrayDeque<Record>();
+	private long syncedEnd;
+	private final Object syncLock = new Object();
+	private long synced;
+	private boolean syncing;
+	private final Object applyLock = new Object();
+	private long applied;
+
+	// the storage is unavailable, the applier is retrying
+	private volatile boolean stalled;
+
+	/**
+	 * the storage is named by storage.backing (InMemoryStorage if not)
+	 */
+	public WriteBehindStorage() {
+	}
+
+	public WriteBehindStorage(Storage backing) {
+		this.backing = backing;
+	}
+
+	@Override
+	public void init(Properties cfg) {
+		if (log != null)
+			return;
+
+		if (cfg == null)
+			cfg = new Properties();
+
+		try {
+			if (backing == null)
+				backing = (Storage) Class.forName(cfg.getProperty(sBacking, InMemoryStorage.class.getName()))
+						.newInstance();
+			backing.init(cfg);
+
+			window = Integer.parseInt(cfg.getProperty(sWindow, "0"));
+			checkpoint = Boolean.parseBoolean(cfg.getProperty(sCheckpoint, "false"));
+			logFile = new File(cfg.getProperty(sLog, "storage.log"));
+			log = openLog(logFile);
+			replay();
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to initialize the write-behind storage (log " + logFile + ")", e);
+		}
+
+		applier = new Applier();
+		applier.start();
+		if (window > 0) {
+			syncer = new Syncer();
+			syncer.start();
+		}
+	}
+
+	@Override
+	public void release() {
+		if (log == null)
+			return;
+
+		awaitApplied(appended);
+		applier.interrupt();
+		if (syncer != null)
+			syncer.interrupt();
+
+		try {
+			log.force(false);
+			log.close();
+		} catch (IOException e) {
+			logger.warn("Unable to close " + logFile, e);
+		}
+		log = null;
+
+		backing.release();
+	}
+
+	public Storage getBacking() {
+		return backing;
+	}
+
+	@Override
+	public NameSpace getNameSpaceInfo(long spaceId) {
+		awaitApplied(appended);
+		return backing.getNameSpaceInfo(spaceId);
+	}
+
+	@Override
+	public List<NameSpace> findNameSpaces(NameSpace criteria) {
+		awaitApplied(appended);
+		return backing.findNameSpaces(criteria);
+	}
+
+	@Override
+	public NameSpace createNameSpace(NameSpace space) {
+		if (space == null)
+			return null;
+
+		// the id is logged so a replay creates the same namespace
+		if (!space.hasId())
+			space = NameSpace.newBuilder(space).setId(KeyGenerator.getInstance().next()).build();
+
+		Record r = append(new Record(sCreateSpace, null, null, space, 0));
+		if (r == null)
+			return null;
+
+		awaitApplied(r.seq, true);
+		return (NameSpace) r.result;
+	}
+
+	@Override
+	public boolean removeNameSpace(long spaceId) {
+		Record r = append(new Record(sRemoveSpace, null, null, null, spaceId));
+		if (r == null)
+			return false;
+
+		awaitApplied(r.seq, true);
+		return Boolean.TRUE.equals(r.result);
+	}
+
+	@Override
+	public boolean addDocument(String namespace, Document doc) {
+		if (doc == null)
+			return false;
+
+		return append(new Record(sAdd, namespace, withId(doc), null, 0)) != null;
+	}
+
+	@Override
+	public boolean addDocuments(String namespace, List<Document> docs) {
+		if (docs == null || docs.contains(null))
+			return false;
+
+		List<Record> records = new ArrayList<Record>(docs.size());
+		for (Document doc : docs)
+			records.add(new Record(sAdd, namespace, withId(doc), null, 0));
+		return append(records);
+	}
+
+	@Override
+	public boolean removeDocument(String namespace, long docId) {
+		return append(new Record(sRemove, namespace, null, null, docId)) != null;
+	}
+
+	@Override
+	public boolean updateDocument(String namespace, Document doc) {
+		if (doc == null || !doc.hasId())
+			return false;
+
+		return append(new Record(sUpdate, namespace, doc, null, 0)) != null;
+	}
+
+	@Override
+	public List<Document> findDocuments(String namespace, Document criteria) {
+		awaitApplied(appended);
+		return backing.findDocuments(namespace, criteria);
+	}
+
+	private static Document withId(Document doc) {
+		if (doc.hasId())
+			return doc;
+		return Document.newBuilder(doc).setId(KeyGenerator.getInstance().next()).build();
+	}
+
+	/**
+	 * open the log (a test fails its forces)
+	 */
+	FileChannel openLog(File f) throws IOException {
+		return new RandomAccessFile(f, "rw").getChannel();
+	}
+
+	private Record append(Record r) {
+		List<Record> records = new ArrayList<Record>(1);
+		records.add(r);
+		return append(records) ? r : null;
+	}
+
+	/**
+	 * write records to the log and wait until they are on disk (unless there
+	 * is a durability window)
+	 * 
+	 * @param records
+	 * @return false if they could not be written
+	 */
+	private boolean append(List<Record> records) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			for (Record r : records) {
+				r.encode(bytes);
+				r.end = bytes.size();
+			}
+		} catch (IOException e) {
+			// memory
+			throw new RuntimeException(e);
+		}
+
+		Record last = records.get(records.size() - 1);
+		synchronized (appendLock) {
+			if (stalled) {
+				logger.warn("Storage unavailable, " + records.size() + " changes refused");
+				return false;
+			}
+
+			long start;
+			try {
+				start = log.position();
+				ByteBuffer b = ByteBuffer.wrap(bytes.toByteArray());
+				while (b.hasRemaining())
+					log.write(b);
+			} catch (Exception e) {
+				logger.error("Unable to write " + records.size() + " records to " + logFile, e);
+				return false;
+			}
+
+			long seq = appended;
+			for (Record r : records) {
+				r.seq = ++seq;
+				r.end += start;
+				if (window > 0)
+					queue.add(r);
+				else
+					pending.add(r);
+			}
+			appended = seq;
+		}
+
+		if (window > 0)
+			return true;
+
+		try {
+			awaitSynced(last);
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to force " + logFile, e);
+			return false;
+		}
+	}
+
+	/**
+	 * the writers waiting for a force are covered by the next one
+	 * 
+	 * @param r
+	 *            The writer's last record
+	 * @throws IOException
+	 *             The record is not on disk (and is not applied)
+	 */
+	private void awaitSynced(Record r) throws IOException {
+		awaitSynced(r.seq, r);
+	}
+
+	/**
+	 * @param seq
+	 * @param r
+	 *            The record of seq, null if not a writer's
+	 * @throws IOException
+	 */
+	private void awaitSynced(long seq, Record r) throws IOException {
+		while (true) {
+			long upto;
+			synchronized (syncLock) {
+				while (syncing && synced < seq && (r == null || !r.lost)) {
+					try {
+						syncLock.wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted waiting for " + logFile);
+					}
+				}
+
+				if (r != null && r.lost)
+					throw new IOException("Unable to force " + logFile);
+				if (synced >= seq)
+					return;
+
+				syncing = true;
+				upto = appended;
+			}
+
+			boolean ok = false;
+			try {
+				log.force(false);
+				ok = true;
+			} finally {
+				if (window == 0)
+					forced(upto, ok);
+
+				synchronized (syncLock) {
+					syncing = false;
+					if (ok && upto > synced)
+						synced = upto;
+					syncLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * hand the records forced to the applier, or, if the force failed, drop
+	 * the records not forced and cut the log back to the last one forced
+	 * 
+	 * @param upto
+	 *            The last record the force covers
+	 * @param ok
+	 */
+	private void forced(long upto, boolean ok) {
+		synchronized (appendLock) {
+			if (ok) {
+				while (!pending.isEmpty() && pending.peek().seq <= upto) {
+					Record r = pending.poll();
+					syncedEnd = r.end;
+					queue.add(r);
+				}
+				return;
+			}
+
+			if (pending.isEmpty())
+				return;
+
+			for (Record r : pending)
+				r.lost = true;
+			appended = pending.peek().seq - 1;
+			pending.clear();
+
+			try {
+				log.truncate(syncedEnd);
+				log.position(syncedEnd);
+			} catch (IOException e) {
+				logger.error("Unable to cut " + logFile + " back to " + syncedEnd, e);
+			}
+		}
+
+		// readers may wait for the records dropped
+		synchronized (applyLock) {
+			applyLock.notifyAll();
+		}
+	}
+
+	private void awaitApplied(long seq) {
+		awaitApplied(seq, false);
+	}
+
+	/**
+	 * @param seq
+	 * @param stalled
+	 *            Wait even if the storage is unavailable (until it is back)
+	 */
+	private void awaitApplied(long seq, boolean stalled) {
+		synchronized (applyLock) {
+			while (applied < Math.min(seq, appended) && (stalled || !this.stalled)) {
+				try {
+					applyLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * apply records in order, consecutive adds to a namespace at once
+	 * 
+	 * @param records
+	 * @return the number of records applied, fewer than all if the storage
+	 *         is unavailable for the next
+	 */
+	private int apply(List<Record> records) {
+		int i = 0;
+		while (i < records.size()) {
+			Record r = records.get(i);
+			int j = i + 1;
+			if (r.op == sAdd) {
+				while (j < records.size() && records.get(j).op == sAdd && same(r.namespace, records.get(j).namespace))
+					j++;
+			}
+
+			if (j - i > 1) {
+				List<Document> docs = new ArrayList<Document>(j - i);
+				for (int k = i; k < j; k++)
+					docs.add(records.get(k).doc);
+
+				boolean done;
+				try {
+					done = backing.addDocuments(r.namespace, docs);
+				} catch (RuntimeException e) {
+					done = false;
+				}
+
+				// e.g., one was added before (a replay), one at a time
+				if (!done) {
+					for (int k = i; k < j; k++) {
+						if (!apply(records.get(k)))
+							return k;
+					}
+				}
+			} else if (!apply(r))
+				return i;
+
+			i = j;
+		}
+
+		return i;
+	}
+
+	/**
+	 * @param r
+	 * @return false if the storage did not take the change as it is
+	 *         unavailable
+	 */
+	private boolean apply(Record r) {
+		boolean ok;
+		String msg = null;
+		try {
+			switch (r.op) {
+			case sAdd:
+				// a replayed add of a document is an update
+				ok = backing.addDocument(r.namespace, r.doc) || backing.updateDocument(r.namespace, r.doc);
+				break;
+			case sUpdate:
+				ok = backing.updateDocument(r.namespace, r.doc);
+				break;
+			case sRemove:
+				ok = backing.removeDocument(r.namespace, r.id);
+				break;
+			case sCreateSpace:
+				r.result = backing.createNameSpace(r.space);
+				ok = (r.result != null);
+				break;
+			case sRemoveSpace:
+				r.result = backing.removeNameSpace(r.id);
+				ok = Boolean.TRUE.equals(r.result);
+				break;
+			default:
+				ok = true;
+			}
+		} catch (RuntimeException e) {
+			ok = false;
+			msg = e.getMessage();
+		}
+
+		if (ok)
+			return true;
+		else if (!isAvailable())
+			return false;
+
+		// e.g., the namespace exists (a replay) or does not
+		logger.warn("Unable to apply " + r + ((msg != null) ? ": " + msg : ""));
+		return true;
+	}
+
+	/**
+	 * whether the storage answers (a storage that cannot reach its data, as
+	 * DatabaseStorage, answers findNameSpaces with null)
+	 */
+	private boolean isAvailable() {
+		try {
+			return backing.findNameSpaces(null) != null;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	private void setStalled(boolean s) {
+		synchronized (applyLock) {
+			stalled = s;
+			applyLock.notifyAll();
+		}
+	}
+
+	private static boolean same(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+	/**
+	 * apply the records of the log, the first damaged record (a torn write)
+	 * ends the log. Once the storage is unavailable for a record, it and the
+	 * records after it are queued for the applier.
+	 * 
+	 * @throws IOException
+	 */
+	private void replay() throws IOException {
+		long start = System.currentTimeMillis();
+		long size = log.size();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log.position(0))));
+
+		long end = 0;
+		int n = 0;
+		List<Record> batch = new ArrayList<Record>();
+		while (true) {
+			Record r;
+			try {
+				r = Record.decode(in, size - end);
+			} catch (EOFException e) {
+				break;
+			}
+			if (r == null)
+				break;
+
+			end += r.size;
+			n++;
+			batch.add(r);
+			if (batch.size() == sBatch)
+				replay(batch);
+		}
+		replay(batch);
+
+		if (end < size) {
+			logger.warn(logFile + " is damaged after " + n + " records, the rest is dropped");
+			log.truncate(end);
+		}
+		log.position(end);
+		syncedEnd = end;
+
+		if (appended > 0) {
+			logger.warn("storage unavailable, " + appended + " of " + n + " records of " + logFile
+					+ " are left to apply");
+			stalled = true;
+		} else if (checkpoint && end > 0) {
+			log.truncate(0);
+			log.force(false);
+			syncedEnd = 0;
+		}
+
+		logger.info("replayed " + n + " records of " + logFile + " (" + (System.currentTimeMillis() - start) + " ms)");
+	}
+
+	/**
+	 * apply replayed records unless records wait for the applier already,
+	 * queue those not applied
+	 * 
+	 * @param batch
+	 *            Emptied
+	 */
+	private void replay(List<Record> batch) {
+		int done = (appended == 0) ? apply(batch) : 0;
+		for (int i = done; i < batch.size(); i++) {
+			Record r = batch.get(i);
+			r.seq = ++appended;
+			queue.add(r);
+		}
+		batch.clear();
+	}
+
+	/**
+	 * empty the log if its records are applied (and the storage keeps them)
+	 * 
+	 * @throws IOException
+	 */
+	private void checkpoint() throws IOException {
+		if (!checkpoint || log.size() < sCheckpointSize)
+			return;
+
+		synchronized (appendLock) {
+			synchronized (applyLock) {
+				if (applied < appended)
+					return;
+			}
+
+			log.truncate(0);
+			log.force(false);
+			syncedEnd = 0;
+		}
+	}
+
+	private class Applier extends Thread {
+		public Applier() {
+			super("write-behind");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			// the records to apply, those the storage was unavailable for
+			// are retried
+			List<Record> batch = new ArrayList<Record>(sBatch);
+			int retry = stalled ? sRetryMsec : 0;
+			while (true) {
+				try {
+					if (retry > 0)
+						Thread.sleep(retry);
+
+					if (batch.isEmpty()) {
+						Record r = queue.poll(1, TimeUnit.SECONDS);
+						if (r == null)
+							continue;
+
+						batch.add(r);
+						queue.drainTo(batch, sBatch - 1);
+					}
+
+					int done = apply(batch);
+					if (done > 0) {
+						synchronized (applyLock) {
+							applied = batch.get(done - 1).seq;
+							applyLock.notifyAll();
+						}
+						batch.subList(0, done).clear();
+					}
+
+					if (!batch.isEmpty()) {
+						if (!stalled) {
+							logger.warn("storage unavailable, changes are refused until " + batch.get(0)
+									+ " is applied");
+							setStalled(true);
+						}
+						retry = (retry == 0) ? sRetryMsec : Math.min(retry * 2, sMaxRetryMsec);
+						continue;
+					}
+
+					if (stalled) {
+						logger.info("storage available again");
+						setStalled(false);
+					}
+					retry = 0;
+
+					if (queue.isEmpty())
+						checkpoint();
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					logger.error("write-behind failed", e);
+					retry = (retry == 0) ? sRetryMsec : Math.min(retry * 2, sMaxRetryMsec);
+				}
+			}
+		}
+	}
+
+	/**
+	 * forces the log every window msec (writers do not wait)
+	 */
+	private class Syncer extends Thread {
+		public Syncer() {
+			super("write-behind-sync");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(window);
+					awaitSynced(appended, null);
+				} catch (InterruptedException e) {
+					break;
+				} catch (IOException e) {
+					logger.error("Unable to force " + logFile, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A change. In the log: length, CRC of the rest, op, namespace, then the
+	 * document, namespace or id.
+	 */
+	static class Record {
+		final byte op;
+		final String namespace;
+		final Document doc;
+		final NameSpace space;
+		final long id;
+		long seq;
+		int size;
+
+		// where the record ends in the log, and whether it was dropped as
+		// the log could not be forced
+		long end;
+		volatile boolean lost;
+
+		// the storage's answer (namespace changes)
+		volatile Object result;
+
+		Record(byte op, String namespace, Document doc, NameSpace space, long id) {
+			this.op = op;
+			this.namespace = namespace;
+			this.doc = doc;
+			this.space = space;
+			this.id = id;
+		}
+
+		void encode(ByteArrayOutputStream out) throws IOException {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			DataOutputStream d = new DataOutputStream(body);
+			d.writeByte(op);
+			d.writeBoolean(namespace != null);
+			if (namespace != null)
+				d.writeUTF(namespace);
+
+			byte[] msg = (doc != null) ? doc.toByteArray() : (space != null) ? space.toByteArray() : null;
+			if (msg != null) {
+				d.writeInt(msg.length);
+				d.write(msg);
+			} else
+				d.writeLong(id);
+			d.flush();
+
+			byte[] b = body.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(b);
+
+			DataOutputStream o = new DataOutputStream(out);
+			o.writeInt(b.length);
+			o.writeInt((int) crc.getValue());
+			o.write(b);
+			o.flush();
+		}
+
+		/**
+		 * @param in
+		 * @param remaining
+		 *            The bytes left in the log
+		 * @return null if the record is damaged
+		 * @throws EOFException
+		 *             At the end of the log
+		 */
+		static Record decode(DataInputStream in, long remaining) throws IOException {
+			int len = in.readInt();
+			int crc = in.readInt();
+			if (len <= 0 || len > remaining - 8)
+				return null;
+
+			byte[] b = new byte[len];
+			try {
+				in.readFully(b);
+			} catch (EOFException e) {
+				return null;
+			}
+
+			CRC32 c = new CRC32();
+			c.update(b);
+			if ((int) c.getValue() != crc)
+				return null;
+
+			DataInputStream d = new DataInputStream(new ByteArrayInputStream(b));
+			byte op = d.readByte();
+			String namespace = d.readBoolean() ? d.readUTF() : null;
+			Record r;
+			if (op == sAdd || op == sUpdate || op == sCreateSpace) {
+				byte[] msg = new byte[d.readInt()];
+				d.readFully(msg);
+				if (op == sCreateSpace)
+					r = new Record(op, namespace, null, NameSpace.parseFrom(msg), 0);
+				else
+					r = new Record(op, namespace, Document.parseFrom(msg), null, 0);
+			} else
+				r = new Record(op, namespace, null, null, d.readLong());
+
+			r.size = 8 + len;
+			return r;
+		}
+
+		@Override
+		public String toString() {
+			return "record " + seq + " (op " + op + ", namespace " + namespace + ", id "
+					+ ((doc != null) ? doc.getId() : (space != null) ? space.getId() : id) + ")";
+		}
+	}
+}
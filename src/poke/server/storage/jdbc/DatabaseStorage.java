@@ -16,13 +16,23 @@
 package poke.server.storage.jdbc;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import poke.server.storage.DocumentQuery;
+import poke.server.storage.KeyGenerator;
 import poke.server.storage.Storage;
 
 import com.jolbox.bonecp.BoneCP;
@@ -31,6 +41,22 @@ import com.jolbox.bonecp.BoneCPConfig;
 import eye.Comm.Document;
 import eye.Comm.NameSpace;
 
+/**
+ * A storage in a database (e.g., H2) through JDBC, with connections from a
+ * BoneCP pool.
+ * <p>
+ * The SQL of each operation is a constant (see SpaceMapper and
+ * DocumentMapper), so the pool's statement cache prepares a statement once per
+ * connection. Several documents added at once are inserted as JDBC batches in
+ * one transaction. Finds read the rows forward-only with a fetch size, a row
+ * at a time, and keep only the matching documents, so a large namespace is
+ * never held in memory whole.
+ * <p>
+ * The tables are created by init() if they do not exist.
+ * 
+ * @author gash
+ * 
+ */
 public class DatabaseStorage implements Storage {
 	protected static Logger logger = LoggerFactory.getLogger(DatabaseStorage.class);
 
@@ -39,9 +65,26 @@ public class DatabaseStorage implements Storage {
 	public static final String sUser = "jdbc.user";
 	public static final String sPass = "jdbc.password";
 
+	// prepared statements kept per connection
+	static final int sStatementCache = 32;
+
+	// rows per batch insert
+	static final int sBatchSize = 500;
+
+	// rows fetched at a time by finds
+	static final int sFetchSize = 256;
+
+	private static String sNoName = "";
+
 	protected Properties cfg;
 	protected BoneCP cpool;
 
+	private SpaceMapper spaces = new SpaceMapper();
+	private DocumentMapper documents = new DocumentMapper();
+
+	// namespace name to id
+	private ConcurrentHashMap<String, Long> spaceIds = new ConcurrentHashMap<String, Long>();
+
 	protected DatabaseStorage() {
 	}
 
@@ -65,10 +108,48 @@ public class DatabaseStorage implements Storage {
 			config.setMinConnectionsPerPartition(5);
 			config.setMaxConnectionsPerPartition(10);
 			config.setPartitionCount(1);
+			config.setStatementsCacheSize(sStatementCache);
+			config.setDefaultAutoCommit(false);
+			config.setDefaultTransactionIsolation("READ_COMMITTED");
 
 			cpool = new BoneCP(config);
+			createTables();
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.error("failed/exception on initializing storage " + cfg.getProperty(sUrl), e);
+			release();
+		}
+	}
+
+	/**
+	 * the tables, and the namespace of documents added without one
+	 * 
+	 * @throws SQLException
+	 */
+	private void createTables() throws SQLException {
+		Connection conn = null;
+		try {
+			conn = cpool.getConnection();
+			Statement stmt = conn.createStatement();
+			try {
+				stmt.execute(SpaceMapper.sCreate);
+				stmt.execute(DocumentMapper.sCreate);
+				stmt.execute(DocumentMapper.sCreateIndex);
+			} finally {
+				stmt.close();
+			}
+
+			if (spaceId(conn, sNoName) == null) {
+				NameSpace.Builder bldr = NameSpace.newBuilder();
+				bldr.setName(sNoName);
+				bldr.setOwner("none");
+				insert(conn, bldr.build());
+			}
+			conn.commit();
+		} catch (SQLException ex) {
+			rollback(conn);
+			throw ex;
+		} finally {
+			close(conn);
 		}
 	}
 
@@ -84,6 +165,7 @@ public class DatabaseStorage implements Storage {
 
 		cpool.shutdown();
 		cpool = null;
+		spaceIds.clear();
 	}
 
 	@Override
@@ -93,24 +175,21 @@ public class DatabaseStorage implements Storage {
 		Connection conn = null;
 		try {
 			conn = cpool.getConnection();
-			conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-			// TODO complete code to retrieve through JDBC/SQL
-			// select * from space where id = spaceId
-		} catch (Exception ex) {
-			ex.printStackTrace();
-			logger.error("failed/exception on looking up space " + spaceId, ex);
+			PreparedStatement ps = conn.prepareStatement(SpaceMapper.sSelectById);
 			try {
-				conn.rollback();
-			} catch (SQLException e) {
+				ps.setLong(1, spaceId);
+				List<NameSpace> list = decodeSpaces(ps);
+				if (!list.isEmpty())
+					space = list.get(0);
+			} finally {
+				ps.close();
 			}
+			conn.commit();
+		} catch (Exception ex) {
+			logger.error("failed/exception on looking up space " + spaceId, ex);
+			rollback(conn);
 		} finally {
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
+			close(conn);
 		}
 
 		return space;
@@ -123,23 +202,21 @@ public class DatabaseStorage implements Storage {
 		Connection conn = null;
 		try {
 			conn = cpool.getConnection();
-			conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-			// TODO complete code to search through JDBC/SQL
-		} catch (Exception ex) {
-			ex.printStackTrace();
-			logger.error("failed/exception on find", ex);
+			boolean byName = (criteria != null && criteria.hasName());
+			PreparedStatement ps = conn.prepareStatement(byName ? SpaceMapper.sSelectByName : SpaceMapper.sSelect);
 			try {
-				conn.rollback();
-			} catch (SQLException e) {
+				if (byName)
+					ps.setString(1, criteria.getName());
+				list = decodeSpaces(ps);
+			} finally {
+				ps.close();
 			}
+			conn.commit();
+		} catch (Exception ex) {
+			logger.error("failed/exception on find", ex);
+			rollback(conn);
 		} finally {
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
+			close(conn);
 		}
 
 		return list;
@@ -153,26 +230,16 @@ public class DatabaseStorage implements Storage {
 		Connection conn = null;
 		try {
 			conn = cpool.getConnection();
-			conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-			// TODO complete code to use JDBC
+			space = insert(conn, space);
+			conn.commit();
 		} catch (Exception ex) {
-			ex.printStackTrace();
 			logger.error("failed/exception on creating space " + space, ex);
-			try {
-				conn.rollback();
-			} catch (SQLException e) {
-			}
+			rollback(conn);
 
 			// indicate failure
 			return null;
 		} finally {
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
+			close(conn);
 		}
 
 		return space;
@@ -180,31 +247,287 @@ public class DatabaseStorage implements Storage {
 
 	@Override
 	public boolean removeNameSpace(long spaceId) {
-		// TODO Auto-generated method stub
-		return false;
+		boolean rtn = false;
+
+		Connection conn = null;
+		try {
+			conn = cpool.getConnection();
+			PreparedStatement ps = conn.prepareStatement(DocumentMapper.sDeleteSpace);
+			try {
+				ps.setLong(1, spaceId);
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+
+			ps = conn.prepareStatement(SpaceMapper.sDelete);
+			try {
+				ps.setLong(1, spaceId);
+				rtn = (ps.executeUpdate() > 0);
+			} finally {
+				ps.close();
+			}
+			conn.commit();
+		} catch (Exception ex) {
+			logger.error("failed/exception on removing space " + spaceId, ex);
+			rollback(conn);
+			rtn = false;
+		} finally {
+			close(conn);
+		}
+
+		for (Iterator<Map.Entry<String, Long>> it = spaceIds.entrySet().iterator(); it.hasNext();) {
+			if (it.next().getValue() == spaceId)
+				it.remove();
+		}
+
+		return rtn;
 	}
 
 	@Override
 	public boolean addDocument(String namespace, Document doc) {
-		// TODO Auto-generated method stub
-		return false;
+		if (doc == null)
+			return false;
+
+		return addDocuments(namespace, Collections.singletonList(doc));
+	}
+
+	@Override
+	public boolean addDocuments(String namespace, List<Document> docs) {
+		if (docs == null || docs.contains(null))
+			return false;
+
+		Connection conn = null;
+		try {
+			conn = cpool.getConnection();
+			Long spaceId = spaceId(conn, (namespace == null) ? sNoName : namespace);
+			if (spaceId == null) {
+				logger.warn("Unknown namespace: " + namespace);
+				return false;
+			}
+
+			PreparedStatement ps = conn.prepareStatement(DocumentMapper.sInsert);
+			try {
+				int n = 0;
+				for (Document doc : docs) {
+					if (!doc.hasId())
+						doc = Document.newBuilder(doc).setId(KeyGenerator.getInstance().next()).build();
+
+					documents.encode(spaceId, doc, ps);
+					ps.addBatch();
+					if (++n % sBatchSize == 0)
+						ps.executeBatch();
+				}
+				if (n % sBatchSize != 0)
+					ps.executeBatch();
+			} finally {
+				ps.close();
+			}
+
+			touch(conn, spaceId);
+			conn.commit();
+			return true;
+		} catch (Exception ex) {
+			logger.error("failed/exception on adding " + docs.size() + " documents to " + namespace, ex);
+			rollback(conn);
+			return false;
+		} finally {
+			close(conn);
+		}
 	}
 
 	@Override
 	public boolean removeDocument(String namespace, long docId) {
-		// TODO Auto-generated method stub
-		return false;
+		Connection conn = null;
+		try {
+			conn = cpool.getConnection();
+			Long spaceId = spaceId(conn, (namespace == null) ? sNoName : namespace);
+			if (spaceId == null)
+				return false;
+
+			boolean rtn;
+			PreparedStatement ps = conn.prepareStatement(DocumentMapper.sDelete);
+			try {
+				ps.setLong(1, spaceId);
+				ps.setLong(2, docId);
+				rtn = (ps.executeUpdate() > 0);
+			} finally {
+				ps.close();
+			}
+
+			if (rtn)
+				touch(conn, spaceId);
+			conn.commit();
+			return rtn;
+		} catch (Exception ex) {
+			logger.error("failed/exception on removing document " + docId + " from " + namespace, ex);
+			rollback(conn);
+			return false;
+		} finally {
+			close(conn);
+		}
 	}
 
 	@Override
 	public boolean updateDocument(String namespace, Document doc) {
-		// TODO Auto-generated method stub
-		return false;
+		if (doc == null || !doc.hasId())
+			return false;
+
+		Connection conn = null;
+		try {
+			conn = cpool.getConnection();
+			Long spaceId = spaceId(conn, (namespace == null) ? sNoName : namespace);
+			if (spaceId == null)
+				return false;
+
+			boolean rtn;
+			PreparedStatement ps = conn.prepareStatement(DocumentMapper.sUpdate);
+			try {
+				documents.encodeUpdate(spaceId, doc, ps);
+				rtn = (ps.executeUpdate() > 0);
+			} finally {
+				ps.close();
+			}
+
+			if (rtn)
+				touch(conn, spaceId);
+			conn.commit();
+			return rtn;
+		} catch (Exception ex) {
+			logger.error("failed/exception on updating document " + doc.getId() + " of " + namespace, ex);
+			rollback(conn);
+			return false;
+		} finally {
+			close(conn);
+		}
 	}
 
 	@Override
 	public List<Document> findDocuments(String namespace, Document criteria) {
-		// TODO Auto-generated method stub
-		return null;
+		List<Document> list = null;
+
+		Connection conn = null;
+		try {
+			conn = cpool.getConnection();
+			Long spaceId = spaceId(conn, (namespace == null) ? sNoName : namespace);
+			if (spaceId == null)
+				return null;
+
+			DocumentQuery q = DocumentQuery.parse(criteria);
+			List<Object> params = new ArrayList<Object>();
+			String sql = DocumentMapper.sSelect + documents.where(q, params);
+
+			PreparedStatement ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try {
+				ps.setFetchSize(sFetchSize);
+				ps.setLong(1, spaceId);
+				for (int i = 0; i < params.size(); i++)
+					ps.setObject(i + 2, params.get(i));
+
+				ResultSet rs = ps.executeQuery();
+				try {
+					list = documents.decode(rs, q.isEmpty() ? null : q);
+				} finally {
+					rs.close();
+				}
+			} finally {
+				ps.close();
+			}
+			conn.commit();
+		} catch (Exception ex) {
+			logger.error("failed/exception on finding documents of " + namespace, ex);
+			rollback(conn);
+		} finally {
+			close(conn);
+		}
+
+		return list;
+	}
+
+	private NameSpace insert(Connection conn, NameSpace space) throws SQLException {
+		NameSpace.Builder bldr = NameSpace.newBuilder(space);
+		if (!space.hasId())
+			bldr.setId(KeyGenerator.getInstance().next());
+		bldr.setCreated(System.currentTimeMillis());
+		bldr.setLastModified(bldr.getCreated());
+		space = bldr.build();
+
+		PreparedStatement ps = conn.prepareStatement(SpaceMapper.sInsert);
+		try {
+			spaces.encode(space, ps);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+
+		return space;
+	}
+
+	private List<NameSpace> decodeSpaces(PreparedStatement ps) throws SQLException {
+		ResultSet rs = ps.executeQuery();
+		try {
+			return spaces.decode(rs);
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * the id of a namespace, null if it does not exist
+	 */
+	private Long spaceId(Connection conn, String name) throws SQLException {
+		Long id = spaceIds.get(name);
+		if (id != null)
+			return id;
+
+		PreparedStatement ps = conn.prepareStatement(SpaceMapper.sSelectId);
+		try {
+			ps.setString(1, name);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (rs.next())
+					id = rs.getLong(1);
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+
+		if (id != null)
+			spaceIds.put(name, id);
+		return id;
+	}
+
+	private void touch(Connection conn, long spaceId) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(SpaceMapper.sTouch);
+		try {
+			ps.setLong(1, System.currentTimeMillis());
+			ps.setLong(2, spaceId);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static void rollback(Connection conn) {
+		if (conn == null)
+			return;
+
+		try {
+			conn.rollback();
+		} catch (SQLException e) {
+		}
+	}
+
+	private static void close(Connection conn) {
+		if (conn == null)
+			return;
+
+		try {
+			conn.close();
+		} catch (Exception e) {
+			logger.warn("Unable to close connection", e);
+		}
 	}
 }
@@ -15,16 +15,167 @@
  */
 package poke.server.storage.jdbc;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
+import poke.server.storage.DocumentQuery;
+import poke.server.storage.DocumentQuery.Condition;
+import poke.server.storage.DocumentQuery.Op;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
 import eye.Comm.Document;
 
+/**
+ * Maps documents to and from the document table. A document is kept whole
+ * (encoded) in the content column; the name and size are also columns so a
+ * query's conditions on them are answered by the database (see where()), the
+ * others are matched as the rows are read.
+ * 
+ * @author gash
+ * 
+ */
 public class DocumentMapper {
+	static final String sCreate = "create table if not exists document (id bigint not null, "
+			+ "space_id bigint not null, name varchar(1024), doc_size bigint, content binary, "
+			+ "primary key (space_id, id))";
+	static final String sCreateIndex = "create index if not exists document_name on document (space_id, name)";
+
+	static final String sInsert = "insert into document (id, space_id, name, doc_size, content) values (?, ?, ?, ?, ?)";
+	static final String sUpdate = "update document set name = ?, doc_size = ?, content = ? where space_id = ? and id = ?";
+	static final String sDelete = "delete from document where space_id = ? and id = ?";
+	static final String sDeleteSpace = "delete from document where space_id = ?";
+	static final String sSelect = "select content from document where space_id = ?";
+
+	List<Document> decode(ResultSet rs) throws SQLException {
+		return decode(rs, null);
+	}
+
+	/**
+	 * read the documents a row at a time, keeping those that match
+	 * 
+	 * @param rs
+	 * @param q
+	 *            null keeps all
+	 * @return
+	 * @throws SQLException
+	 */
+	List<Document> decode(ResultSet rs, DocumentQuery q) throws SQLException {
+		List<Document> list = new ArrayList<Document>();
+		while (rs.next()) {
+			try {
+				Document doc = Document.parseFrom(rs.getBytes(1));
+				if (q == null || q.matches(doc))
+					list.add(doc);
+			} catch (InvalidProtocolBufferException e) {
+				throw new SQLException("Unable to decode document", e);
+			}
+		}
+
+		return list;
+	}
+
+	/**
+	 * set the parameters of sInsert
+	 * 
+	 * @param spaceId
+	 * @param doc
+	 *            A document with an id
+	 * @param ps
+	 * @throws SQLException
+	 */
+	void encode(long spaceId, Document doc, PreparedStatement ps) throws SQLException {
+		ps.setLong(1, doc.getId());
+		ps.setLong(2, spaceId);
+		ps.setString(3, doc.hasDocName() ? doc.getDocName() : null);
+		ps.setLong(4, doc.getDocSize());
+		ps.setBytes(5, doc.toByteArray());
+	}
+
+	/**
+	 * set the parameters of sUpdate
+	 */
+	void encodeUpdate(long spaceId, Document doc, PreparedStatement ps) throws SQLException {
+		ps.setString(1, doc.hasDocName() ? doc.getDocName() : null);
+		ps.setLong(2, doc.getDocSize());
+		ps.setBytes(3, doc.toByteArray());
+		ps.setLong(4, spaceId);
+		ps.setLong(5, doc.getId());
+	}
 
-	List<Document> decode(ResultSet rs) {
-		// TODO not implemented
-		return null;
+	/**
+	 * the conditions of a query the database can answer, as a where clause to
+	 * append to sSelect. The database may return more rows than match (the
+	 * rest of the query is matched by decode()), never fewer.
+	 * 
+	 * @param q
+	 * @param params
+	 *            The values of the clause's parameters, in order
+	 * @return
+	 */
+	String where(DocumentQuery q, List<Object> params) {
+		StringBuilder sb = new StringBuilder();
+		for (Condition c : q.getConditions()) {
+			String column;
+			Object value;
+			if (c.getPath().equals("docName")) {
+				// names compare as numbers if both are, the database would
+				// not, so only equals and prefix of text are left to it
+				if (!isText(c.getOperand()) || (c.getOp() != Op.Equals && c.getOp() != Op.Prefix))
+					continue;
+				column = "name";
+				value = c.getOperand();
+			} else if (c.getPath().equals("id") || c.getPath().equals("docSize")) {
+				column = c.getPath().equals("id") ? "id" : "doc_size";
+				try {
+					value = Long.valueOf(c.getOperand());
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			} else
+				continue;
+
+			switch (c.getOp()) {
+			case Equals:
+				sb.append(" and ").append(column).append(" = ?");
+				break;
+			case Less:
+				sb.append(" and ").append(column).append(" < ?");
+				break;
+			case LessOrEqual:
+				sb.append(" and ").append(column).append(" <= ?");
+				break;
+			case Greater:
+				sb.append(" and ").append(column).append(" > ?");
+				break;
+			case GreaterOrEqual:
+				sb.append(" and ").append(column).append(" >= ?");
+				break;
+			case Prefix:
+				if (!(value instanceof String))
+					continue;
+				sb.append(" and ").append(column).append(" like ? escape '\\'");
+				value = ((String) value).replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+				break;
+			default:
+				// not-equals is also met by documents without the value
+				continue;
+			}
+
+			params.add(value);
+		}
+
+		return sb.toString();
 	}
 
+	private static boolean isText(String s) {
+		if (s.length() == 0)
+			return false;
+
+		char c = s.charAt(0);
+		return (c < '0' || c > '9') && c != '-' && c != '+' && c != '.';
+	}
 }
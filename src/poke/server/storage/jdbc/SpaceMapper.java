@@ -15,16 +15,60 @@
  */
 package poke.server.storage.jdbc;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
 import eye.Comm.NameSpace;
 
+/**
+ * Maps namespaces to and from the space table.
+ * 
+ * @author gash
+ * 
+ */
 public class SpaceMapper {
+	static final String sCreate = "create table if not exists space (id bigint primary key, "
+			+ "name varchar(256) not null unique, description varchar(1024), created bigint, "
+			+ "last_modified bigint, owner varchar(256))";
 
-	List<NameSpace> decode(ResultSet rs) {
-		// TODO not implemented
-		return null;
+	static final String sColumns = "id, name, description, created, last_modified, owner";
+	static final String sInsert = "insert into space (" + sColumns + ") values (?, ?, ?, ?, ?, ?)";
+	static final String sSelect = "select " + sColumns + " from space";
+	static final String sSelectById = sSelect + " where id = ?";
+	static final String sSelectByName = sSelect + " where name = ?";
+	static final String sSelectId = "select id from space where name = ?";
+	static final String sDelete = "delete from space where id = ?";
+	static final String sTouch = "update space set last_modified = ? where id = ?";
+
+	List<NameSpace> decode(ResultSet rs) throws SQLException {
+		List<NameSpace> list = new ArrayList<NameSpace>();
+		while (rs.next()) {
+			NameSpace.Builder bldr = NameSpace.newBuilder();
+			bldr.setId(rs.getLong(1));
+			bldr.setName(rs.getString(2));
+			String desc = rs.getString(3);
+			if (desc != null)
+				bldr.setDesc(desc);
+			bldr.setCreated(rs.getLong(4));
+			bldr.setLastModified(rs.getLong(5));
+			String owner = rs.getString(6);
+			if (owner != null)
+				bldr.setOwner(owner);
+			list.add(bldr.build());
+		}
+
+		return list;
 	}
 
+	void encode(NameSpace space, PreparedStatement ps) throws SQLException {
+		ps.setLong(1, space.getId());
+		ps.setString(2, space.getName());
+		ps.setString(3, space.hasDesc() ? space.getDesc() : null);
+		ps.setLong(4, space.getCreated());
+		ps.setLong(5, space.getLastModified());
+		ps.setString(6, space.hasOwner() ? space.getOwner() : null);
+	}
 }
@@ -0,0 +1,159 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.resources;
+
+import java.beans.Beans;
+import java.util.concurrent.CountDownLatch;
+
+import poke.server.conf.ServerConf.ResourceConf;
+import eye.Comm.Finger;
+import eye.Comm.Header;
+import eye.Comm.Payload;
+import eye.Comm.PayloadReply;
+import eye.Comm.Request;
+import eye.Comm.Response;
+
+/**
+ * Microbenchmark of the resource strategies: the cost of obtaining a resource
+ * and processing a request, with several threads calling at once. The
+ * baseline is the factory's original instance-per-request through
+ * Beans.instantiate().
+ * <p>
+ * Not a unit test (run it directly):
+ * 
+ * <pre>
+ * java -cp classes:lib/* poke.server.resources.ResourceStrategyBenchmark [threads] [requests]
+ * </pre>
+ * 
+ * @author gash
+ * 
+ */
+public class ResourceStrategyBenchmark {
+	static final int sWarmup = 3;
+	static final int sRuns = 5;
+
+	public static void main(String[] args) throws Exception {
+		int threads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int requests = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+
+		Request req = buildRequest();
+		System.out.println("threads: " + threads + ", requests per thread: " + requests);
+
+		run("beans", new BeansInstantiate(), req, threads, requests);
+		for (ResourceStrategy.Type t : ResourceStrategy.Type.values()) {
+			ResourceConf rc = new ResourceConf(Header.Routing.FINGER_VALUE, "bench", EchoResource.class.getName());
+			rc.setStrategy(t.name());
+			rc.setPoolSize(threads);
+			run(t.name(), ResourceStrategy.create(rc), req, threads, requests);
+		}
+	}
+
+	private static void run(String name, final Resource rsc, final Request req, int threads, final int requests)
+			throws Exception {
+		for (int n = 0; n < sWarmup; n++)
+			measure(rsc, req, threads, requests / 10);
+
+		long best = Long.MAX_VALUE;
+		for (int n = 0; n < sRuns; n++)
+			best = Math.min(best, measure(rsc, req, threads, requests));
+
+		System.out.printf("%-10s %8.1f ns/request%n", name, (double) best / requests);
+	}
+
+	/**
+	 * @return the elapsed time (ns) of the slowest thread
+	 */
+	private static long measure(final Resource rsc, final Request req, int threads, final int requests)
+			throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			Thread th = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int n = 0; n < requests; n++) {
+							if (rsc.process(req) == null)
+								throw new RuntimeException("no reply");
+						}
+					} catch (InterruptedException e) {
+						// done
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			th.start();
+		}
+
+		long st = System.nanoTime();
+		start.countDown();
+		done.await();
+		return System.nanoTime() - st;
+	}
+
+	private static Request buildRequest() {
+		Finger.Builder f = Finger.newBuilder();
+		f.setTag("bench");
+		f.setNumber(1);
+
+		Payload.Builder p = Payload.newBuilder();
+		p.setFinger(f.build());
+
+		Header.Builder h = Header.newBuilder();
+		h.setOriginator("bench");
+		h.setTag("bench");
+		h.setTime(System.currentTimeMillis());
+		h.setRoutingId(Header.Routing.FINGER);
+
+		Request.Builder r = Request.newBuilder();
+		r.setHeader(h.build());
+		r.setBody(p.build());
+		return r.build();
+	}
+
+	/**
+	 * a resource that does as little as possible so the strategy dominates
+	 */
+	public static class EchoResource implements Resource {
+		private static final Response sReply = Response.newBuilder()
+				.setHeader(Header.newBuilder().setRoutingId(Header.Routing.FINGER).setOriginator("bench"))
+				.setBody(PayloadReply.newBuilder()).build();
+
+		public EchoResource() {
+		}
+
+		@Override
+		public Response process(Request request) {
+			return sReply;
+		}
+	}
+
+	private static class BeansInstantiate implements Resource {
+		@Override
+		public Response process(Request request) {
+			try {
+				Resource rsc = (Resource) Beans.instantiate(getClass().getClassLoader(),
+						EchoResource.class.getName());
+				return rsc.process(request);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * copyright 2013, gash
+ *
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HashRingTest {
+	static final int sKeys = 100000;
+
+	@Test
+	public void testAddNode() throws Exception {
+		HashRing four = new HashRing(Arrays.asList("a", "b", "c", "d"), 64);
+		HashRing five = new HashRing(Arrays.asList("a", "b", "c", "d", "e"), 64);
+
+		int moved = 0;
+		for (int i = 0; i < sKeys; i++) {
+			String key = "doc-" + i;
+			String was = four.owner(key);
+			String is = five.owner(key);
+			if (!was.equals(is)) {
+				// only to the new node
+				assertEquals("e", is);
+				moved++;
+			}
+		}
+
+		// about 1/5 of them
+		assertTrue("moved " + moved, moved > sKeys / 10 && moved < sKeys * 3 / 10);
+	}
+
+	@Test
+	public void testRemoveNode() throws Exception {
+		HashRing four = new HashRing(Arrays.asList("a", "b", "c", "d"), 64);
+		HashRing three = new HashRing(Arrays.asList("a", "b", "d"), 64);
+
+		int moved = 0;
+		for (int i = 0; i < sKeys; i++) {
+			String key = "doc-" + i;
+			String was = four.owner(key);
+			String is = three.owner(key);
+			if (was.equals("c"))
+				moved++;
+			else
+				// only the removed node's keys move
+				assertEquals(was, is);
+		}
+
+		assertTrue("moved " + moved, moved > sKeys / 8 && moved < sKeys * 3 / 8);
+	}
+
+	@Test
+	public void testOwners() throws Exception {
+		HashRing ring = new HashRing(Arrays.asList("a", "b", "c", "d"), 64);
+		for (int i = 0; i < 1000; i++) {
+			String key = "doc-" + i;
+			List<String> owners = ring.owners(key, 3);
+			assertEquals(3, owners.size());
+			assertEquals(3, new HashSet<String>(owners).size());
+			assertEquals(ring.owner(key), owners.get(0));
+
+			// no more than there are nodes
+			assertEquals(4, ring.owners(key, 10).size());
+		}
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		HashRing ring = new HashRing(Arrays.<String> asList(), 64);
+		assertTrue(ring.isEmpty());
+		assertNull(ring.owner("doc"));
+		assertTrue(ring.owners("doc", 2).isEmpty());
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * copyright 2013, gash
+ *
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import poke.server.conf.ServerConf;
+import eye.Comm.Document;
+import eye.Comm.Header;
+import eye.Comm.Payload;
+import eye.Comm.Request;
+
+public class PartitionerTest {
+	@Test
+	public void testAddress() throws Exception {
+		ServerConf cfg = new ServerConf();
+		cfg.addGeneral("node.id", "a");
+		cfg.addGeneral("port", "5570");
+		cfg.addGeneral(Partitioner.sNodes, "a,b,c");
+		Partitioner p = new Partitioner(cfg, new File("."));
+
+		String mine = null, other = null;
+		for (int i = 0; mine == null || other == null; i++) {
+			String key = "doc-" + i;
+			if (p.isOwner(key))
+				mine = key;
+			else
+				other = key;
+		}
+
+		// a document of another server is addressed to its owner
+		Request req = p.address(request(Header.Routing.DOCADD, other));
+		assertTrue(req.getHeader().hasToNode());
+		assertEquals(p.owners(other).get(0), req.getHeader().getToNode());
+
+		// this server's documents are not
+		assertFalse(p.address(request(Header.Routing.DOCADD, mine)).getHeader().hasToNode());
+		assertFalse(p.address(request(Header.Routing.DOCFIND, mine)).getHeader().hasToNode());
+
+		// a manifest query (no document name) is about this server
+		assertFalse(p.address(request(Header.Routing.DOCFIND, null)).getHeader().hasToNode());
+
+		// an addressed request is left alone
+		Request.Builder bldr = Request.newBuilder(request(Header.Routing.DOCADD, other));
+		bldr.getHeaderBuilder().setToNode("a");
+		assertEquals("a", p.address(bldr.build()).getHeader().getToNode());
+	}
+
+	private static Request request(Header.Routing routing, String docName) {
+		Request.Builder r = Request.newBuilder();
+		r.setHeader(Header.newBuilder().setRoutingId(routing).setOriginator("client"));
+
+		Payload.Builder body = Payload.newBuilder();
+		Document.Builder doc = Document.newBuilder();
+		if (docName != null)
+			doc.setDocName(docName);
+		body.setDoc(doc);
+		r.setBody(body);
+		return r.build();
+	}
+}
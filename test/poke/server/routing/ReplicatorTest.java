@@ -0,0 +1,169 @@
+/*
+ * copyright 2013, gash
+ *
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import poke.resources.Manifest;
+import poke.server.conf.ServerConf;
+import poke.server.queue.ChannelQueue;
+import eye.Comm.Document;
+import eye.Comm.Header;
+import eye.Comm.Header.ReplyStatus;
+import eye.Comm.Payload;
+import eye.Comm.PayloadReply;
+import eye.Comm.Request;
+import eye.Comm.Response;
+
+public class ReplicatorTest {
+	private File dir;
+	private Replicator replicator;
+	private List<Response> replies = new ArrayList<Response>();
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("replicator", "");
+		dir.delete();
+		dir.mkdirs();
+
+		ServerConf cfg = new ServerConf();
+		cfg.addGeneral("node.id", "a");
+		cfg.addGeneral("port", "5570");
+		cfg.addGeneral(Partitioner.sNodes, "a,b,c");
+		cfg.addGeneral(Partitioner.sReplicas, "3");
+		replicator = new Replicator(cfg, new Partitioner(cfg, dir), dir);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		replicator.release();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testWriteQuorum() throws Exception {
+		assertEquals(2, replicator.getWrite());
+
+		Replicator.Quorum q = replicator.new Quorum(request(), origin(), "doc", replicator.getWrite(), false);
+		q.expect(2);
+		q.local(reply(ReplyStatus.SUCCESS, 0));
+		assertTrue(replies.isEmpty());
+
+		q.from("b").enqueueResponse(reply(ReplyStatus.SUCCESS, 0));
+		assertEquals(1, replies.size());
+		assertEquals(ReplyStatus.SUCCESS, replies.get(0).getHeader().getReplyCode());
+
+		// a failure after the quorum is not answered again, the owner is
+		// hinted
+		q.from("c").enqueueResponse(reply(ReplyStatus.FAILURE, 0));
+		assertEquals(1, replies.size());
+		assertEquals(1, replicator.getHints());
+	}
+
+	@Test
+	public void testWriteQuorumUnreachable() throws Exception {
+		Replicator.Quorum q = replicator.new Quorum(request(), origin(), "doc", replicator.getWrite(), false);
+		q.down("b");
+		q.down("c");
+		q.expect(0);
+		q.local(reply(ReplyStatus.SUCCESS, 0));
+
+		assertEquals(1, replies.size());
+		assertEquals(ReplyStatus.FAILURE, replies.get(0).getHeader().getReplyCode());
+		assertEquals(2, replicator.getHints());
+	}
+
+	@Test
+	public void testWriteQuorumFailed() throws Exception {
+		Replicator.Quorum q = replicator.new Quorum(request(), origin(), "doc", replicator.getWrite(), false);
+		q.expect(2);
+		q.local(reply(ReplyStatus.SUCCESS, 0));
+		q.from("b").enqueueResponse(reply(ReplyStatus.FAILURE, 0));
+		assertTrue(replies.isEmpty());
+
+		q.from("c").enqueueResponse(reply(ReplyStatus.FAILURE, 0));
+		assertEquals(1, replies.size());
+		assertEquals(ReplyStatus.FAILURE, replies.get(0).getHeader().getReplyCode());
+	}
+
+	@Test
+	public void testLateStaleOwnerHinted() throws Exception {
+		Replicator.Quorum q = replicator.new Quorum(request(), origin(), "doc", 1, true);
+		q.expect(2);
+		q.local(reply(ReplyStatus.SUCCESS, 200));
+		assertEquals(1, replies.size());
+		assertEquals(0, replicator.getHints());
+
+		// owners answering after the quorum, one with an older version
+		q.from("b").enqueueResponse(reply(ReplyStatus.SUCCESS, 200));
+		q.from("c").enqueueResponse(reply(ReplyStatus.SUCCESS, 100));
+		assertEquals(1, replies.size());
+		assertEquals(1, replicator.getHints());
+	}
+
+	private ChannelQueue origin() {
+		return new ChannelQueue() {
+			@Override
+			public void shutdown(boolean hard) {
+			}
+
+			@Override
+			public void enqueueRequest(Request req) {
+			}
+
+			@Override
+			public void enqueueResponse(Response reply) {
+				replies.add(reply);
+			}
+		};
+	}
+
+	private static Request request() {
+		Request.Builder r = Request.newBuilder();
+		r.setHeader(Header.newBuilder().setRoutingId(Header.Routing.DOCADD).setOriginator("client"));
+		r.setBody(Payload.newBuilder().setDoc(Document.newBuilder().setDocName("doc")));
+		return r.build();
+	}
+
+	/**
+	 * @param mtime
+	 *            The version of the document found, 0 for none
+	 */
+	private static Response reply(ReplyStatus status, long mtime) {
+		PayloadReply.Builder body = PayloadReply.newBuilder();
+		if (mtime > 0)
+			body.addDocs(Document.newBuilder().setDocName("doc").setId(mtime).setDocument(Manifest.mtime(mtime)));
+
+		Response.Builder r = Response.newBuilder();
+		r.setHeader(Header.newBuilder().setRoutingId(Header.Routing.DOCADD).setOriginator("a").setReplyCode(status));
+		r.setBody(body);
+		return r.build();
+	}
+}
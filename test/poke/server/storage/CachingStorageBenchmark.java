@@ -0,0 +1,112 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.Random;
+
+import poke.server.storage.jdbc.DatabaseStorage;
+
+import com.google.protobuf.ByteString;
+
+import eye.Comm.Document;
+import eye.Comm.NameSpace;
+
+/**
+ * Benchmark of the cache in front of the database storage (an embedded H2
+ * file database): finding documents by name, most finds asking for a few hot
+ * documents, while a few percent of the operations add a document to one of
+ * the namespaces (dropping its cached answers): adds per thousand operations,
+ * 5 by default.
+ * <p>
+ * Not a unit test (run it directly, the database is created in the directory
+ * and removed first):
+ * 
+ * <pre>
+ * java -cp classes:lib/* poke.server.storage.CachingStorageBenchmark [operations] [adds] [directory]
+ * </pre>
+ * 
+ * @author gash
+ * 
+ */
+public class CachingStorageBenchmark {
+	static final int sSpaces = 10;
+	static final int sDocs = 2000;
+	static final int sHot = 50;
+
+	// finds of hot documents in a thousand operations
+	static final int sHotFinds = 900;
+
+	public static void main(String[] args) throws Exception {
+		int ops = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+		int adds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		File dir = new File((args.length > 2) ? args[2] : System.getProperty("java.io.tmpdir"), "poke-bench");
+		delete(dir);
+
+		Properties cfg = new Properties();
+		cfg.setProperty(DatabaseStorage.sDriver, "org.h2.Driver");
+		cfg.setProperty(DatabaseStorage.sUrl, "jdbc:h2:file:" + new File(dir, "storage").getAbsolutePath());
+		CachingStorage s = new CachingStorage(new DatabaseStorage(cfg));
+		try {
+			for (int n = 0; n < sSpaces; n++) {
+				s.createNameSpace(NameSpace.newBuilder().setName("ns" + n).build());
+				for (int i = 0; i < sDocs; i++)
+					s.addDocument("ns" + n, doc(i));
+			}
+			System.out.println("operations: " + ops + ", adds per thousand: " + adds + ", documents: " + sSpaces
+					* sDocs + ", database: " + dir);
+
+			run("database", s.getBacking(), ops, adds);
+			run("cached", s, ops, adds);
+			System.out.println("hits " + s.getHits() + ", misses " + s.getMisses() + ", invalidations "
+					+ s.getInvalidations() + ", cached " + s.getSize() / 1024 + " KB");
+		} finally {
+			s.release();
+		}
+	}
+
+	private static void run(String name, Storage s, int ops, int adds) {
+		Random rand = new Random(1);
+		long st = System.nanoTime();
+		for (int n = 0; n < ops; n++) {
+			String ns = "ns" + rand.nextInt(sSpaces);
+			int op = rand.nextInt(1000);
+			if (op < adds)
+				s.addDocument(ns, doc(sDocs + n));
+			else {
+				int i = (op < adds + sHotFinds) ? rand.nextInt(sHot) : rand.nextInt(sDocs);
+				if (s.findDocuments(ns, Document.newBuilder().setDocName("doc" + i).build()).size() != 1)
+					throw new RuntimeException("missing doc" + i + " of " + ns);
+			}
+		}
+		System.out.printf("%-9s %10.1f us/operation%n", name, (System.nanoTime() - st) / 1000.0 / ops);
+	}
+
+	private static Document doc(int i) {
+		return Document.newBuilder().setDocName("doc" + i).setDocSize(1024)
+				.setChunkContent(ByteString.copyFrom(new byte[1024])).build();
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File c : files)
+				delete(c);
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * copyright 2013, gash
+ *
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import poke.server.storage.DocumentQuery.Condition;
+import poke.server.storage.DocumentQuery.Op;
+import eye.Comm.Document;
+import eye.Comm.NameSpace;
+import eye.Comm.NameValueSet;
+import eye.Comm.NameValueSet.NodeType;
+
+public class DocumentQueryTest {
+
+	@Test
+	public void testParse() throws Exception {
+		assertCondition(Condition.parse("p", "x"), Op.Equals, "x");
+		assertCondition(Condition.parse("p", "=x"), Op.Equals, "x");
+		assertCondition(Condition.parse("p", "!=x"), Op.NotEquals, "x");
+		assertCondition(Condition.parse("p", "<x"), Op.Less, "x");
+		assertCondition(Condition.parse("p", "<=x"), Op.LessOrEqual, "x");
+		assertCondition(Condition.parse("p", ">x"), Op.Greater, "x");
+		assertCondition(Condition.parse("p", ">=x"), Op.GreaterOrEqual, "x");
+		assertCondition(Condition.parse("p", "x*"), Op.Prefix, "x");
+
+		// the tree's paths, and two conditions on one path
+		Document criteria = Document.newBuilder().setDocName("doc-1*")
+				.setDocument(node(null, node("size", ">=20"), node("size", "<40"))).build();
+		List<Condition> cs = DocumentQuery.parse(criteria).getConditions();
+		assertEquals(3, cs.size());
+		assertEquals("docName", cs.get(0).getPath());
+		assertCondition(cs.get(1), Op.GreaterOrEqual, "20");
+		assertEquals("size", cs.get(1).getPath());
+		assertCondition(cs.get(2), Op.Less, "40");
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		// numbers as numbers
+		assertTrue(DocumentQuery.compare("9", "10") < 0);
+		assertTrue(DocumentQuery.compare("-5", "3") < 0);
+		assertTrue(DocumentQuery.compare("2.5", "10") < 0);
+		assertEquals(0, DocumentQuery.compare("1.0", "1"));
+
+		// keys need all 64 bits
+		assertTrue(DocumentQuery.compare("9007199254740993", "9007199254740992") > 0);
+
+		// strings as strings, after numbers
+		assertTrue(DocumentQuery.compare("abc", "abd") < 0);
+		assertTrue(DocumentQuery.compare("10", "9a") < 0);
+		assertTrue(DocumentQuery.compare("zz", "100") > 0);
+
+		Document doc = doc(1, 9, "t");
+		assertTrue(DocumentQuery.parse(criteria("size", "<10")).matches(doc));
+		assertFalse(DocumentQuery.parse(criteria("size", ">10")).matches(doc));
+	}
+
+	@Test
+	public void testNotEquals() throws Exception {
+		DocumentQuery q = DocumentQuery.parse(criteria("tag", "!=t1"));
+		assertFalse(q.matches(doc(1, 1, "t1")));
+		assertTrue(q.matches(doc(2, 1, "t2")));
+
+		// also met without the value
+		assertTrue(q.matches(Document.newBuilder().setId(3).setDocName("doc-3").build()));
+	}
+
+	@Test
+	public void testIndexedMatchesScan() throws Exception {
+		InMemoryStorage indexed = storage("size,tag,docName");
+		InMemoryStorage scanned = storage(null);
+
+		Random rand = new Random(1);
+		List<Document> all = new ArrayList<Document>();
+		for (int i = 1; i <= 2000; i++) {
+			Document d = doc(i, rand.nextInt(100), "t" + rand.nextInt(20));
+			all.add(d);
+			indexed.addDocument("ns", d);
+			scanned.addDocument("ns", d);
+		}
+
+		// removed documents leave the index
+		for (int i = 1; i <= 2000; i += 7) {
+			indexed.removeDocument("ns", i);
+			scanned.removeDocument("ns", i);
+		}
+
+		List<Document> queries = new ArrayList<Document>();
+		queries.add(criteria("size", "42"));
+		queries.add(criteria("size", "<10"));
+		queries.add(criteria("size", ">=95"));
+		queries.add(criteria("tag", "t1*"));
+		queries.add(criteria("tag", "!=t3"));
+		queries.add(Document.newBuilder().setDocument(node(null, node("size", ">20"), node("size", "<=30")))
+				.build());
+		queries.add(Document.newBuilder().setDocName("doc-1*").setDocument(node(null, node("tag", "t5"))).build());
+		queries.add(Document.newBuilder().setDocName("<doc-2").build());
+
+		for (Document c : queries) {
+			Set<Long> expected = new TreeSet<Long>();
+			DocumentQuery q = DocumentQuery.parse(c);
+			for (Document d : all) {
+				if ((d.getId() - 1) % 7 != 0 && q.matches(d))
+					expected.add(d.getId());
+			}
+
+			assertEquals(c.toString(), expected, ids(scanned.findDocuments("ns", c)));
+			assertEquals(c.toString(), expected, ids(indexed.findDocuments("ns", c)));
+		}
+	}
+
+	private static InMemoryStorage storage(String index) {
+		Properties p = new Properties();
+		if (index != null)
+			p.setProperty(InMemoryStorage.sIndex, index);
+
+		InMemoryStorage s = new InMemoryStorage();
+		s.init(p);
+		s.createNameSpace(NameSpace.newBuilder().setName("ns").setOwner("test").build());
+		return s;
+	}
+
+	private static Set<Long> ids(List<Document> docs) {
+		Set<Long> rtn = new TreeSet<Long>();
+		for (Document d : docs)
+			rtn.add(d.getId());
+		return rtn;
+	}
+
+	private static void assertCondition(Condition c, Op op, String operand) {
+		assertEquals(op, c.getOp());
+		assertEquals(operand, c.getOperand());
+	}
+
+	private static Document criteria(String path, String value) {
+		return Document.newBuilder().setDocument(node(null, node(path, value))).build();
+	}
+
+	private static Document doc(long id, int size, String tag) {
+		return Document.newBuilder().setId(id).setDocName("doc-" + id)
+				.setDocument(node(null, node("size", Integer.toString(size)), node("tag", tag))).build();
+	}
+
+	private static NameValueSet node(String name, NameValueSet... children) {
+		NameValueSet.Builder n = NameValueSet.newBuilder().setNodeType(NodeType.NODE);
+		if (name != null)
+			n.setName(name);
+		for (NameValueSet c : children)
+			n.addNode(c);
+		return n.build();
+	}
+
+	private static NameValueSet node(String name, String value) {
+		return NameValueSet.newBuilder().setNodeType(NodeType.VALUE).setName(name).setValue(value).build();
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import eye.Comm.Document;
+import eye.Comm.NameSpace;
+
+/**
+ * Microbenchmark of the storage under a mixed workload: each thread adds
+ * documents to random namespaces, removes them again and finds one of the
+ * documents it added (40/40/20). The baseline is the same storage behind a single lock, which is
+ * what making the original (unsynchronized) storage safe would have cost.
+ * <p>
+ * Not a unit test (run it directly):
+ * 
+ * <pre>
+ * java -cp classes:lib/* poke.server.storage.InMemoryStorageBenchmark [threads] [operations] [namespaces]
+ * </pre>
+ * 
+ * @author gash
+ * 
+ */
+public class InMemoryStorageBenchmark {
+	static final int sWarmup = 3;
+	static final int sRuns = 5;
+
+	// documents a thread keeps before it removes the oldest
+	static final int sKept = 64;
+
+	public static void main(String[] args) throws Exception {
+		int threads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int ops = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+		int spaces = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+
+		System.out.println("threads: " + threads + ", operations per thread: " + ops + ", namespaces: " + spaces);
+
+		run("locked", new LockedStorage(create(spaces)), threads, ops, spaces);
+		run("concurrent", create(spaces), threads, ops, spaces);
+	}
+
+	private static Storage create(int spaces) {
+		Storage s = new InMemoryStorage();
+		for (int i = 0; i < spaces; i++)
+			s.createNameSpace(NameSpace.newBuilder().setName("ns" + i).build());
+		return s;
+	}
+
+	private static void run(String name, Storage s, int threads, int ops, int spaces) throws Exception {
+		for (int n = 0; n < sWarmup; n++)
+			measure(s, threads, ops / 10, spaces);
+
+		long best = Long.MAX_VALUE;
+		for (int n = 0; n < sRuns; n++)
+			best = Math.min(best, measure(s, threads, ops, spaces));
+
+		System.out.printf("%-10s %8.1f ns/operation%n", name, (double) best / ops);
+	}
+
+	/**
+	 * @return the elapsed time (ns) of the slowest thread
+	 */
+	private static long measure(final Storage s, int threads, final int ops, final int spaces) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			Thread th = new Thread() {
+				@Override
+				public void run() {
+					Random rand = new Random(seed);
+					String[] ns = new String[sKept];
+					long[] ids = new long[sKept];
+					long nextId = ((long) seed << 40) + 1;
+					int head = 0, count = 0;
+					try {
+						start.await();
+						for (int n = 0; n < ops; n++) {
+							int op = rand.nextInt(10);
+							if (op < 4 || count == 0) {
+								if (count == sKept) {
+									s.removeDocument(ns[head], ids[head]);
+									head = (head + 1) % sKept;
+									count--;
+								}
+								int slot = (head + count) % sKept;
+								ns[slot] = "ns" + rand.nextInt(spaces);
+								ids[slot] = nextId++;
+								s.addDocument(ns[slot], Document.newBuilder().setId(ids[slot]).setDocName("d").build());
+								count++;
+							} else if (op < 8) {
+								s.removeDocument(ns[head], ids[head]);
+								head = (head + 1) % sKept;
+								count--;
+							} else {
+								int slot = (head + rand.nextInt(count)) % sKept;
+								List<Document> found = s.findDocuments(ns[slot],
+										Document.newBuilder().setId(ids[slot]).build());
+								if (found == null || found.size() != 1)
+									throw new RuntimeException("missing document " + ids[slot]);
+							}
+						}
+					} catch (InterruptedException e) {
+						// done
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			th.start();
+		}
+
+		long st = System.nanoTime();
+		start.countDown();
+		done.await();
+		return System.nanoTime() - st;
+	}
+
+	/**
+	 * a storage behind one lock
+	 */
+	private static class LockedStorage implements Storage {
+		private Storage s;
+
+		public LockedStorage(Storage s) {
+			this.s = s;
+		}
+
+		public synchronized void init(Properties cfg) {
+			s.init(cfg);
+		}
+
+		public synchronized void release() {
+			s.release();
+		}
+
+		public synchronized NameSpace getNameSpaceInfo(long spaceId) {
+			return s.getNameSpaceInfo(spaceId);
+		}
+
+		public synchronized List<NameSpace> findNameSpaces(NameSpace criteria) {
+			return s.findNameSpaces(criteria);
+		}
+
+		public synchronized NameSpace createNameSpace(NameSpace space) {
+			return s.createNameSpace(space);
+		}
+
+		public synchronized boolean removeNameSpace(long spaceId) {
+			return s.removeNameSpace(spaceId);
+		}
+
+		public synchronized boolean addDocument(String namespace, Document doc) {
+			return s.addDocument(namespace, doc);
+		}
+
+		public synchronized boolean addDocuments(String namespace, List<Document> docs) {
+			return s.addDocuments(namespace, docs);
+		}
+
+		public synchronized boolean removeDocument(String namespace, long docId) {
+			return s.removeDocument(namespace, docId);
+		}
+
+		public synchronized boolean updateDocument(String namespace, Document doc) {
+			return s.updateDocument(namespace, doc);
+		}
+
+		public synchronized List<Document> findDocuments(String namespace, Document criteria) {
+			return s.findDocuments(namespace, criteria);
+		}
+	}
+}
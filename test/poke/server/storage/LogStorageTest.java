@@ -0,0 +1,250 @@
+/*
+ * copyright 2013, gash
+ *
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import eye.Comm.Document;
+import eye.Comm.NameSpace;
+
+public class LogStorageTest {
+	private File dir;
+	private List<LogStorage> opened = new ArrayList<LogStorage>();
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("logstorage", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (LogStorage s : opened)
+			s.release();
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testRestartAfterRelease() throws Exception {
+		LogStorage s = open(1024);
+		s.createNameSpace(space("ns"));
+		for (int i = 1; i <= 20; i++)
+			s.addDocument("ns", doc(i, "v1"));
+		s.addDocument("ns", doc(5, "v2"));
+		s.removeDocument("ns", 7);
+		s.release();
+		opened.remove(s);
+
+		s = open(1024);
+		assertEquals(19, s.findDocuments("ns", null).size());
+		assertEquals("v2", content(s, 5));
+		assertEquals("v1", content(s, 6));
+		assertNull(content(s, 7));
+	}
+
+	@Test
+	public void testRestartWithoutRelease() throws Exception {
+		LogStorage s = open(1024);
+		s.createNameSpace(space("ns"));
+		for (int i = 1; i <= 20; i++)
+			s.addDocument("ns", doc(i, "v1"));
+		s.addDocument("ns", doc(5, "v2"));
+		s.removeDocument("ns", 7);
+
+		// the segment being written has no footer, it is scanned
+		s = open(1024);
+		assertEquals(19, s.findDocuments("ns", null).size());
+		assertEquals("v2", content(s, 5));
+		assertNull(content(s, 7));
+
+		// and written on
+		s.addDocument("ns", doc(21, "v1"));
+		assertEquals("v1", content(s, 21));
+	}
+
+	@Test
+	public void testTruncatedRecord() throws Exception {
+		LogStorage s = open(64 * 1024);
+		s.createNameSpace(space("ns"));
+		for (int i = 1; i <= 3; i++)
+			s.addDocument("ns", doc(i, "v1"));
+
+		// the last record is cut short, as by a crash while it was written
+		File last = lastSegment();
+		long len = last.length();
+		RandomAccessFile raf = new RandomAccessFile(last, "rw");
+		try {
+			raf.setLength(len - 3);
+		} finally {
+			raf.close();
+		}
+
+		s = open(64 * 1024);
+		assertEquals(2, s.findDocuments("ns", null).size());
+		assertEquals("v1", content(s, 2));
+		assertNull(content(s, 3));
+
+		// the damaged tail is gone, new records follow the good ones
+		s.addDocument("ns", doc(3, "v2"));
+		s.release();
+		opened.remove(s);
+
+		s = open(64 * 1024);
+		assertEquals(3, s.findDocuments("ns", null).size());
+		assertEquals("v2", content(s, 3));
+	}
+
+	@Test
+	public void testCompactionKeepsRemovals() throws Exception {
+		LogStorage s = open(1024);
+		s.createNameSpace(space("ns"));
+		s.addDocument("ns", doc(1, "a"));
+		s.addDocument("ns", doc(2, "b"));
+
+		// versions of 3 fill segments with dead records, the removal of 1
+		// lands in a later segment than its document
+		for (int i = 0; i < 20; i++) {
+			s.addDocument("ns", doc(3, "c" + i));
+			if (i == 10)
+				s.removeDocument("ns", 1);
+		}
+
+		int before = segmentCount();
+		s.compact();
+		assertTrue(segmentCount() < before);
+
+		assertNull(content(s, 1));
+		assertEquals("b", content(s, 2));
+		assertEquals("c19", content(s, 3));
+
+		s.release();
+		opened.remove(s);
+
+		s = open(1024);
+		assertNull(content(s, 1));
+		assertEquals("b", content(s, 2));
+		assertEquals("c19", content(s, 3));
+		assertEquals(2, s.findDocuments("ns", null).size());
+	}
+
+	@Test
+	public void testInterruptedReader() throws Exception {
+		LogStorage s = open(64 * 1024);
+		s.createNameSpace(space("ns"));
+		s.addDocument("ns", doc(1, "a"));
+
+		Thread.currentThread().interrupt();
+		try {
+			assertEquals("a", content(s, 1));
+		} finally {
+			assertTrue(Thread.interrupted());
+		}
+
+		// the segment is still readable by everyone
+		assertEquals("a", content(s, 1));
+		assertFalse(Thread.currentThread().isInterrupted());
+	}
+
+	@Test
+	public void testBatchInOneSegment() throws Exception {
+		LogStorage s = open(1024);
+		s.createNameSpace(space("ns"));
+		s.addDocument("ns", doc(1, "a"));
+
+		// larger than a segment, written to a segment of its own
+		List<Document> docs = new ArrayList<Document>();
+		for (int i = 2; i <= 21; i++)
+			docs.add(doc(i, "b"));
+		int before = segmentCount();
+		assertTrue(s.addDocuments("ns", docs));
+		assertEquals(before + 1, segmentCount());
+		assertEquals(21, s.findDocuments("ns", null).size());
+
+		s = open(1024);
+		assertEquals(21, s.findDocuments("ns", null).size());
+		assertEquals("a", content(s, 1));
+		assertEquals("b", content(s, 21));
+	}
+
+	private LogStorage open(long segmentSize) {
+		Properties p = new Properties();
+		p.setProperty(LogStorage.sDir, dir.getPath());
+		p.setProperty(LogStorage.sSegmentSize, Long.toString(segmentSize));
+
+		LogStorage s = new LogStorage();
+		s.init(p);
+		opened.add(s);
+		return s;
+	}
+
+	private int segmentCount() {
+		return dir.list().length;
+	}
+
+	private File lastSegment() {
+		File last = null;
+		for (File f : dir.listFiles()) {
+			if (last == null || f.getName().compareTo(last.getName()) > 0)
+				last = f;
+		}
+		assertNotNull(last);
+		return last;
+	}
+
+	private static NameSpace space(String name) {
+		return NameSpace.newBuilder().setName(name).setOwner("test").build();
+	}
+
+	private static Document doc(long id, String content) {
+		StringBuilder sb = new StringBuilder(content);
+		while (sb.length() < 100)
+			sb.append('.');
+		return Document.newBuilder().setId(id).setDocName("doc" + id)
+				.setChunkContent(ByteString.copyFromUtf8(content + "|" + sb)).build();
+	}
+
+	private static String content(Storage s, long id) {
+		List<Document> docs = s.findDocuments("ns", Document.newBuilder().setId(id).build());
+		if (docs == null || docs.isEmpty())
+			return null;
+
+		String c = docs.get(0).getChunkContent().toStringUtf8();
+		return c.substring(0, c.indexOf('|'));
+	}
+}
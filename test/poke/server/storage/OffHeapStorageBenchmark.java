@@ -0,0 +1,113 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import com.google.protobuf.ByteString;
+
+import eye.Comm.Document;
+import eye.Comm.NameSpace;
+
+/**
+ * Benchmark of the memory storage holding documents with large content, with
+ * the content on the heap and off it (storage.offheap): the heap and direct
+ * memory used once the documents are added, and the time spent collecting
+ * garbage while documents are replaced and found.
+ * <p>
+ * Not a unit test (run it directly, with direct memory for the documents):
+ * 
+ * <pre>
+ * java -Xmx1g -XX:MaxDirectMemorySize=1g -cp classes:lib/* poke.server.storage.OffHeapStorageBenchmark [documents] [KB per document] [operations]
+ * </pre>
+ * 
+ * @author gash
+ * 
+ */
+public class OffHeapStorageBenchmark {
+	public static void main(String[] args) throws Exception {
+		int docs = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+		int size = ((args.length > 1) ? Integer.parseInt(args[1]) : 256) * 1024;
+		int ops = (args.length > 2) ? Integer.parseInt(args[2]) : 20000;
+
+		System.out.println("documents: " + docs + ", content: " + size / 1024 + " KB, operations: " + ops);
+
+		run("heap", new Properties(), docs, size, ops);
+
+		Properties cfg = new Properties();
+		cfg.setProperty(InMemoryStorage.sOffHeap, "true");
+		run("off-heap", cfg, docs, size, ops);
+	}
+
+	private static void run(String name, Properties cfg, int docs, int size, int ops) {
+		InMemoryStorage s = new InMemoryStorage();
+		s.init(cfg);
+		s.createNameSpace(NameSpace.newBuilder().setName("bench").build());
+
+		for (int i = 0; i < docs; i++)
+			s.addDocument("bench", doc(i, ByteString.copyFrom(new byte[size])));
+
+		long heap = usedHeap();
+		long direct = usedDirect();
+
+		// replace documents (a new content each) and find them again
+		long gc = gcMillis();
+		long st = System.nanoTime();
+		for (int n = 0; n < ops; n++) {
+			int i = n * 7919 % docs;
+			if (n % 4 == 0)
+				s.updateDocument("bench", doc(i, ByteString.copyFrom(new byte[size])));
+			else if (s.findDocuments("bench", Document.newBuilder().setId(i + 1).build()).size() != 1)
+				throw new RuntimeException("missing document " + i);
+		}
+		long elapsed = System.nanoTime() - st;
+		gc = gcMillis() - gc;
+
+		System.out.printf("%-9s heap %7.1f MB, direct %7.1f MB, %8.1f us/operation, gc %6d ms%n", name, heap / 1e6,
+				direct / 1e6, elapsed / 1000.0 / ops, gc);
+		s.release();
+	}
+
+	private static Document doc(int i, ByteString content) {
+		return Document.newBuilder().setId(i + 1).setDocName("doc" + i).setDocSize(content.size())
+				.setChunkContent(content).build();
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static long usedDirect() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct"))
+				return pool.getMemoryUsed();
+		}
+		return 0;
+	}
+
+	private static long gcMillis() {
+		long ms = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			ms += gc.getCollectionTime();
+		return ms;
+	}
+}
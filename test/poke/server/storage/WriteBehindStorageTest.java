@@ -0,0 +1,466 @@
+/*
+ * copyright 2013, gash
+ *
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import eye.Comm.Document;
+import eye.Comm.NameSpace;
+
+public class WriteBehindStorageTest {
+	private File dir;
+	private File logFile;
+	private List<Storage> opened = new ArrayList<Storage>();
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("writebehind", "");
+		dir.delete();
+		dir.mkdirs();
+		logFile = new File(dir, "storage.log");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (Storage s : opened)
+			s.release();
+		delete(dir);
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		WriteBehindStorage s = open(new InMemoryStorage(), false);
+		s.createNameSpace(space("ns"));
+		for (int i = 1; i <= 10; i++)
+			assertTrue(s.addDocument("ns", doc(i, "v1")));
+		s.updateDocument("ns", doc(4, "v2"));
+		s.removeDocument("ns", 5);
+
+		// not released: the log is all there is
+		s = open(new InMemoryStorage(), false);
+		assertEquals(9, s.findDocuments("ns", null).size());
+		assertEquals("v2", content(s, 4));
+		assertEquals("v1", content(s, 6));
+		assertNull(content(s, 5));
+	}
+
+	@Test
+	public void testTruncatedRecord() throws Exception {
+		WriteBehindStorage s = open(new InMemoryStorage(), false);
+		s.createNameSpace(space("ns"));
+		for (int i = 1; i <= 3; i++)
+			s.addDocument("ns", doc(i, "v1"));
+
+		// the last record is cut short, as by a crash while it was written
+		long len = logFile.length();
+		RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+		try {
+			raf.setLength(len - 3);
+		} finally {
+			raf.close();
+		}
+
+		s = open(new InMemoryStorage(), false);
+		assertEquals(2, s.findDocuments("ns", null).size());
+		assertNull(content(s, 3));
+
+		// the damaged tail is gone, new records follow the good ones
+		s.addDocument("ns", doc(3, "v2"));
+		s = open(new InMemoryStorage(), false);
+		assertEquals(3, s.findDocuments("ns", null).size());
+		assertEquals("v2", content(s, 3));
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		final WriteBehindStorage s = open(new InMemoryStorage(), false);
+		s.createNameSpace(space("ns"));
+
+		final int threads = 8;
+		final int each = 50;
+		final AtomicInteger failed = new AtomicInteger();
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int base = t * each;
+			Thread w = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 1; i <= each; i++) {
+						if (!s.addDocument("ns", doc(base + i, "v1")))
+							failed.incrementAndGet();
+					}
+				}
+			};
+			writers.add(w);
+			w.start();
+		}
+		for (Thread w : writers)
+			w.join();
+
+		assertEquals(0, failed.get());
+		assertEquals(threads * each, s.findDocuments("ns", null).size());
+
+		// every acknowledged add is in the log
+		WriteBehindStorage r = open(new InMemoryStorage(), false);
+		assertEquals(threads * each, r.findDocuments("ns", null).size());
+	}
+
+	@Test
+	public void testCheckpointOnReplay() throws Exception {
+		WriteBehindStorage s = open(logStorage(), true);
+		s.createNameSpace(space("ns"));
+		for (int i = 1; i <= 10; i++)
+			s.addDocument("ns", doc(i, "v1"));
+		assertTrue(logFile.length() > 0);
+
+		// the replay applies the log to a storage that keeps it, the log is
+		// emptied
+		s = open(logStorage(), true);
+		assertEquals(0, logFile.length());
+		assertEquals(10, s.findDocuments("ns", null).size());
+
+		s = open(logStorage(), true);
+		assertEquals(10, s.findDocuments("ns", null).size());
+	}
+
+	@Test
+	public void testCheckpointWhenApplied() throws Exception {
+		WriteBehindStorage s = open(logStorage(), true);
+		s.createNameSpace(space("ns"));
+
+		// one append past the checkpoint size
+		List<Document> docs = new ArrayList<Document>();
+		int n = (int) (WriteBehindStorage.sCheckpointSize / 100000) + 10;
+		for (int i = 1; i <= n; i++)
+			docs.add(doc(i, "v1", 100000));
+		assertTrue(s.addDocuments("ns", docs));
+		assertEquals(n, s.findDocuments("ns", null).size());
+
+		long until = System.currentTimeMillis() + 10000;
+		while (logFile.length() > 0 && System.currentTimeMillis() < until)
+			Thread.sleep(50);
+		assertEquals(0, logFile.length());
+
+		s = open(logStorage(), true);
+		assertEquals(n, s.findDocuments("ns", null).size());
+	}
+
+	@Test
+	public void testUnavailableOnReplay() throws Exception {
+		WriteBehindStorage s = open(new InMemoryStorage(), false);
+		s.createNameSpace(space("ns"));
+		for (int i = 1; i <= 10; i++)
+			s.addDocument("ns", doc(i, "v1"));
+		long len = logFile.length();
+
+		// the replay cannot apply the log, it is kept and changes are refused
+		FailingStorage f = new FailingStorage();
+		f.down = true;
+		s = open(f, true);
+		assertEquals(len, logFile.length());
+		assertFalse(s.addDocument("ns", doc(11, "v1")));
+
+		// the applier retries until the storage is back
+		f.down = false;
+		long until = System.currentTimeMillis() + 10000;
+		while (!s.addDocument("ns", doc(11, "v1")) && System.currentTimeMillis() < until)
+			Thread.sleep(50);
+		assertEquals(11, s.findDocuments("ns", null).size());
+		s.release();
+		opened.remove(s);
+
+		// all applied, the next replay empties the log
+		s = open(logStorage(), true);
+		assertEquals(0, logFile.length());
+		assertEquals(11, s.findDocuments("ns", null).size());
+	}
+
+	@Test
+	public void testUnavailableWhenApplied() throws Exception {
+		FailingStorage f = new FailingStorage();
+		WriteBehindStorage s = open(f, true);
+		s.createNameSpace(space("ns"));
+		assertTrue(s.addDocument("ns", doc(1, "v1")));
+
+		// acknowledged before the storage is found unavailable
+		f.down = true;
+		assertTrue(s.addDocument("ns", doc(2, "v1")));
+
+		// a read does not wait for the storage once it is unavailable, and
+		// changes are refused
+		s.findDocuments("ns", null);
+		assertFalse(s.addDocument("ns", doc(3, "v1")));
+
+		f.down = false;
+		long until = System.currentTimeMillis() + 10000;
+		while (!s.addDocument("ns", doc(3, "v1")) && System.currentTimeMillis() < until)
+			Thread.sleep(50);
+		assertEquals(3, s.findDocuments("ns", null).size());
+		assertEquals("v1", content(s, 2));
+
+		// and the log still has them
+		s = open(new InMemoryStorage(), false);
+		assertEquals(3, s.findDocuments("ns", null).size());
+	}
+
+	@Test
+	public void testFailedForce() throws Exception {
+		final FailingChannel[] ch = new FailingChannel[1];
+		WriteBehindStorage s = open(new WriteBehindStorage(new InMemoryStorage()) {
+			@Override
+			FileChannel openLog(File f) throws IOException {
+				ch[0] = new FailingChannel(super.openLog(f));
+				return ch[0];
+			}
+		}, false);
+		s.createNameSpace(space("ns"));
+		assertTrue(s.addDocument("ns", doc(1, "v1")));
+		long len = logFile.length();
+
+		// the change is refused, not applied, and cut from the log
+		ch[0].fail = true;
+		assertFalse(s.addDocument("ns", doc(2, "v1")));
+		assertNull(content(s, 2));
+		assertEquals(len, logFile.length());
+
+		ch[0].fail = false;
+		assertTrue(s.addDocument("ns", doc(3, "v1")));
+		assertEquals(2, s.findDocuments("ns", null).size());
+
+		s = open(new InMemoryStorage(), false);
+		assertEquals(2, s.findDocuments("ns", null).size());
+		assertNull(content(s, 2));
+	}
+
+	private WriteBehindStorage open(Storage backing, boolean checkpoint) {
+		return open(new WriteBehindStorage(backing), checkpoint);
+	}
+
+	private WriteBehindStorage open(WriteBehindStorage s, boolean checkpoint) {
+		Properties p = new Properties();
+		p.setProperty(WriteBehindStorage.sLog, logFile.getPath());
+		p.setProperty(WriteBehindStorage.sCheckpoint, Boolean.toString(checkpoint));
+		p.setProperty(LogStorage.sDir, new File(dir, "data").getPath());
+
+		s.init(p);
+		opened.add(s);
+		return s;
+	}
+
+	private static Storage logStorage() {
+		return new LogStorage();
+	}
+
+	/**
+	 * a storage that can be made unavailable, as a database that is down
+	 */
+	private static class FailingStorage extends LogStorage {
+		volatile boolean down;
+
+		@Override
+		public List<NameSpace> findNameSpaces(NameSpace criteria) {
+			return down ? null : super.findNameSpaces(criteria);
+		}
+
+		@Override
+		public NameSpace createNameSpace(NameSpace space) {
+			return down ? null : super.createNameSpace(space);
+		}
+
+		@Override
+		public boolean removeNameSpace(long spaceId) {
+			return !down && super.removeNameSpace(spaceId);
+		}
+
+		@Override
+		public boolean addDocument(String namespace, Document doc) {
+			return !down && super.addDocument(namespace, doc);
+		}
+
+		@Override
+		public boolean addDocuments(String namespace, List<Document> docs) {
+			return !down && super.addDocuments(namespace, docs);
+		}
+
+		@Override
+		public boolean updateDocument(String namespace, Document doc) {
+			return !down && super.updateDocument(namespace, doc);
+		}
+
+		@Override
+		public boolean removeDocument(String namespace, long docId) {
+			return !down && super.removeDocument(namespace, docId);
+		}
+	}
+
+	/**
+	 * a log whose force can be made to fail, as a disk that is full or gone
+	 */
+	private static class FailingChannel extends FileChannel {
+		private final FileChannel ch;
+		volatile boolean fail;
+
+		FailingChannel(FileChannel ch) {
+			this.ch = ch;
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException {
+			if (fail)
+				throw new IOException("force failed");
+			ch.force(metaData);
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return ch.read(dst);
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			return ch.read(dsts, offset, length);
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return ch.write(src);
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			return ch.write(srcs, offset, length);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return ch.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			ch.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return ch.size();
+		}
+
+		@Override
+		public FileChannel truncate(long size) throws IOException {
+			ch.truncate(size);
+			return this;
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return ch.transferTo(position, count, target);
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+			return ch.transferFrom(src, position, count);
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			return ch.read(dst, position);
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) throws IOException {
+			return ch.write(src, position);
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			return ch.map(mode, position, size);
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			return ch.lock(position, size, shared);
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			return ch.tryLock(position, size, shared);
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException {
+			ch.close();
+		}
+	}
+
+	private static NameSpace space(String name) {
+		return NameSpace.newBuilder().setName(name).setOwner("test").build();
+	}
+
+	private static Document doc(long id, String content) {
+		return doc(id, content, 0);
+	}
+
+	private static Document doc(long id, String content, int size) {
+		StringBuilder sb = new StringBuilder(content).append('|');
+		while (sb.length() < size)
+			sb.append('.');
+		return Document.newBuilder().setId(id).setDocName("doc" + id)
+				.setChunkContent(ByteString.copyFromUtf8(sb.toString())).build();
+	}
+
+	private static String content(Storage s, long id) {
+		List<Document> docs = s.findDocuments("ns", Document.newBuilder().setId(id).build());
+		if (docs == null || docs.isEmpty())
+			return null;
+
+		String c = docs.get(0).getChunkContent().toStringUtf8();
+		return c.substring(0, c.indexOf('|'));
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File c : files)
+				delete(c);
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * copyright 2013, gash
+ * 
+ * Gash licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package poke.server.storage.jdbc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.google.protobuf.ByteString;
+
+import eye.Comm.Document;
+import eye.Comm.NameSpace;
+import eye.Comm.NameValueSet;
+import eye.Comm.NameValueSet.NodeType;
+
+/**
+ * Benchmark of the database storage on an embedded H2 file database: adding
+ * documents one at a time (a transaction each) and in batches, and finding
+ * documents by name (answered by the database), by name prefix and by a
+ * value of the document (read and matched a row at a time).
+ * <p>
+ * Not a unit test (run it directly, the database is created in the directory
+ * and removed first):
+ * 
+ * <pre>
+ * java -cp classes:lib/* poke.server.storage.jdbc.DatabaseStorageBenchmark [documents] [directory]
+ * </pre>
+ * 
+ * @author gash
+ * 
+ */
+public class DatabaseStorageBenchmark {
+	static final int sBatch = 1000;
+	static final int sFinds = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int docs = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		File dir = new File((args.length > 1) ? args[1] : System.getProperty("java.io.tmpdir"), "poke-bench");
+		delete(dir);
+
+		Properties cfg = new Properties();
+		cfg.setProperty(DatabaseStorage.sDriver, "org.h2.Driver");
+		cfg.setProperty(DatabaseStorage.sUrl, "jdbc:h2:file:" + new File(dir, "storage").getAbsolutePath());
+		DatabaseStorage s = new DatabaseStorage(cfg);
+		try {
+			s.createNameSpace(NameSpace.newBuilder().setName("single").build());
+			s.createNameSpace(NameSpace.newBuilder().setName("batch").build());
+			System.out.println("documents: " + docs + ", database: " + dir);
+
+			// one at a time
+			long st = System.nanoTime();
+			for (int i = 0; i < docs; i++)
+				s.addDocument("single", doc(i));
+			report("add", docs, System.nanoTime() - st);
+
+			// in batches
+			st = System.nanoTime();
+			List<Document> batch = new ArrayList<Document>(sBatch);
+			for (int i = 0; i < docs; i++) {
+				batch.add(doc(i));
+				if (batch.size() == sBatch || i == docs - 1) {
+					s.addDocuments("batch", batch);
+					batch.clear();
+				}
+			}
+			report("add batch " + sBatch, docs, System.nanoTime() - st);
+
+			// by name, one document each
+			st = System.nanoTime();
+			for (int i = 0; i < sFinds; i++)
+				check(s.findDocuments("batch", Document.newBuilder().setDocName("doc" + (i * 37 % docs)).build()), 1);
+			report("find name", sFinds, System.nanoTime() - st);
+
+			// by prefix, doc1, doc10.., doc100..
+			st = System.nanoTime();
+			int expect = 0;
+			for (int i = 0; i < docs; i++)
+				expect += Integer.toString(i).startsWith("1") ? 1 : 0;
+			for (int i = 0; i < sFinds / 10; i++)
+				check(s.findDocuments("batch", Document.newBuilder().setDocName("doc1*").build()), expect);
+			report("find prefix", sFinds / 10, System.nanoTime() - st);
+
+			// by a value of every document
+			st = System.nanoTime();
+			for (int i = 0; i < 3; i++)
+				check(s.findDocuments("batch", Document.newBuilder().setDocument(value("group", "7")).build()),
+						(docs + 9 - 7) / 10);
+			report("find value (scan)", 3, System.nanoTime() - st);
+		} finally {
+			s.release();
+		}
+	}
+
+	private static Document doc(int i) {
+		Document.Builder d = Document.newBuilder();
+		d.setDocName("doc" + i);
+		d.setDocSize(256);
+		d.setChunkContent(ByteString.copyFrom(new byte[256]));
+		d.setDocument(value("group", Integer.toString(i % 10)));
+		return d.build();
+	}
+
+	private static void check(List<Document> found, int expect) {
+		if (found == null || (expect >= 0 && found.size() != expect))
+			throw new RuntimeException("found " + (found == null ? null : found.size()) + ", expected " + expect);
+	}
+
+	private static void report(String name, int ops, long ns) {
+		System.out.printf("%-18s %10.1f us/operation%n", name, ns / 1000.0 / ops);
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File c : files)
+				delete(c);
+		}
+		f.delete();
+	}
+
+	private static NameValueSet value(String name, String value) {
+		return NameValueSet.newBuilder().setNodeType(NodeType.VALUE).setName(name).setValue(value).build();
+	}
+}